@@ -0,0 +1,84 @@
+package com.example.customdownload;
+
+import android.os.SystemClock;
+
+/**
+ * 根据实测吞吐调整每次读网络的大小。
+ * 连续读满缓冲并且吞吐足够时加倍，直到上限；大多数读都读不满或者吞吐很低时减半，直到下限。
+ * 每个读网络的线程用一个，不是线程安全的。
+ */
+public class AdaptiveBufferSizer {
+	/** 每次调整至少观察的读次数 */
+	private static final int WINDOW_READS = 16;
+
+	/** 每次调整至少观察的时间，ms */
+	private static final long WINDOW_TIME = 250;
+
+	/** 希望每次读大约装下这么长时间的数据，ms */
+	private static final long TARGET_READ_TIME = 50;
+
+	private final int mMinSize;
+	private final int mMaxSize;
+	private int mSize;	//当前读大小
+
+	private long mWindowStart;	//本轮观察开始的时间
+	private long mWindowBytes;	//本轮读到的字节数
+	private int mWindowReads;	//本轮读的次数
+	private int mWindowFullReads;	//本轮读满缓冲的次数
+
+	/**
+	 * @param minSize 下限，也是初始大小
+	 * @param maxSize 上限
+	 */
+	public AdaptiveBufferSizer(int minSize, int maxSize) {
+		mMinSize = minSize;
+		mMaxSize = Math.max(minSize, maxSize);
+		mSize = minSize;
+		mWindowStart = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * 获取下一次读的大小
+	 * @return
+	 */
+	public int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * 记录一次读的结果
+	 * @param requested 请求读的大小
+	 * @param bytesRead 实际读到的大小，-1表示流结束
+	 */
+	public void onRead(int requested, int bytesRead) {
+		if (bytesRead < 0) {
+			return;
+		}
+
+		mWindowReads++;
+		mWindowBytes += bytesRead;
+		if (bytesRead >= requested) {
+			mWindowFullReads++;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		long elapsed = now - mWindowStart;
+		if (mWindowReads < WINDOW_READS || elapsed < WINDOW_TIME) {
+			return;
+		}
+
+		long bytesPerTarget = mWindowBytes * TARGET_READ_TIME / elapsed;
+		boolean mostlyFull = mWindowFullReads * 4 >= mWindowReads * 3;
+		boolean mostlyShort = mWindowFullReads * 4 < mWindowReads;
+		if (mostlyFull && bytesPerTarget > mSize && mSize < mMaxSize) {
+			mSize = Math.min(mSize * 2, mMaxSize);
+		} else if ((mostlyShort || bytesPerTarget < mSize / 4) && mSize > mMinSize) {
+			mSize = Math.max(mSize / 2, mMinSize);
+		}
+
+		mWindowStart = now;
+		mWindowBytes = 0;
+		mWindowReads = 0;
+		mWindowFullReads = 0;
+	}
+}
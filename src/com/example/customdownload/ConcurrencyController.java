@@ -0,0 +1,257 @@
+package com.example.customdownload;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 按实测的总下载速度调整同时下载的任务数和每个下载的分段数。
+ * 每SAMPLE_TIME从{@link ProgressTable}算一次所有正在下载的任务的总速度：
+ * 名额都占满且有任务在等时试着加一个名额(没有任务在等时加一个分段)，等一个采样周期让新连接跑起来，
+ * 总速度涨了至少MIN_GAIN_PERCENT就继续加，没涨说明到了瓶颈，退回去并且保持一段时间；
+ * 有任务因为网络或者服务器出错、等待重试时名额和分段数都减半(AIMD)。
+ * 分段数从Constants.SEGMENT_COUNT开始，可以往上试到Constants.SEGMENT_COUNT_CEILING。
+ * 名额的变化马上交给{@link DownloadQueue}，分段数对之后开始的分段下载生效。
+ */
+public class ConcurrencyController {
+	private static final String TAG = ConcurrencyController.class.getSimpleName();
+
+	/** 决策，也是getDecisionCount的下标 */
+	public static final int DECISION_HOLD = 0;	//不变
+	public static final int DECISION_INCREASE_ACTIVE = 1;	//试着多开一个任务
+	public static final int DECISION_INCREASE_SEGMENTS = 2;	//试着多开一个分段
+	public static final int DECISION_PLATEAU = 3;	//加了没有变快，退回去
+	public static final int DECISION_BACKOFF = 4;	//出错了，减半
+	private static final int DECISION_COUNT = 5;
+
+	private static final long SAMPLE_TIME = 2000;	//采样周期，ms
+	private static final int MIN_GAIN_PERCENT = 10;	//加连接后总速度至少涨这么多才算有用
+	private static final int HOLD_SAMPLES = 5;	//到瓶颈或者出错后保持不变的采样次数
+
+	private final DownloadQueue mDownloadQueue;
+	private final long[] mSnapshot = new long[Constants.MAX_PROGRESS_SLOTS * ProgressTable.FIELD_COUNT];
+	private final Map<Long, Long> mLastBytes = new HashMap<Long, Long>();	//任务ID -> 上次采样的已下载大小，只在控制线程访问
+	private HandlerThread mHandlerThread = null;
+	private Handler mHandler = null;
+
+	private final DownloadObserver mErrorObserver = new DownloadObserver() {
+		@Override
+		public void onTaskChanged(DownloadChange change) {
+			if (change.has(DownloadChange.FIELD_STATUS) && isNetworkFailure(change.mStatus)) {
+				mErrors.incrementAndGet();
+			}
+		}
+	};
+
+	// the rest is only touched on the controller thread, the volatile copies are for the getters
+	private final AtomicInteger mErrors = new AtomicInteger();	//上次采样后出错的次数
+	private volatile int mLimit;
+	private volatile int mSegmentLimit = Constants.SEGMENT_COUNT;	//从默认值开始，可以往上试到SEGMENT_COUNT_CEILING
+	private volatile long mThroughput = 0;	//平滑后的总速度，bytes/s
+	private volatile int mLastDecision = DECISION_HOLD;
+	private final AtomicLongArray mDecisionCount = new AtomicLongArray(DECISION_COUNT);
+	private long mLastSampleTime = 0;
+	private int mProbe = DECISION_HOLD;	//正在试的是加任务还是加分段
+	private long mThroughputBeforeProbe = 0;
+	private boolean mSettling = false;	//刚加了连接，这次采样不算
+	private int mHoldSamples = 0;
+
+	private final Runnable mSampleRunnable = new Runnable() {
+		@Override
+		public void run() {
+			sample();
+			mHandler.postDelayed(this, SAMPLE_TIME);
+		}
+	};
+
+	/**
+	 * @param downloadQueue 名额由它执行
+	 */
+	public ConcurrencyController(DownloadQueue downloadQueue) {
+		mDownloadQueue = downloadQueue;
+		mLimit = downloadQueue.getMaxActive();
+	}
+
+	/**
+	 * 开始采样
+	 */
+	public synchronized void start() {
+		if (null != mHandlerThread) {
+			return;
+		}
+		mHandlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mHandlerThread.start();
+		mHandler = new Handler(mHandlerThread.getLooper());
+		// status changes only, so that progress events still aren't built when nobody shows them
+		DownloadEventBus.getInstance().subscribe(mErrorObserver, DownloadEventBus.POSTING_THREAD, ProgressGranularity.NONE);
+		mHandler.postDelayed(mSampleRunnable, SAMPLE_TIME);
+	}
+
+	/**
+	 * 停止采样，名额保持最后的值
+	 */
+	public synchronized void stop() {
+		if (null == mHandlerThread) {
+			return;
+		}
+		DownloadEventBus.getInstance().unsubscribe(mErrorObserver);
+		mHandler.removeCallbacks(mSampleRunnable);
+		mHandlerThread.quit();
+		mHandlerThread = null;
+		mHandler = null;
+	}
+
+	/**
+	 * 判断一个结束状态是不是网络或者服务器的问题，只有这些说明连接开多了；
+	 * 用户取消、校验失败、存储空间不够和连接数无关
+	 * @param status
+	 * @return
+	 */
+	private static boolean isNetworkFailure(int status) {
+		switch (status) {
+		case Downloads.STATUS_WAITING_TO_RETRY:
+		case Downloads.STATUS_WAITING_FOR_NETWORK:
+		case Downloads.STATUS_HTTP_DATA_ERROR:
+			return true;
+		default:
+			return status >= 500 && status < 600;
+		}
+	}
+
+	private void sample() {
+		long now = SystemClock.elapsedRealtime();
+		long elapsed = now - mLastSampleTime;
+		mLastSampleTime = now;
+
+		// bytes of the tasks seen in both samples, a task that just started or restarted has no delta yet
+		int count = ProgressTable.getInstance().snapshot(mSnapshot);
+		long bytes = 0;
+		Map<Long, Long> current = new HashMap<Long, Long>();
+		for (int i = 0; i < count; i++) {
+			int offset = i * ProgressTable.FIELD_COUNT;
+			long taskId = mSnapshot[offset + ProgressTable.FIELD_TASK_ID];
+			long currentBytes = mSnapshot[offset + ProgressTable.FIELD_CURRENT_BYTES];
+			Long last = mLastBytes.get(taskId);
+			if (null != last && currentBytes > last) {
+				bytes += currentBytes - last;
+			}
+			current.put(taskId, currentBytes);
+		}
+		mLastBytes.clear();
+		mLastBytes.putAll(current);
+		int errors = mErrors.getAndSet(0);
+
+		if (0 == count) {
+			// idle, the next busy period starts its own measurement
+			mThroughput = 0;
+			mSettling = false;
+			mProbe = DECISION_HOLD;
+			return;
+		}
+		if (elapsed <= 0 || elapsed > SAMPLE_TIME * 4) {
+			return;
+		}
+		long throughput = bytes * 1000 / elapsed;
+		mThroughput = mThroughput == 0 ? throughput : (mThroughput + throughput) / 2;
+
+		decide(errors, count);
+	}
+
+	private void decide(int errors, int activeCount) {
+		int decision = DECISION_HOLD;
+		if (errors > 0) {
+			mLimit = Math.max(mLimit / 2, 1);
+			mSegmentLimit = Math.max(mSegmentLimit / 2, 1);
+			mProbe = DECISION_HOLD;
+			mSettling = false;
+			mHoldSamples = HOLD_SAMPLES;
+			decision = DECISION_BACKOFF;
+		} else if (mSettling) {
+			// the new connection is still ramping up
+			mSettling = false;
+		} else if (mProbe != DECISION_HOLD && mThroughput * 100 < mThroughputBeforeProbe * (100 + MIN_GAIN_PERCENT)) {
+			if (mProbe == DECISION_INCREASE_ACTIVE) {
+				mLimit = Math.max(mLimit - 1, 1);
+			} else {
+				mSegmentLimit = Math.max(mSegmentLimit - 1, 1);
+			}
+			mProbe = DECISION_HOLD;
+			mHoldSamples = HOLD_SAMPLES;
+			decision = DECISION_PLATEAU;
+		} else if (mHoldSamples > 0) {
+			mProbe = DECISION_HOLD;
+			mHoldSamples--;
+		} else if (mDownloadQueue.getWaitingCount() > 0 && activeCount >= mLimit && mLimit < Constants.MAX_ACTIVE_DOWNLOADS_CEILING) {
+			mLimit++;
+			decision = startProbe(DECISION_INCREASE_ACTIVE);
+		} else if (mSegmentLimit < Constants.SEGMENT_COUNT_CEILING) {
+			mSegmentLimit++;
+			decision = startProbe(DECISION_INCREASE_SEGMENTS);
+		} else {
+			mProbe = DECISION_HOLD;
+		}
+
+		mLastDecision = decision;
+		mDecisionCount.incrementAndGet(decision);
+		if (decision != DECISION_HOLD) {
+			Log.d(TAG, "decide: decision = " + decision + ", throughput = " + mThroughput + ", errors = " + errors
+					+ ", limit = " + mLimit + ", segmentLimit = " + mSegmentLimit);
+			mDownloadQueue.setLimits(mLimit, Constants.MAX_ACTIVE_DOWNLOADS_PER_HOST);
+		}
+	}
+
+	private int startProbe(int probe) {
+		mProbe = probe;
+		mThroughputBeforeProbe = mThroughput;
+		mSettling = true;
+		return probe;
+	}
+
+	/**
+	 * 获取当前同时下载的任务数上限
+	 * @return
+	 */
+	public int getLimit() {
+		return mLimit;
+	}
+
+	/**
+	 * 获取之后开始的分段下载用的分段数
+	 * @return 1到Constants.SEGMENT_COUNT_CEILING
+	 */
+	public int getSegmentLimit() {
+		return mSegmentLimit;
+	}
+
+	/**
+	 * 获取平滑后的总下载速度
+	 * @return bytes/s
+	 */
+	public long getThroughput() {
+		return mThroughput;
+	}
+
+	/**
+	 * 获取最近一次采样的决策
+	 * @return DECISION_*
+	 */
+	public int getLastDecision() {
+		return mLastDecision;
+	}
+
+	/**
+	 * 获取某种决策的次数
+	 * @param decision DECISION_*
+	 * @return
+	 */
+	public long getDecisionCount(int decision) {
+		return mDecisionCount.get(decision);
+	}
+}
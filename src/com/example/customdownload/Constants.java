@@ -8,12 +8,111 @@ public class Constants {
 	/** The default user agent used for downloads */
     public static final String DEFAULT_USER_AGENT = "CustomDownloadManager";
 
-    /** The buffer size used to stream the data */
+    /**
+     * The initial and smallest buffer size used to stream the data. The
+     * transfer loop grows it while reads keep filling the buffer.
+     */
     public static final int BUFFER_SIZE = 4096;
 
-    /** The minimum amount of time that has to elapse before the progress bar gets updated, in ms */
+    /** The default ceiling of the adaptive buffer size */
+    public static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The number of buffers between the network reads and the disk writes.
+     * When they are all waiting to be written, the reads stop.
+     */
+    public static final int WRITE_BEHIND_CHUNKS = 16;
+
+    /**
+     * The minimum amount of time that has to elapse before the progress bar gets updated, in ms.
+     * Used when no subscriber asks for finer progress.
+     */
     public static final long MIN_PROGRESS_TIME = 1000;
 
+    /** The finest progress interval a subscriber can ask for, in ms */
+    public static final long MIN_PROGRESS_INTERVAL = 100;
+
+    /**
+     * The number of downloads whose live progress can be read from the
+     * progress table at the same time. Others are only visible in the database.
+     */
+    public static final int MAX_PROGRESS_SLOTS = 64;
+
+    /**
+     * Progress reports of all downloads are merged and written to the
+     * database in one transaction at this interval, in ms.
+     */
+    public static final long PROGRESS_FLUSH_TIME = 1000;
+
+    /**
+     * The maximum number of database/broadcast operations waiting for the
+     * persistence thread. Download threads wait when it is full; status,
+     * control and progress messages, and the main and persistence threads,
+     * never wait and may go over it.
+     */
+    public static final int MAX_PENDING_MESSAGES = 256;
+
+    /**
+     * When cross-process broadcasts are enabled, progress of a single download
+     * is broadcast at most once per this interval, in ms. Status changes are
+     * always broadcast.
+     */
+    public static final long MIN_BROADCAST_PROGRESS_TIME = 3000;
+
+    /**
+     * The initial number of parallel connections used for a segmented
+     * download, when the server supports byte ranges. The concurrency
+     * controller moves it between 1 and SEGMENT_COUNT_CEILING as throughput
+     * is measured.
+     */
+    public static final int SEGMENT_COUNT = 4;
+
+    /** The most connections the concurrency controller gives one segmented download */
+    public static final int SEGMENT_COUNT_CEILING = 8;
+
+    /**
+     * The minimum size of a single segment. Files smaller than twice this size
+     * are always downloaded through a single connection.
+     */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * A running range is only split for an idle connection when both halves
+     * would be at least this big.
+     */
+    public static final long MIN_SPLIT_SIZE = 256 * 1024;
+
+    /**
+     * The initial number of downloads running at the same time. Others wait
+     * in the queue with STATUS_PENDING. The concurrency controller moves it
+     * between 1 and MAX_ACTIVE_DOWNLOADS_CEILING as throughput is measured.
+     */
+    public static final int MAX_ACTIVE_DOWNLOADS = 3;
+
+    /** The most downloads the concurrency controller lets run at the same time */
+    public static final int MAX_ACTIVE_DOWNLOADS_CEILING = 8;
+
+    /**
+     * The maximum number of downloads from a single host running at the same
+     * time, so that one server isn't hit by all of them.
+     */
+    public static final int MAX_ACTIVE_DOWNLOADS_PER_HOST = 2;
+
+    /** The number of event loop threads of the NIO download engine */
+    public static final int NIO_EVENT_LOOPS = 2;
+
+    /** The maximum number of pooled connections kept open by all downloads */
+    public static final int MAX_CONNECTIONS_TOTAL = 16;
+
+    /**
+     * The maximum number of connections to a single host, enough for one
+     * segmented download plus a couple of others from the same server.
+     */
+    public static final int MAX_CONNECTIONS_PER_ROUTE = SEGMENT_COUNT_CEILING + 2;
+
+    /** Pooled connections idle for longer than this are closed, in ms */
+    public static final long IDLE_CONNECTION_TIMEOUT = 30 * 1000;
+
     /**
      * The number of times that the download manager will retry its network
      * operations when no progress is happening before it gives up.
@@ -33,6 +132,17 @@ public class Constants {
      */
     public static final int MAX_RETRY_AFTER = 24 * 60 * 60; // 24h
 
+    /**
+     * The delay before the first retry of a download that failed without a
+     * Retry-After from the server, in seconds. Every further failure doubles
+     * it, up to MAX_RETRY_BACKOFF, and a random part is taken off so that
+     * downloads that failed together don't retry together.
+     */
+    public static final int RETRY_FIRST_DELAY = 10; // 10s
+
+    /** The longest delay between retries without a Retry-After, in seconds */
+    public static final int MAX_RETRY_BACKOFF = 30 * 60; // 30min
+
     /**
      * The maximum number of redirects.
      */
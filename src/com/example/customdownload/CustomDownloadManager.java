@@ -1,12 +1,10 @@
 package com.example.customdownload;
 
-import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.util.Log;
@@ -16,39 +14,11 @@ public class CustomDownloadManager {
 	
 	private Context mContext = null;
 	private CustomDownloadService mCustomDownloadService = null;
-	private DownloadStatusBroadcastReceiver mDownloadStatusBroadcastReceiver = null;
-	private ArrayList<DownloadObserver> mDownloadObserverList = null;
 	
 	private static class CustomDownloadManagerHolder {
 		private static final CustomDownloadManager mInstance = new CustomDownloadManager();
 	}
 	
-	//下载状态改变监听者
-	private class DownloadStatusBroadcastReceiver extends BroadcastReceiver {
-		@Override
-		public void onReceive(Context arg0, Intent arg1) {
-			Log.d(TAG, "DownloadStatusBroadcastReceiver:onReceiver: Enter");
-			int type = arg1.getIntExtra(DownloadMsgHandler.BROADCAST_TYPE, -1);
-			Log.d(TAG, "DownloadStatusBroadcastReceiver:onReceiver: type = " + type);
-			
-			switch (type) {
-			case DownloadMsgHandler.MSG_PROGRESS:
-				long totalBytes = arg1.getLongExtra(DownloadMsgHandler.BROADCAST_TOTAL_BYTES, 0);
-				long currentBytes = arg1.getLongExtra(DownloadMsgHandler.BROADCAST_CURRENT_BYTES, 0);
-				Log.d(TAG, "DownloadStatusBroadcastReceiver:onReceiver: totalBytes = " + totalBytes + ", currentBytes = " + currentBytes);
-				for (DownloadObserver downloadObserver : mDownloadObserverList) {
-					downloadObserver.onProgressChanged(currentBytes, totalBytes);
-				}
-				break;
-			case DownloadMsgHandler.MSG_STATUS:
-				int taskStatus = arg1.getIntExtra(DownloadMsgHandler.BROADCAST_STATUS, 0);
-				for (DownloadObserver downloadObserver : mDownloadObserverList) {
-					downloadObserver.onStatusChanged(taskStatus);
-				}
-			}
-		}		
-	}
-	
 	private CustomDownloadManager() {
 		
 	}
@@ -65,18 +35,9 @@ public class CustomDownloadManager {
 		if (null == mContext) {
 			mContext = context.getApplicationContext();
 			
-			//初始化下载监听者
-			mDownloadObserverList = new ArrayList<DownloadObserver>();
-			
 			//初始化数据库工具类
 			DownloadDatabaseHelper.getInstance().init(mContext);
 			
-			//注册下载状态改变监听者
-			mDownloadStatusBroadcastReceiver = new DownloadStatusBroadcastReceiver();
-			IntentFilter intentFilter = new IntentFilter();
-			intentFilter.addAction("com.example.customdownloadmanager.ACTION_DOWNLOAD_CHANGED");
-			mContext.registerReceiver(mDownloadStatusBroadcastReceiver, intentFilter);
-			
 			bindService();
 		}		
 	}
@@ -85,18 +46,34 @@ public class CustomDownloadManager {
 	 * 反初始化
 	 */
 	public void uninit() {
-		//反注册下载状态改变监听者
-		mContext.unregisterReceiver(mDownloadStatusBroadcastReceiver);
+		//监听者都在DownloadEventBus里，不再注册广播接收者，这里没有要释放的
 	}
 	
 	/**
-	 * 添加下载监听者
+	 * 添加下载监听者，在主线程回调
 	 * @param downloadObserver
 	 */
 	public void addDownloadObserver(DownloadObserver downloadObserver) {
-		if (!mDownloadObserverList.contains(downloadObserver)) {
-			mDownloadObserverList.add(downloadObserver);
-		}
+		addDownloadObserver(downloadObserver, DownloadEventBus.MAIN_THREAD);
+	}
+	
+	/**
+	 * 添加下载监听者
+	 * @param downloadObserver
+	 * @param executor 回调所在的线程
+	 */
+	public void addDownloadObserver(DownloadObserver downloadObserver, Executor executor) {
+		DownloadEventBus.getInstance().subscribe(downloadObserver, executor);
+	}
+	
+	/**
+	 * 添加下载监听者，按自己的粒度接收进度，比如显示中的进度条用ProgressGranularity.time(100)，后台同步用ProgressGranularity.percent(1)
+	 * @param downloadObserver
+	 * @param executor 回调所在的线程
+	 * @param granularity 进度粒度
+	 */
+	public void addDownloadObserver(DownloadObserver downloadObserver, Executor executor, ProgressGranularity granularity) {
+		DownloadEventBus.getInstance().subscribe(downloadObserver, executor, granularity);
 	}
 	
 	/**
@@ -104,8 +81,35 @@ public class CustomDownloadManager {
 	 * @param downloadObserver
 	 */
 	public void removeDownloadObserver(DownloadObserver downloadObserver) {
-		if (mDownloadObserverList.contains(downloadObserver)) {
-			mDownloadObserverList.remove(downloadObserver);
+		DownloadEventBus.getInstance().unsubscribe(downloadObserver);
+	}
+	
+	/**
+	 * 不经过数据库读一个正在下载的任务的实时进度，不加锁也不分配对象，适合轮询
+	 * @param id
+	 * @param out 长度至少ProgressTable.FIELD_COUNT，按ProgressTable.FIELD_*的下标填任务ID、总大小、已下载大小、状态
+	 * @return 任务没有在下载时返回false，这时从数据库读
+	 */
+	public boolean getLiveProgress(long id, long[] out) {
+		return ProgressTable.getInstance().read(id, out);
+	}
+	
+	/**
+	 * 读所有正在下载的任务的实时进度
+	 * @param out 长度至少ProgressTable.getInstance().getCapacity() * ProgressTable.FIELD_COUNT
+	 * @return 任务数，第i个任务从i * ProgressTable.FIELD_COUNT开始
+	 */
+	public int getLiveProgressSnapshot(long[] out) {
+		return ProgressTable.getInstance().snapshot(out);
+	}
+	
+	/**
+	 * 设置是否同时发跨进程广播(ACTION_DOWNLOAD_CHANGED)，本进程的监听者不需要打开
+	 * @param enabled
+	 */
+	public void setBroadcastEnabled(boolean enabled) {
+		if (null != mCustomDownloadService) {
+			mCustomDownloadService.setBroadcastEnabled(enabled);
 		}
 	}
 	
@@ -119,6 +123,23 @@ public class CustomDownloadManager {
 		}
 	}
 	
+	/**
+	 * 设置下载完成后的校验，要在开始下载前设置
+	 * @param id
+	 * @param hashAlgorithm DownloadDigest.MD5/SHA1/SHA256
+	 * @param expectedHash 十六进制的摘要，为null时只计算摘要
+	 * @return
+	 */
+	public long setExpectedHash(long id, String hashAlgorithm, String expectedHash) {
+		Log.d(TAG, "setExpectedHash: id = " + id);
+		
+		if (null != mCustomDownloadService) {
+			return mCustomDownloadService.setExpectedHash(id, hashAlgorithm, expectedHash);
+		} else {
+			return -1;
+		}
+	}
+	
 	public long startTask(long id) {
 		Log.d(TAG, "startTask: id = " + id);
 		
@@ -129,6 +150,38 @@ public class CustomDownloadManager {
 		}
 	}
 	
+	/**
+	 * 按指定的优先级开始下载，没有空闲名额时排队
+	 * @param id
+	 * @param priority Downloads.PRIORITY_*
+	 * @return
+	 */
+	public long startTask(long id, int priority) {
+		Log.d(TAG, "startTask: id = " + id + ", priority = " + priority);
+		
+		if (null != mCustomDownloadService) {
+			return mCustomDownloadService.startTask(id, priority);
+		} else {
+			return -1;
+		}
+	}
+	
+	/**
+	 * 修改任务排队的优先级
+	 * @param id
+	 * @param priority Downloads.PRIORITY_*
+	 * @return
+	 */
+	public long setTaskPriority(long id, int priority) {
+		Log.d(TAG, "setTaskPriority: id = " + id + ", priority = " + priority);
+		
+		if (null != mCustomDownloadService) {
+			return mCustomDownloadService.setTaskPriority(id, priority);
+		} else {
+			return -1;
+		}
+	}
+	
 	public long pauseTask(long id) {
 		Log.d(TAG, "pauseTask: id = " + id);
 		
@@ -159,6 +212,64 @@ public class CustomDownloadManager {
 		}
 	}
 	
+	/**
+	 * 设置之后开始的下载使用的引擎
+	 * @param engineMode Downloads.ENGINE_*
+	 */
+	public void setEngineMode(int engineMode) {
+		if (null != mCustomDownloadService) {
+			mCustomDownloadService.setEngineMode(engineMode);
+		}
+	}
+	
+	/**
+	 * 设置之后开始的下载读网络大小的上限
+	 * @param maxBufferSize 小于Constants.BUFFER_SIZE时按Constants.BUFFER_SIZE
+	 */
+	public void setMaxBufferSize(int maxBufferSize) {
+		if (null != mCustomDownloadService) {
+			mCustomDownloadService.setMaxBufferSize(maxBufferSize);
+		}
+	}
+	
+	/**
+	 * 获取正在下载或者最近一次下载的传输统计，包括缓冲大小、读写次数和传输方式。
+	 * 返回的是快照，不会随下载变化，也不能用来改下载
+	 * @param id
+	 * @return
+	 */
+	public TransferStats getTransferStats(long id) {
+		if (null != mCustomDownloadService) {
+			return mCustomDownloadService.getTransferStats(id);
+		} else {
+			return null;
+		}
+	}
+	
+	/**
+	 * 获取并发控制器，查看同时下载的任务数上限、分段数、总速度和各种决策的次数
+	 * @return 服务还没连上时返回null
+	 */
+	public ConcurrencyController getConcurrencyController() {
+		if (null != mCustomDownloadService) {
+			return mCustomDownloadService.getConcurrencyController();
+		} else {
+			return null;
+		}
+	}
+	
+	/**
+	 * 获取任务登记表，查看暂停、取消、删除到下载线程结束的平均和最长时间
+	 * @return 服务还没连上时返回null
+	 */
+	public TaskRegistry getTaskRegistry() {
+		if (null != mCustomDownloadService) {
+			return mCustomDownloadService.getTaskRegistry();
+		} else {
+			return null;
+		}
+	}
+	
 	private void bindService() {
 		Log.d(TAG, "bindService: Enter");
 		if (null == mCustomDownloadService) {
@@ -1,10 +1,13 @@
 package com.example.customdownload;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Service;
 import android.content.ContentValues;
@@ -18,15 +21,17 @@ public class CustomDownloadService extends Service {
 	private static final String TAG = CustomDownloadService.class.getSimpleName();
     
     private ThreadPoolExecutor mThreadPool;
-    private Map<Long, ThreadInfo> mThreadInfoMap;
+    private TaskRegistry mTaskRegistry;	//所有任务的状态和最近一次下载的线程信息
     private DownloadMsgHandler mDownloadMsgHandler;
+    private DownloadHttpClient mHttpClient;	//所有任务共享的HTTP客户端
+    private NioDownloadEngine mNioEngine = null;	//NIO下载引擎，用到时才创建
+    private SharedProgressFile mSharedProgressFile = null;	//给其他进程读的实时进度文件
+    private DownloadQueue mDownloadQueue;	//限制同时下载的任务数，其他任务排队
+    private ConcurrencyController mConcurrencyController;	//按实测速度调整同时下载的任务数和分段数
+    private RetryScheduler mRetryScheduler;	//等待重试的任务到时间后重新排队
+    private int mEngineMode = Downloads.ENGINE_THREADED;
+    private volatile int mMaxBufferSize = Constants.MAX_BUFFER_SIZE;	//之后开始的下载读网络大小的上限
     
-    //存储线程信息
-    public class ThreadInfo {
-    	public DownloadRunnable downloadRunnable;
-    	public Future<?> future;
-    }
-	
 	//自定义的Binder类
 	public class ServiceBinder extends Binder {
 		public CustomDownloadService getService() {
@@ -40,8 +45,58 @@ public class CustomDownloadService extends Service {
 		Log.d(TAG, "onCreate: Enter");
 		
 		mThreadPool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-		mThreadInfoMap = new HashMap<Long, ThreadInfo>();
+		mTaskRegistry = new TaskRegistry();
 		mDownloadMsgHandler = new DownloadMsgHandler(this);
+		mHttpClient = new DownloadHttpClient(getApplicationContext());
+		mDownloadQueue = new DownloadQueue(Constants.MAX_ACTIVE_DOWNLOADS, Constants.MAX_ACTIVE_DOWNLOADS_PER_HOST, new DownloadQueue.Starter() {
+			@Override
+			public void start(long taskId) {
+				runTask(taskId);
+			}
+		});
+		mConcurrencyController = new ConcurrencyController(mDownloadQueue);
+		mConcurrencyController.start();
+		mRetryScheduler = new RetryScheduler(new RetryScheduler.Listener() {
+			@Override
+			public void onRetry(long taskId) {
+				retryTask(taskId);
+			}
+		});
+		
+		// other processes of the app poll progress from the mapped file
+		try {
+			mSharedProgressFile = SharedProgressFile.create(SharedProgressFile.getFile(this), Constants.MAX_PROGRESS_SLOTS);
+			ProgressTable.getInstance().setMirror(mSharedProgressFile);
+		} catch (IOException ex) {
+			Log.w(TAG, "onCreate: couldn't create the shared progress file: " + ex);
+		}
+		
+		restoreQueue();
+	}
+	
+	/**
+	 * 上次服务退出时还在排队或者在下载的任务按原来的优先级和进入队列的时间重新排队，
+	 * 等待重试的任务按保存的重试时间重新安排
+	 */
+	private void restoreQueue() {
+		DownloadDatabaseHelper databaseHelper = DownloadDatabaseHelper.getInstance();
+		List<TaskInfo> taskInfoList = new ArrayList<TaskInfo>(databaseHelper.getTaskInfoListByStatus(Downloads.STATUS_PENDING));
+		taskInfoList.addAll(databaseHelper.getTaskInfoListByStatus(Downloads.STATUS_RUNNING));
+		Log.d(TAG, "restoreQueue: count = " + taskInfoList.size());
+		for (TaskInfo taskInfo : taskInfoList) {
+			mTaskRegistry.obtain(taskInfo.getId()).transition(Downloads.STATUS_PENDING);
+			if (taskInfo.getTaskStatus() != Downloads.STATUS_PENDING) {
+				mDownloadMsgHandler.sendStatusChanged(taskInfo.getId(), 0, Downloads.STATUS_PENDING);
+			}
+			mDownloadQueue.enqueue(taskInfo.getId(), taskInfo.getPriority(), taskInfo.getQueuedTime(), taskInfo.getTaskUri());
+		}
+		
+		long now = System.currentTimeMillis();
+		for (TaskInfo taskInfo : databaseHelper.getTaskInfoListByStatus(Downloads.STATUS_WAITING_TO_RETRY)) {
+			long delay = taskInfo.getRetryTime() > 0 ? Math.max(taskInfo.getRetryTime() - now, 0) : Helpers.getRetryBackoff(taskInfo.getNumFailed());
+			mTaskRegistry.obtain(taskInfo.getId()).transition(Downloads.STATUS_WAITING_TO_RETRY);
+			mRetryScheduler.schedule(taskInfo.getId(), delay);
+		}
 	}
 	
 	@Override
@@ -54,6 +109,34 @@ public class CustomDownloadService extends Service {
 	public void onDestroy() {
 		super.onDestroy();
 		Log.d(TAG, "onDestroy: Enter");
+		
+		mConcurrencyController.stop();
+		mRetryScheduler.quit();
+		mDownloadMsgHandler.quit();
+		mHttpClient.shutdown();
+		if (null != mNioEngine) {
+			mNioEngine.shutdown();
+		}
+		if (null != mSharedProgressFile) {
+			ProgressTable.getInstance().setMirror(null);
+			mSharedProgressFile.close();
+		}
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		Log.d(TAG, "onTrimMemory: level = " + level);
+		
+		DownloadBufferPool.getInstance().trimMemory(level);
+	}
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		Log.d(TAG, "onLowMemory: Enter");
+		
+		DownloadBufferPool.getInstance().clear();
 	}
 
 	@Override
@@ -62,6 +145,82 @@ public class CustomDownloadService extends Service {
 		return new ServiceBinder();
 	}
 	
+	/**
+	 * 设置之后开始的下载使用的引擎，已经开始的下载不受影响
+	 * @param engineMode Downloads.ENGINE_*
+	 */
+	public void setEngineMode(int engineMode) {
+		Log.d(TAG, "setEngineMode: engineMode = " + engineMode);
+		mEngineMode = engineMode;
+	}
+	
+	/**
+	 * 设置之后开始的下载读网络大小的上限，实际读大小根据吞吐在Constants.BUFFER_SIZE和这个上限之间调整
+	 * @param maxBufferSize
+	 */
+	public void setMaxBufferSize(int maxBufferSize) {
+		Log.d(TAG, "setMaxBufferSize: maxBufferSize = " + maxBufferSize);
+		mMaxBufferSize = maxBufferSize;
+	}
+	
+	/**
+	 * 设置是否同时发跨进程广播
+	 * @param enabled
+	 */
+	public void setBroadcastEnabled(boolean enabled) {
+		Log.d(TAG, "setBroadcastEnabled: enabled = " + enabled);
+		mDownloadMsgHandler.setBroadcastEnabled(enabled);
+	}
+	
+	/**
+	 * 获取正在下载或者最近一次下载的传输统计的快照
+	 * @param taskId
+	 * @return 任务没有启动过时返回null
+	 */
+	public TransferStats getTransferStats(long taskId) {
+		TaskRegistry.Task task = mTaskRegistry.get(taskId);
+		DownloadInfo downloadInfo = null == task ? null : task.mDownloadInfo;
+		if (null == downloadInfo) {
+			return null;
+		}
+		return new TransferStats(downloadInfo);
+	}
+	
+	/**
+	 * 获取并发控制器，用来查看当前的名额、分段数、总速度和决策次数
+	 * @return
+	 */
+	public ConcurrencyController getConcurrencyController() {
+		return mConcurrencyController;
+	}
+	
+	/**
+	 * 获取任务登记表，用来查看任务的状态和暂停、取消到下载线程结束的时间
+	 * @return
+	 */
+	public TaskRegistry getTaskRegistry() {
+		return mTaskRegistry;
+	}
+	
+	/**
+	 * 获取NIO下载引擎，没有选择NIO引擎时返回null
+	 * @return
+	 */
+	private NioDownloadEngine getNioEngine() {
+		if (mEngineMode != Downloads.ENGINE_NIO) {
+			return null;
+		}
+		if (null == mNioEngine) {
+			try {
+				mNioEngine = new NioDownloadEngine(getApplicationContext(), mDownloadMsgHandler, Constants.NIO_EVENT_LOOPS);
+			} catch (IOException ex) {
+				Log.e(TAG, "getNioEngine: couldn't open selector, fall back to threads: " + ex);
+				mEngineMode = Downloads.ENGINE_THREADED;
+			}
+		}
+		return mNioEngine;
+	}
+	
 	/**
 	 * 新建下载任务
 	 * @param url
@@ -94,37 +253,262 @@ public class CustomDownloadService extends Service {
 	}
 	
 	/**
-	 * 开始下载
+	 * 设置下载完成后的校验，下载时边写边算摘要，不一致时任务以STATUS_FILE_INTEGRITY_ERROR结束。
+	 * 要在开始下载前设置
+	 * @param taskId
+	 * @param hashAlgorithm DownloadDigest.MD5/SHA1/SHA256
+	 * @param expectedHash 十六进制的摘要，为null时只计算摘要，结果存在数据库里
+	 * @return
+	 */
+	public long setExpectedHash(long taskId, String hashAlgorithm, String expectedHash) {
+		Log.d(TAG, "setExpectedHash: taskId = " + taskId + ", hashAlgorithm = " + hashAlgorithm + ", expectedHash = " + expectedHash);
+		
+		ContentValues hashValues = new ContentValues();
+		hashValues.put(Downloads.COLUMN_HASH_ALGORITHM, hashAlgorithm);
+		hashValues.put(Downloads.COLUMN_EXPECTED_HASH, expectedHash);
+		return DownloadDatabaseHelper.getInstance().update(taskId, hashValues);
+	}
+	
+	/**
+	 * 开始下载，按任务原来的优先级排队
 	 * @param id
 	 * @return
 	 */
 	public long startTask(long taskId) {
-		Log.d(TAG, "startTask: taskId = " + taskId);
+		TaskInfo taskInfo = DownloadDatabaseHelper.getInstance().getTaskInfoById(taskId);
+		if (null == taskInfo) {
+			return -1;
+		}
+		return startTask(taskId, taskInfo.getPriority());
+	}
+	
+	/**
+	 * 开始下载，有空闲名额时马上开始，否则以STATUS_PENDING排队
+	 * @param taskId
+	 * @param priority Downloads.PRIORITY_*
+	 * @return
+	 */
+	public long startTask(long taskId, int priority) {
+		Log.d(TAG, "startTask: taskId = " + taskId + ", priority = " + priority);
+		
+		TaskRegistry.Task task = mTaskRegistry.obtain(taskId);
+		if (task.getState() == Downloads.STATUS_PAUSE_PENDING) {
+			// the pause has already aborted the requests of the running download, which would
+			// be reported as a network failure if it went on; start again once it has ended
+			task.requestRestart(priority);
+			if (task.getState() == Downloads.STATUS_PAUSE_PENDING || task.takeRestart() == TaskRegistry.NO_RESTART) {
+				// still stopping, or the end of the run already took the request
+				return 0;
+			}
+		}
+		if (task.getState() == Downloads.STATUS_PENDING) {
+			// already queued, it only changes its priority and keeps its place among equals
+			setTaskPriority(taskId, priority);
+			return 0;
+		}
+		
+		TaskInfo taskInfo = DownloadDatabaseHelper.getInstance().getTaskInfoById(taskId);
+		if (null == taskInfo || task.transition(Downloads.STATUS_PENDING) < 0) {
+			return -1;
+		}
+		
+		// started by the user, a task waiting to retry goes now and gets a fresh set of retries
+		mRetryScheduler.cancel(taskId);
+		
+		long queuedTime = System.currentTimeMillis();
+		ContentValues queueValues = new ContentValues();
+		queueValues.put(Downloads.COLUMN_PRIORITY, priority);
+		queueValues.put(Downloads.COLUMN_QUEUED_TIME, queuedTime);
+		queueValues.put(Downloads.COLUMN_FAILED_CONNECTIONS, 0);
+		queueValues.put(Downloads.COLUMN_RETRY_TIME, 0);
+		DownloadDatabaseHelper.getInstance().update(taskId, queueValues);
 		
 		//触发状态变化
-		mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_START_PENDING);
-
+		mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_PENDING);
+		
+		mDownloadQueue.enqueue(taskId, priority, queuedTime, taskInfo.getTaskUri());
+		
+		return 0;
+	}
+	
+	/**
+	 * 等待重试的任务到时间了，按原来的优先级重新排队，在RetryScheduler的线程里调用
+	 * @param taskId
+	 */
+	private void retryTask(long taskId) {
+		TaskRegistry.Task task = mTaskRegistry.get(taskId);
 		TaskInfo taskInfo = DownloadDatabaseHelper.getInstance().getTaskInfoById(taskId);
+		if (null == task || null == taskInfo || !task.compareAndSet(Downloads.STATUS_WAITING_TO_RETRY, Downloads.STATUS_PENDING)) {
+			return;
+		}
+		Log.d(TAG, "retryTask: taskId = " + taskId + ", numFailed = " + taskInfo.getNumFailed());
+		
+		long queuedTime = System.currentTimeMillis();
+		ContentValues queueValues = new ContentValues();
+		queueValues.put(Downloads.COLUMN_QUEUED_TIME, queuedTime);
+		queueValues.put(Downloads.COLUMN_RETRY_TIME, 0);
+		DownloadDatabaseHelper.getInstance().update(taskId, queueValues);
+		
+		mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_PENDING);
+		mDownloadQueue.enqueue(taskId, taskInfo.getPriority(), queuedTime, taskInfo.getTaskUri());
+	}
+	
+	/**
+	 * 一次下载结束后把任务转到结束状态，更新连续失败的次数，要重试的安排重试，在下载线程里调用
+	 * @param task
+	 * @param downloadInfo
+	 * @param startBytes 这次下载开始时的已下载大小
+	 */
+	private void onRunFinished(TaskRegistry.Task task, DownloadInfo downloadInfo, long startBytes) {
+		int status = downloadInfo.mStatus;
+		if (task.transition(status) < 0) {
+			int state = task.getState();
+			if (state == Downloads.STATUS_DELETE_PENDING) {
+				mTaskRegistry.remove(task);
+				return;
+			}
+			// a pause or cancel asked for while the run was failing wins over the retry
+			status = state == Downloads.STATUS_PAUSE_PENDING ? Downloads.STATUS_PAUSED : Downloads.STATUS_CANCELED;
+			task.transition(status);
+			mDownloadMsgHandler.sendStatusChanged(downloadInfo.mId, 0, status);
+		}
 		
-		DownloadInfo downloadInfo = new DownloadInfo(getApplicationContext(), taskInfo.getId());
+		int numFailed = downloadInfo.mNumFailed;
+		long retryTime = 0;
+		if (status == Downloads.STATUS_WAITING_TO_RETRY) {
+			// an attempt that got somewhere starts the count again
+			numFailed = downloadInfo.mBytesSoFar > startBytes ? 1 : numFailed + 1;
+			long delay = downloadInfo.mRetryAfter > 0 ? downloadInfo.mRetryAfter : Helpers.getRetryBackoff(numFailed);
+			retryTime = System.currentTimeMillis() + delay;
+			mRetryScheduler.schedule(downloadInfo.mId, delay);
+		} else if (status == Downloads.STATUS_SUCCESS) {
+			numFailed = 0;
+		}
+		Log.d(TAG, "onRunFinished: taskId = " + downloadInfo.mId + ", status = " + status + ", numFailed = " + numFailed);
+		mDownloadMsgHandler.sendRetryMessage(downloadInfo.mId, numFailed, retryTime);
+	}
+	
+	/**
+	 * 修改任务排队的优先级，正在下载的任务下次排队时生效
+	 * @param taskId
+	 * @param priority Downloads.PRIORITY_*
+	 * @return
+	 */
+	public long setTaskPriority(long taskId, int priority) {
+		Log.d(TAG, "setTaskPriority: taskId = " + taskId + ", priority = " + priority);
+		
+		ContentValues priorityValues = new ContentValues();
+		priorityValues.put(Downloads.COLUMN_PRIORITY, priority);
+		long result = DownloadDatabaseHelper.getInstance().update(taskId, priorityValues);
+		mDownloadQueue.setPriority(taskId, priority);
+		
+		return result;
+	}
+	
+	/**
+	 * 轮到任务时真正开始下载，结束时把名额还给队列
+	 * @param taskId
+	 */
+	private void runTask(final long taskId) {
+		Log.d(TAG, "runTask: taskId = " + taskId);
+		
+		final TaskRegistry.Task task = mTaskRegistry.obtain(taskId);
+		TaskInfo taskInfo = DownloadDatabaseHelper.getInstance().getTaskInfoById(taskId);
+		if (null == taskInfo) {
+			task.transition(Downloads.STATUS_UNKNOWN_ERROR);
+			mDownloadQueue.onFinished(taskId);
+			return;
+		}
+		
+		final DownloadInfo downloadInfo = new DownloadInfo(getApplicationContext(), taskInfo.getId());
 		downloadInfo.setUri(taskInfo.getTaskUri());
 		downloadInfo.setFileName(taskInfo.getFileName());
 		downloadInfo.setFilePath(taskInfo.getSavePath());
 		downloadInfo.setTotalBytes(taskInfo.getTotalBytes());
+		downloadInfo.setCurrentBytes(taskInfo.getCurrentBytes());
 		downloadInfo.setMimeType("application/octet-stream");
 		downloadInfo.setEtag(taskInfo.getEtag());
+		downloadInfo.setHash(taskInfo.getHashAlgorithm(), taskInfo.getExpectedHash());
+		downloadInfo.mMaxSegments = mConcurrencyController.getSegmentLimit();
+		downloadInfo.mNumFailed = taskInfo.getNumFailed();
+		downloadInfo.setMaxBufferSize(mMaxBufferSize);
 		
-		ThreadInfo threadInfo = mThreadInfoMap.get(taskId);
-		if (null == threadInfo || threadInfo.future.isDone() || threadInfo.future.isCancelled()) {
-			threadInfo = new ThreadInfo();
-			threadInfo.downloadRunnable = new DownloadRunnable(getApplicationContext(), mDownloadMsgHandler, downloadInfo);
-			threadInfo.future = mThreadPool.submit(threadInfo.downloadRunnable);
-			mThreadInfoMap.put(taskId, threadInfo);
-		} else {
-			threadInfo.downloadRunnable.setControl(Downloads.CONTROL_RUN);
+		// published before the task is running, so that a pause right after finds them
+		NioDownloadEngine nioEngine = getNioEngine();
+		boolean useNio = null != nioEngine && NioDownloadEngine.canHandle(downloadInfo);
+		final DownloadRunnable downloadRunnable = useNio ? null
+				: new DownloadRunnable(getApplicationContext(), mDownloadMsgHandler, downloadInfo, mThreadPool, mHttpClient.getClient());
+		task.mNioTask = null;
+		task.mDownloadRunnable = downloadRunnable;
+		task.mDownloadInfo = downloadInfo;
+		
+		if (!task.compareAndSet(Downloads.STATUS_PENDING, Downloads.STATUS_RUNNING)) {
+			// paused, canceled or deleted while it was being promoted
+			Log.d(TAG, "runTask: taskId = " + taskId + " left the queue, state = " + task.getState());
+			downloadInfo.mHasActiveThread = false;
+			mDownloadQueue.onFinished(taskId);
+			return;
 		}
 		
-		return 0;
+		//触发状态变化
+		mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_START_PENDING);
+		
+		final long startBytes = taskInfo.getCurrentBytes();
+		final Runnable onFinished = new Runnable() {
+			@Override
+			public void run() {
+				onRunFinished(task, downloadInfo, startBytes);
+				mDownloadQueue.onFinished(taskId);
+				// started again while the pause was taking effect; dropped if canceled or deleted since
+				int priority = task.takeRestart();
+				if (priority != TaskRegistry.NO_RESTART && task.getState() == Downloads.STATUS_PAUSED) {
+					startTask(taskId, priority);
+				}
+			}
+		};
+		if (useNio) {
+			// the callback runs in finish(), after the channel is closed and the progress saved
+			task.mNioTask = nioEngine.submit(downloadInfo, new Runnable() {
+				@Override
+				public void run() {
+					mTaskRegistry.onRunFinished(task);
+					onFinished.run();
+				}
+			});
+			task.mFuture = task.mNioTask;
+			// a control asked for before the task existed is checked on its event loop
+			task.applyControl();
+		} else {
+			// whoever flips it first hands the slot back: the run when it ends, or done() if canceled before starting
+			final AtomicBoolean claimed = new AtomicBoolean(false);
+			FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+				@Override
+				public void run() {
+					if (!claimed.compareAndSet(false, true)) {
+						return;
+					}
+					try {
+						downloadRunnable.run();
+					} finally {
+						// the download thread is really done here, this is what a pause or cancel waits for
+						mTaskRegistry.onRunFinished(task);
+						onFinished.run();
+					}
+				}
+			}, null) {
+				@Override
+				protected void done() {
+					// cancel() calls this right away, while a started run is still going
+					if (isCancelled() && claimed.compareAndSet(false, true)) {
+						// never ran, there is no stop to measure
+						mTaskRegistry.discardStopRequest(task);
+						onFinished.run();
+					}
+				}
+			};
+			task.mFuture = future;
+			mThreadPool.execute(future);
+		}
 	}
 	
 	/**
@@ -135,15 +519,33 @@ public class CustomDownloadService extends Service {
 	public long pauseTask(long taskId) {
 		Log.d(TAG, "pause: taskId = " + taskId);
 		
-		ThreadInfo threadInfo = mThreadInfoMap.get(taskId);
-		if (null == threadInfo) {
+		TaskRegistry.Task task = mTaskRegistry.get(taskId);
+		if (null == task) {
+			return -1;
+		}
+		if (task.compareAndSet(Downloads.STATUS_PENDING, Downloads.STATUS_PAUSED)) {
+			mDownloadQueue.remove(taskId);
+			mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_PAUSED);
+			return 0;
+		}
+		if (task.compareAndSet(Downloads.STATUS_WAITING_TO_RETRY, Downloads.STATUS_PAUSED)) {
+			mRetryScheduler.cancel(taskId);
+			mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_PAUSED);
+			return 0;
+		}
+		if (task.getState() == Downloads.STATUS_PAUSE_PENDING) {
+			// paused again before the first pause took effect, forget the start asked for in between
+			task.takeRestart();
+			return 0;
+		}
+		if (!task.compareAndSet(Downloads.STATUS_RUNNING, Downloads.STATUS_PAUSE_PENDING)) {
 			return -1;
-		}	
+		}
 		
 		//触发状态变化
 		mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_PAUSE_PENDING);
 		
-		threadInfo.downloadRunnable.setControl(Downloads.CONTROL_PAUSED);
+		task.applyControl();
 		
 		return 0;
 	}
@@ -156,15 +558,29 @@ public class CustomDownloadService extends Service {
 	public long cancelTask(long taskId) {
 		Log.d(TAG, "cancelTask: taskId = " + taskId);
 
-		ThreadInfo threadInfo = mThreadInfoMap.get(taskId);
-		if (null == threadInfo) {
+		TaskRegistry.Task task = mTaskRegistry.get(taskId);
+		if (null == task) {
+			return -1;
+		}
+		if (task.compareAndSet(Downloads.STATUS_PENDING, Downloads.STATUS_CANCELED)) {
+			mDownloadQueue.remove(taskId);
+			mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_CANCELED);
+			return 0;
+		}
+		if (task.compareAndSet(Downloads.STATUS_WAITING_TO_RETRY, Downloads.STATUS_CANCELED)) {
+			mRetryScheduler.cancel(taskId);
+			mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_CANCELED);
+			return 0;
+		}
+		if (!task.compareAndSet(Downloads.STATUS_RUNNING, Downloads.STATUS_CANCEL_PENDING)
+				&& !task.compareAndSet(Downloads.STATUS_PAUSE_PENDING, Downloads.STATUS_CANCEL_PENDING)) {
 			return -1;
 		}
 		
 		//触发状态变化
 		mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_CANCEL_PENDING);
 		
-		threadInfo.downloadRunnable.setControl(Downloads.CONTROL_CANCEL);
+		task.applyControl();
 		
 		return 0;
 	}
@@ -177,17 +593,39 @@ public class CustomDownloadService extends Service {
 	public long deleteTask(long taskId, boolean deleteFile) {
 		Log.d(TAG, "deleteTask: taskId = " + taskId + ", deleteFile = " + deleteFile);
 
-		ThreadInfo threadInfo = mThreadInfoMap.get(taskId);
-		if (null == threadInfo) {
+		TaskRegistry.Task task = mTaskRegistry.obtain(taskId);
+		int previous = task.transition(Downloads.STATUS_DELETE_PENDING);
+		if (previous < 0) {
 			return -1;
 		}
 		
 		//触发状态变化
 		mDownloadMsgHandler.sendStatusChanged(taskId, 0, Downloads.STATUS_DELETE_PENDING);
+		DownloadDigest.discard(taskId);
 		
-		threadInfo.downloadRunnable.setControl(Downloads.CONTROL_CANCEL);
-		threadInfo.future.cancel(true);
-		mThreadInfoMap.remove(threadInfo);
+		switch (previous) {
+		case Downloads.STATUS_RUNNING:
+		case Downloads.STATUS_PAUSE_PENDING:
+		case Downloads.STATUS_CANCEL_PENDING:
+			// the end of the run takes the task out of the registry
+			task.applyControl();
+			Future<?> future = task.mFuture;
+			if (null != future) {
+				future.cancel(true);
+			}
+			break;
+		case Downloads.STATUS_PENDING:
+			mDownloadQueue.remove(taskId);
+			mTaskRegistry.remove(task);
+			break;
+		case Downloads.STATUS_WAITING_TO_RETRY:
+			mRetryScheduler.cancel(taskId);
+			mTaskRegistry.remove(task);
+			break;
+		default:
+			mTaskRegistry.remove(task);
+			break;
+		}
 		
 		if (deleteFile) {
 			//(new File(downloadInfo.mFilePath)).delete();
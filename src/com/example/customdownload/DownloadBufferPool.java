@@ -0,0 +1,239 @@
+package com.example.customdownload;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+/**
+ * 所有下载任务共享的传输缓冲池。
+ * 按大小分级缓存byte[]和direct ByteBuffer，任务开始时借、用完归还，避免每个任务都重新分配。
+ * 池里缓存的总内存有上限，内存紧张时由Service的onTrimMemory/onLowMemory回调收缩。
+ */
+public class DownloadBufferPool {
+	private static final String TAG = DownloadBufferPool.class.getSimpleName();
+
+	/** 缓冲大小分级，申请时向上取整到最近的一级 */
+	private static final int[] SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+	/** 池里最多缓存的内存 */
+	public static final long MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+	private final List<Queue<byte[]>> mArrayPools;	//各级的byte[]
+	private final List<Queue<ByteBuffer>> mDirectPools;	//各级的direct ByteBuffer
+	private final AtomicLong mPooledBytes = new AtomicLong();	//池里缓存的内存
+	private final AtomicLong mBorrowedBytes = new AtomicLong();	//借出去还没还的内存
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+
+	private static class DownloadBufferPoolHolder {
+		private static final DownloadBufferPool mInstance = new DownloadBufferPool();
+	}
+
+	private DownloadBufferPool() {
+		mArrayPools = new ArrayList<Queue<byte[]>>(SIZE_CLASSES.length);
+		mDirectPools = new ArrayList<Queue<ByteBuffer>>(SIZE_CLASSES.length);
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			mArrayPools.add(new ConcurrentLinkedQueue<byte[]>());
+			mDirectPools.add(new ConcurrentLinkedQueue<ByteBuffer>());
+		}
+	}
+
+	/**
+	 * 获取DownloadBufferPool实例
+	 * @return
+	 */
+	public static DownloadBufferPool getInstance() {
+		return DownloadBufferPoolHolder.mInstance;
+	}
+
+	/**
+	 * 获取能容纳size的最小分级
+	 * @param size
+	 * @return 分级序号，超过最大一级时返回-1
+	 */
+	private static int getSizeClass(int size) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (size <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 借一个至少size大小的byte[]
+	 * @param size
+	 * @return
+	 */
+	public byte[] acquireArray(int size) {
+		int sizeClass = getSizeClass(size);
+		if (sizeClass < 0) {
+			// not pooled, but still borrowed until it comes back through releaseArray
+			mMisses.incrementAndGet();
+			mBorrowedBytes.addAndGet(size);
+			return new byte[size];
+		}
+
+		byte[] array = mArrayPools.get(sizeClass).poll();
+		if (null != array) {
+			mHits.incrementAndGet();
+			mPooledBytes.addAndGet(-array.length);
+		} else {
+			mMisses.incrementAndGet();
+			array = new byte[SIZE_CLASSES[sizeClass]];
+		}
+		mBorrowedBytes.addAndGet(array.length);
+		return array;
+	}
+
+	/**
+	 * 归还byte[]，池满或者大小不在分级里时直接丢弃
+	 * @param array
+	 */
+	public void releaseArray(byte[] array) {
+		if (null == array) {
+			return;
+		}
+		mBorrowedBytes.addAndGet(-array.length);
+		int sizeClass = getSizeClass(array.length);
+		if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != array.length || !reserve(array.length)) {
+			return;
+		}
+		mArrayPools.get(sizeClass).offer(array);
+	}
+
+	/**
+	 * 借一个至少size大小的direct ByteBuffer，position为0，limit为size
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer acquireDirect(int size) {
+		int sizeClass = getSizeClass(size);
+		if (sizeClass < 0) {
+			mMisses.incrementAndGet();
+			mBorrowedBytes.addAndGet(size);
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		ByteBuffer buffer = mDirectPools.get(sizeClass).poll();
+		if (null != buffer) {
+			mHits.incrementAndGet();
+			mPooledBytes.addAndGet(-buffer.capacity());
+			buffer.clear();
+		} else {
+			mMisses.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+		}
+		mBorrowedBytes.addAndGet(buffer.capacity());
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * 归还direct ByteBuffer，池满或者大小不在分级里时直接丢弃
+	 * @param buffer
+	 */
+	public void releaseDirect(ByteBuffer buffer) {
+		if (null == buffer) {
+			return;
+		}
+		mBorrowedBytes.addAndGet(-buffer.capacity());
+		int sizeClass = getSizeClass(buffer.capacity());
+		if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.capacity() || !reserve(buffer.capacity())) {
+			return;
+		}
+		mDirectPools.get(sizeClass).offer(buffer);
+	}
+
+	/**
+	 * 在池的内存上限内占用size大小
+	 * @param size
+	 * @return 超过上限时返回false
+	 */
+	private boolean reserve(int size) {
+		if (mPooledBytes.addAndGet(size) > MAX_POOLED_BYTES) {
+			mPooledBytes.addAndGet(-size);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 响应系统的内存紧张回调，后台或者内存很紧张时清空，否则释放一半
+	 * @param level ComponentCallbacks2.TRIM_MEMORY_*
+	 */
+	public void trimMemory(int level) {
+		Log.d(TAG, "trimMemory: level = " + level + ", pooledBytes = " + mPooledBytes.get());
+
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			clear();
+			return;
+		}
+
+		long target = mPooledBytes.get() / 2;
+		for (int i = SIZE_CLASSES.length - 1; i >= 0 && mPooledBytes.get() > target; i--) {
+			byte[] array;
+			while (mPooledBytes.get() > target && (array = mArrayPools.get(i).poll()) != null) {
+				mPooledBytes.addAndGet(-array.length);
+			}
+			ByteBuffer buffer;
+			while (mPooledBytes.get() > target && (buffer = mDirectPools.get(i).poll()) != null) {
+				mPooledBytes.addAndGet(-buffer.capacity());
+			}
+		}
+	}
+
+	/**
+	 * 清空池里缓存的所有缓冲
+	 */
+	public void clear() {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			byte[] array;
+			while ((array = mArrayPools.get(i).poll()) != null) {
+				mPooledBytes.addAndGet(-array.length);
+			}
+			ByteBuffer buffer;
+			while ((buffer = mDirectPools.get(i).poll()) != null) {
+				mPooledBytes.addAndGet(-buffer.capacity());
+			}
+		}
+	}
+
+	/**
+	 * 获取池里缓存的内存
+	 * @return
+	 */
+	public long getPooledBytes() {
+		return mPooledBytes.get();
+	}
+
+	/**
+	 * 获取借出去还没还的内存
+	 * @return
+	 */
+	public long getBorrowedBytes() {
+		return mBorrowedBytes.get();
+	}
+
+	/**
+	 * 获取从池里直接借到的次数
+	 * @return
+	 */
+	public long getHitCount() {
+		return mHits.get();
+	}
+
+	/**
+	 * 获取需要新分配的次数
+	 * @return
+	 */
+	public long getMissCount() {
+		return mMisses.get();
+	}
+}
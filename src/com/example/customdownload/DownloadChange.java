@@ -0,0 +1,73 @@
+package com.example.customdownload;
+
+/**
+ * 一个任务的增量变化，只带变了的字段。
+ * 序列号由DownloadEventBus分配，全局递增。状态等字段在持久化线程发布，进度在下载线程发布，
+ * 所以只保证同一个任务的同一种字段按序列号顺序到达，监听者可以按字段丢掉比已经应用过的更旧的变化。
+ */
+public class DownloadChange {
+	public static final int FIELD_STATUS = 1 << 0;
+	public static final int FIELD_PROGRESS = 1 << 1;	//总大小和已下载大小
+	public static final int FIELD_URI = 1 << 2;
+	public static final int FIELD_HASH = 1 << 3;
+	public static final int FIELD_COUNT = 4;
+
+	public long mTaskId;
+	public long mSequence;
+	public int mFields;	//FIELD_*的组合
+	public int mStatus;
+	public long mTotalBytes;
+	public long mCurrentBytes;
+	public String mUri;
+	public String mHash;
+
+	public DownloadChange(long taskId, long sequence, int fields) {
+		mTaskId = taskId;
+		mSequence = sequence;
+		mFields = fields;
+	}
+
+	/**
+	 * 判断某个字段有没有变化
+	 * @param field FIELD_*
+	 * @return
+	 */
+	public boolean has(int field) {
+		return (mFields & field) != 0;
+	}
+
+	/**
+	 * 把变化应用到任务信息
+	 * @param taskInfo
+	 */
+	public void applyTo(TaskInfo taskInfo) {
+		applyTo(taskInfo, mFields);
+	}
+
+	/**
+	 * 把变化的一部分字段应用到任务信息
+	 * @param taskInfo
+	 * @param fields FIELD_*的组合
+	 */
+	public void applyTo(TaskInfo taskInfo, int fields) {
+		fields &= mFields;
+		if ((fields & FIELD_STATUS) != 0) {
+			taskInfo.setTaskStatus(mStatus);
+		}
+		if ((fields & FIELD_PROGRESS) != 0) {
+			taskInfo.setTotalBytes(mTotalBytes);
+			taskInfo.setCurrentBytes(mCurrentBytes);
+		}
+		if ((fields & FIELD_URI) != 0) {
+			taskInfo.setTaskUri(mUri);
+		}
+		if ((fields & FIELD_HASH) != 0) {
+			taskInfo.setHash(mHash);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DownloadChange: taskId = " + mTaskId + ", sequence = " + mSequence + ", fields = " + mFields;
+	}
+}
@@ -1,6 +1,8 @@
 package com.example.customdownload;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -8,7 +10,9 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
 
 public class DownloadDatabaseHelper {
@@ -17,14 +21,81 @@ public class DownloadDatabaseHelper {
 	/** Database filename */
     public static final String DB_NAME = "downloads.db";
     /** Current database version */
-    public static final int DB_VERSION = 1;
+    public static final int DB_VERSION = 5;
     /** Name of table in the database */
     public static final String DB_TABLE = "downloads";
+    /** Name of the table holding the resume state of segmented downloads */
+    public static final String SEGMENTS_TABLE = "download_segments";
 
     private static DownloadDatabaseHelper mInstance = null;
     
     private DBOpenHelper mDBOpenHelper;
     private SQLiteDatabase mSQLiteDatabase;
+    private SQLiteStatement mProgressStatement = null;	//预编译的更新进度语句
+    private final TaskInfoCache mTaskCache = new TaskInfoCache();	//任务信息缓存，写操作都在this锁里先写数据库再写缓存
+	
+	/**
+	 * 一次数据库升级，把数据库从mToVersion - 1升到mToVersion。
+	 * 新建数据库时先建版本1的表再依次执行所有升级，所以新建的和升级上来的数据库完全一样
+	 */
+	private static abstract class Migration {
+		final int mToVersion;
+		
+		Migration(int toVersion) {
+			mToVersion = toVersion;
+		}
+		
+		abstract void migrate(SQLiteDatabase db);
+	}
+	
+	/** 所有升级，按版本顺序，最后一个的版本等于DB_VERSION */
+	private static final Migration[] MIGRATIONS = {
+		new Migration(2) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				addColumn(db, Downloads.COLUMN_HASH_ALGORITHM, "TEXT");
+				addColumn(db, Downloads.COLUMN_EXPECTED_HASH, "TEXT");
+				addColumn(db, Downloads.COLUMN_HASH, "TEXT");
+			}
+		},
+		new Migration(3) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_status ON " + DB_TABLE + "(" + Downloads.COLUMN_STATUS + ")");
+				db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_lastmod ON " + DB_TABLE + "(" + Downloads.COLUMN_LAST_MODIFICATION + ")");
+				db.execSQL("DROP TABLE IF EXISTS " + SEGMENTS_TABLE);
+				db.execSQL("CREATE TABLE " + SEGMENTS_TABLE + "("
+					+ Downloads._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+					+ Downloads.COLUMN_SEGMENT_TASK_ID + " INTEGER NOT NULL, "
+					+ Downloads.COLUMN_SEGMENT_INDEX + " INTEGER NOT NULL, "
+					+ Downloads.COLUMN_SEGMENT_START_BYTE + " INTEGER, "
+					+ Downloads.COLUMN_SEGMENT_END_BYTE + " INTEGER, "
+					+ Downloads.COLUMN_SEGMENT_CURRENT_BYTES + " INTEGER, "
+					+ "UNIQUE(" + Downloads.COLUMN_SEGMENT_TASK_ID + ", " + Downloads.COLUMN_SEGMENT_INDEX + "));");
+			}
+		},
+		new Migration(4) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				addColumn(db, Downloads.COLUMN_PRIORITY, "INTEGER NOT NULL DEFAULT " + Downloads.PRIORITY_NORMAL);
+				addColumn(db, Downloads.COLUMN_QUEUED_TIME, "BIGINT");
+			}
+		},
+		new Migration(5) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				addColumn(db, Downloads.COLUMN_FAILED_CONNECTIONS, "INTEGER NOT NULL DEFAULT 0");
+				addColumn(db, Downloads.COLUMN_RETRY_TIME, "BIGINT NOT NULL DEFAULT 0");
+			}
+		},
+	};
+	
+	/**
+	 * Adds a column to the downloads table.
+	 */
+	private static void addColumn(SQLiteDatabase db, String columnName, String columnDefinition) {
+		db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN " + columnName + " " + columnDefinition);
+	}
 	
 	/**
      * Creates and updated database on demand when opening it. Helper class to
@@ -46,6 +117,7 @@ public class DownloadDatabaseHelper {
 		    Log.d(TAG, "DBOpenHelper:onCreate: Enter");
 		    
 		    createDownloadsTable(db);
+		    migrate(db, 1, DB_VERSION);
 		}
 
 		/**
@@ -58,10 +130,25 @@ public class DownloadDatabaseHelper {
 		@Override
 		public void onUpgrade(final SQLiteDatabase db, int oldVer, final int newVer) {
 			Log.d(TAG, "DBOpenHelper:onUpgrade: oldVer = " + oldVer + ", newVer = " + newVer);
+			
+			migrate(db, oldVer, newVer);
+		}
+		
+		/**
+		 * Runs the migrations between two versions, in order. SQLiteOpenHelper
+		 * already wraps them in one transaction.
+		 */
+		private void migrate(SQLiteDatabase db, int oldVer, int newVer) {
+			for (Migration migration : MIGRATIONS) {
+				if (migration.mToVersion > oldVer && migration.mToVersion <= newVer) {
+					Log.d(TAG, "DBOpenHelper:migrate: to version " + migration.mToVersion);
+					migration.migrate(db);
+				}
+			}
 		}
 
 		/**
-		 * Creates the table that'll hold the download information.
+		 * Creates the table that'll hold the download information, as of version 1.
 		 */
 		private void createDownloadsTable(SQLiteDatabase db) {
 			Log.d(TAG, "DBOpenHelper:createDownloadsTable: Enter");
@@ -113,6 +200,19 @@ public class DownloadDatabaseHelper {
 	public void init(Context context) {
 		mDBOpenHelper = new DBOpenHelper(context);
 		mSQLiteDatabase = mDBOpenHelper.getWritableDatabase();
+		// readers no longer wait for the progress transactions; WAL needs API 11, older devices keep the rollback journal
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			mSQLiteDatabase.enableWriteAheadLogging();
+		}
+		reloadCache();
+	}
+	
+	/**
+	 * 从数据库重新加载任务信息缓存
+	 */
+	private synchronized void reloadCache() {
+		mTaskCache.load(loadTaskInfoList());
+		Log.d(TAG, "reloadCache: size = " + mTaskCache.size());
 	}
 	
 	/**
@@ -122,141 +222,122 @@ public class DownloadDatabaseHelper {
 	public ArrayList<Long> getTaskIdList() {
 		Log.d(TAG, "getTaskIdList: Enter");
 		
-		String[] column = {Downloads._ID};
-		Cursor cursor = query(false, DB_TABLE, column, null, null, null, null, null, null);
-		if (null == cursor) {
-			Log.d(TAG, "getTaskIdList: cursor = null");
-			return null;
-		}
-		
-		int count = cursor.getCount();
-		Log.d(TAG, "getTaskIdList: cursor's count = " + count);
-		if (0 == count) {
+		ArrayList<TaskInfo> taskInfoList = mTaskCache.getAll();
+		if (taskInfoList.isEmpty()) {
 			return null;
 		}
 		
-		int columnCount = cursor.getColumnCount();
-		Log.d(TAG, "getTaskIdList: columnCount = " + columnCount);
-		ArrayList<Long> taskIdList = new ArrayList<Long>();
-		String columnName;
-		long id;
-		while(cursor.moveToNext()) {
-			for (int i = 0; i < columnCount; i++) {
-				columnName = cursor.getColumnName(i);
-				id = cursor.getLong(i);
-				Log.d(TAG, "getTaskIdList: i = " + i + ", columnName = " + columnName + ", id = " + id);
-				taskIdList.add(id);
-			}
+		ArrayList<Long> taskIdList = new ArrayList<Long>(taskInfoList.size());
+		for (TaskInfo taskInfo : taskInfoList) {
+			taskIdList.add(taskInfo.getId());
 		}
-		
 		return taskIdList;
 	}
 	
 	/**
-	 * 获取所有下载任务的任务信息
-	 * @return
+	 * 获取所有下载任务的任务信息，从缓存读，按创建顺序
+	 * @return 返回的是副本，没有任务时返回null
 	 */
 	public ArrayList<TaskInfo> getTaskInfoList() {
-		Log.d(TAG, "getTaskInfoList: Enter");
-		
-		Cursor cursor = query(false, DB_TABLE, null, null, null, null, null, null, null);
-		if (null == cursor) {
-			Log.d(TAG, "getTaskInfoList: cursor = null");
-			return null;
-		}
-		
-		int count = cursor.getCount();
-		Log.d(TAG, "getTaskInfoList: cursor's count = " + count);
-		if (0 == count) {
-			return null;
+		ArrayList<TaskInfo> taskInfoList = mTaskCache.getAll();
+		return taskInfoList.isEmpty() ? null : taskInfoList;
+	}
+	
+	/**
+	 * 获取某个状态的所有下载任务的任务信息，从缓存读，按创建顺序
+	 * @param status
+	 * @return 返回的是副本
+	 */
+	public ArrayList<TaskInfo> getTaskInfoListByStatus(int status) {
+		return mTaskCache.getByStatus(status);
+	}
+	
+	/**
+	 * 根据任务ID获取任务信息，缓存里没有时查数据库
+	 * @param taskId
+	 * @return 返回的是副本
+	 */
+	public TaskInfo getTaskInfoById(long taskId) {
+		TaskInfo taskInfo = mTaskCache.get(taskId);
+		if (null != taskInfo) {
+			return taskInfo;
 		}
 		
-		int columnCount = cursor.getColumnCount();
-		Log.d(TAG, "getTaskInfoList: columnCount = " + columnCount);
-		ArrayList<TaskInfo> taskInfoList = new ArrayList<TaskInfo>();
-		String columnName;
-		while(cursor.moveToNext()) {
-			TaskInfo taskInfo = new TaskInfo();
-			for (int i = 0; i < columnCount; i++) {
-				columnName = cursor.getColumnName(i);
-				Log.d(TAG, "getTaskInfoList: i = " + i + ", columnName = " + columnName);
-				if (columnName.equalsIgnoreCase(Downloads._ID)) {
-					taskInfo.setId(cursor.getLong(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_FILE_NAME)) {
-					taskInfo.setFileName(cursor.getString(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_STATUS)) {
-					taskInfo.setTaskStatus(cursor.getInt(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_URI)) {
-					taskInfo.setTaskUri(cursor.getString(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_TOTAL_BYTES)) {
-					taskInfo.setTotalBytes(cursor.getLong(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_CURRENT_BYTES)) {
-					taskInfo.setCurrentBytes(cursor.getLong(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_FILE_PATH)) {
-					taskInfo.setSavePath(cursor.getString(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_ETAG)) {
-					taskInfo.setEtag(cursor.getString(i));
-				}
+		Log.d(TAG, "getTaskInfoById: cache miss, taskId = " + taskId);
+		synchronized (this) {
+			taskInfo = loadTaskInfoById(taskId);
+			if (null != taskInfo) {
+				mTaskCache.put(taskInfo);
 			}
-			taskInfo.print();
-			taskInfoList.add(taskInfo);
 		}
-		
-		return taskInfoList;
+		return taskInfo;
 	}
 	
 	/**
-	 * 根据任务ID获取任务信息
-	 * @param taskId
+	 * 获取按ID读缓存命中的次数
 	 * @return
 	 */
-	public TaskInfo getTaskInfoById(long taskId) {
-		Log.d(TAG, "getTaskInfoById: Enter");
+	public long getCacheHitCount() {
+		return mTaskCache.getHitCount();
+	}
+	
+	/**
+	 * 获取按ID读缓存没命中的次数
+	 * @return
+	 */
+	public long getCacheMissCount() {
+		return mTaskCache.getMissCount();
+	}
+	
+	/**
+	 * 查询downloads表，逐行交给sink，游标总是会关闭
+	 * @param selection
+	 * @param selectionArgs
+	 * @param orderBy
+	 * @param sink
+	 * @return 交给sink的行数
+	 */
+	public int queryTaskInfo(String selection, String[] selectionArgs, String orderBy, TaskInfoRowMapper.TaskInfoSink sink) {
+		Cursor cursor = query(false, DB_TABLE, null, selection, selectionArgs, null, null, orderBy, null);
+		return TaskInfoRowMapper.drain(cursor, sink);
+	}
+	
+	/**
+	 * 从数据库读所有下载任务的任务信息
+	 * @return 没有任务时返回null
+	 */
+	private ArrayList<TaskInfo> loadTaskInfoList() {
+		final ArrayList<TaskInfo> taskInfoList = new ArrayList<TaskInfo>();
+		queryTaskInfo(null, null, null, new TaskInfoRowMapper.TaskInfoSink() {
+			@Override
+			public boolean onRow(TaskInfo taskInfo) {
+				taskInfoList.add(taskInfo);
+				return true;
+			}
+		});
+		Log.d(TAG, "loadTaskInfoList: count = " + taskInfoList.size());
 		
+		return taskInfoList.isEmpty() ? null : taskInfoList;
+	}
+	
+	/**
+	 * 根据任务ID从数据库读任务信息
+	 * @param taskId
+	 * @return 没有这个任务时返回null
+	 */
+	private TaskInfo loadTaskInfoById(long taskId) {
 		String whereClause = Downloads._ID + "=?";
 		String[] whereArgs = {String.valueOf(taskId)};
-		Cursor cursor = query(false, DB_TABLE, null, whereClause, whereArgs, null, null, null, null);
-		if (null == cursor) {
-			Log.d(TAG, "getTaskInfoById: cursor = null");
-			return null;
-		}
-		
-		int count = cursor.getCount();
-		Log.d(TAG, "getTaskInfoById: cursor's count = " + count);
-		if (0 == count) {
-			return null;
-		}
-		
-		int columnCount = cursor.getColumnCount();
-		Log.d(TAG, "getTaskInfoById: columnCount = " + columnCount);
-		TaskInfo taskInfo = new TaskInfo();
-		String columnName;
-		while(cursor.moveToNext()) {
-			for (int i = 0; i < columnCount; i++) {
-				columnName = cursor.getColumnName(i);
-				Log.d(TAG, "getTaskInfoList: i = " + i + ", columnName = " + columnName);
-				if (columnName.equalsIgnoreCase(Downloads._ID)) {
-					taskInfo.setId(cursor.getLong(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_FILE_NAME)) {
-					taskInfo.setFileName(cursor.getString(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_STATUS)) {
-					taskInfo.setTaskStatus(cursor.getInt(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_URI)) {
-					taskInfo.setTaskUri(cursor.getString(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_TOTAL_BYTES)) {
-					taskInfo.setTotalBytes(cursor.getLong(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_CURRENT_BYTES)) {
-					taskInfo.setCurrentBytes(cursor.getLong(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_FILE_PATH)) {
-					taskInfo.setSavePath(cursor.getString(i));
-				} else if (columnName.equalsIgnoreCase(Downloads.COLUMN_ETAG)) {
-					taskInfo.setEtag(cursor.getString(i));
-				}
+		final TaskInfo[] result = new TaskInfo[1];
+		queryTaskInfo(whereClause, whereArgs, null, new TaskInfoRowMapper.TaskInfoSink() {
+			@Override
+			public boolean onRow(TaskInfo taskInfo) {
+				result[0] = taskInfo;
+				return false;
 			}
-			taskInfo.print();
-		}
+		});
 		
-		return taskInfo;
+		return result[0];
 	}
 	
 	/**
@@ -264,10 +345,17 @@ public class DownloadDatabaseHelper {
 	 * @param values 指定行对应的列的值，这个类型很类似Map，key表示列的名称，values表示列的值
 	 * @return 返回新插入的行的ID，如果存在错误默认返回 -1
 	 */
-	public long insert(ContentValues values) {
+	public synchronized long insert(ContentValues values) {
 		Log.d(TAG, "insert: Enter");
 		
-		return insert(DB_TABLE, null, values);
+		long rowId = mSQLiteDatabase.insert(DB_TABLE, null, values);
+		if (-1 != rowId) {
+			TaskInfo taskInfo = new TaskInfo();
+			taskInfo.setId(rowId);
+			TaskInfoCache.applyValues(taskInfo, values);
+			mTaskCache.put(taskInfo);
+		}
+		return rowId;
 	}
 	
 	/**
@@ -276,13 +364,113 @@ public class DownloadDatabaseHelper {
 	 * @param values 指定行对应的列的值，这个类型很类似Map，key表示列的名称，values表示列的值
 	 * @return
 	 */
-	public long update(long id, ContentValues values) {
+	public synchronized long update(long id, ContentValues values) {
 		Log.d(TAG, "update: id = " + id);
 		
 		String whereClause = Downloads._ID + "=?";
 		String[] whereArgs = {String.valueOf(id)};
 		
-		return update(DB_TABLE, values, whereClause, whereArgs);
+		int count = mSQLiteDatabase.update(DB_TABLE, values, whereClause, whereArgs);
+		if (count > 0 && !mTaskCache.apply(id, values)) {
+			TaskInfo taskInfo = loadTaskInfoById(id);
+			if (null != taskInfo) {
+				mTaskCache.put(taskInfo);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * 在一个事务里更新多个任务的进度
+	 * @param progress key为任务ID，value为{总大小, 已下载大小}
+	 */
+	public synchronized void updateProgress(Map<Long, long[]> progress) {
+		Log.d(TAG, "updateProgress: count = " + progress.size());
+		
+		if (null == mProgressStatement) {
+			mProgressStatement = mSQLiteDatabase.compileStatement("UPDATE " + DB_TABLE + " SET "
+					+ Downloads.COLUMN_TOTAL_BYTES + "=?, " + Downloads.COLUMN_CURRENT_BYTES + "=? WHERE " + Downloads._ID + "=?");
+		}
+		
+		mSQLiteDatabase.beginTransaction();
+		try {
+			for (Map.Entry<Long, long[]> entry : progress.entrySet()) {
+				mProgressStatement.bindLong(1, entry.getValue()[0]);
+				mProgressStatement.bindLong(2, entry.getValue()[1]);
+				mProgressStatement.bindLong(3, entry.getKey());
+				mProgressStatement.execute();
+			}
+			mSQLiteDatabase.setTransactionSuccessful();
+		} finally {
+			mSQLiteDatabase.endTransaction();
+		}
+		
+		for (Map.Entry<Long, long[]> entry : progress.entrySet()) {
+			mTaskCache.applyProgress(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+		}
+	}
+	
+	/**
+	 * 读一个分段下载任务的各段断点信息
+	 * @param taskId
+	 * @return 没有时返回null
+	 */
+	public List<DownloadSegment> getSegments(long taskId) {
+		String selection = Downloads.COLUMN_SEGMENT_TASK_ID + "=?";
+		String[] selectionArgs = {String.valueOf(taskId)};
+		String[] columns = {Downloads.COLUMN_SEGMENT_INDEX, Downloads.COLUMN_SEGMENT_START_BYTE,
+				Downloads.COLUMN_SEGMENT_END_BYTE, Downloads.COLUMN_SEGMENT_CURRENT_BYTES};
+		Cursor cursor = query(false, SEGMENTS_TABLE, columns, selection, selectionArgs, null, null, Downloads.COLUMN_SEGMENT_INDEX, null);
+		if (null == cursor) {
+			return null;
+		}
+		
+		try {
+			List<DownloadSegment> segments = new ArrayList<DownloadSegment>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				segments.add(new DownloadSegment(cursor.getInt(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3)));
+			}
+			return segments.isEmpty() ? null : segments;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * 在一个事务里替换一个分段下载任务的各段断点信息
+	 * @param taskId
+	 * @param segments
+	 */
+	public synchronized void saveSegments(long taskId, List<DownloadSegment> segments) {
+		String whereClause = Downloads.COLUMN_SEGMENT_TASK_ID + "=?";
+		String[] whereArgs = {String.valueOf(taskId)};
+		
+		mSQLiteDatabase.beginTransaction();
+		try {
+			mSQLiteDatabase.delete(SEGMENTS_TABLE, whereClause, whereArgs);
+			ContentValues values = new ContentValues();
+			for (DownloadSegment segment : segments) {
+				values.put(Downloads.COLUMN_SEGMENT_TASK_ID, taskId);
+				values.put(Downloads.COLUMN_SEGMENT_INDEX, segment.mIndex);
+				values.put(Downloads.COLUMN_SEGMENT_START_BYTE, segment.mStartByte);
+				values.put(Downloads.COLUMN_SEGMENT_END_BYTE, segment.mEndByte);
+				values.put(Downloads.COLUMN_SEGMENT_CURRENT_BYTES, segment.mCurrentBytes);
+				mSQLiteDatabase.insert(SEGMENTS_TABLE, null, values);
+			}
+			mSQLiteDatabase.setTransactionSuccessful();
+		} finally {
+			mSQLiteDatabase.endTransaction();
+		}
+	}
+	
+	/**
+	 * 删除一个任务的分段断点信息
+	 * @param taskId
+	 */
+	public synchronized void deleteSegments(long taskId) {
+		String whereClause = Downloads.COLUMN_SEGMENT_TASK_ID + "=?";
+		String[] whereArgs = {String.valueOf(taskId)};
+		mSQLiteDatabase.delete(SEGMENTS_TABLE, whereClause, whereArgs);
 	}
 	
 	/**
@@ -292,10 +480,14 @@ public class DownloadDatabaseHelper {
 	 * @param values 指定行对应的列的值，这个类型很类似Map，key表示列的名称，values表示列的值
 	 * @return 返回新插入的行的ID，如果存在错误默认返回 -1
 	 */
-	public long insert(String table, String nullColumnHack, ContentValues values) {
+	public synchronized long insert(String table, String nullColumnHack, ContentValues values) {
 		Log.d(TAG, "insert: table = " + table + ", nullColumnHack = " + nullColumnHack);
 		
-		return mSQLiteDatabase.insert(table, nullColumnHack, values);
+		long rowId = mSQLiteDatabase.insert(table, nullColumnHack, values);
+		if (DB_TABLE.equals(table)) {
+			reloadCache();
+		}
+		return rowId;
 	}
 	
 	/**
@@ -305,10 +497,14 @@ public class DownloadDatabaseHelper {
 	 * @param whereArgs 紧跟第二个参数，作为删除过滤条件的占位符，详情请看下面程序 PersonDao2 的 deletePerson() 方法的操作。
 	 * @return 如果是 0 表示未删除任何行，如果已经有删除行的操作 会得到 count > 0的数，表示删除的行数
 	 */
-	public long delete(String table, String whereClause, String[] whereArgs) {
+	public synchronized long delete(String table, String whereClause, String[] whereArgs) {
 		Log.d(TAG, "delete: table = " + table + ", whereClause = " + whereClause);
 		
-		return mSQLiteDatabase.delete(table, whereClause, whereArgs);
+		int count = mSQLiteDatabase.delete(table, whereClause, whereArgs);
+		if (count > 0 && DB_TABLE.equals(table)) {
+			reloadCache();
+		}
+		return count;
 	}
 	
 	/**
@@ -319,10 +515,15 @@ public class DownloadDatabaseHelper {
 	 * @param whereArgs 紧跟第二个参数，作为删除过滤条件的占位符，详情请看下面程序 PersonDao2 的 deletePerson() 方法的操作。
 	 * @return
 	 */
-	public long update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+	public synchronized long update(String table, ContentValues values, String whereClause, String[] whereArgs) {
 		Log.d(TAG, "update: table = " + table + ", values = " + values + ", whereClause = " + whereClause);
 		
-		return mSQLiteDatabase.update(table, values, whereClause, whereArgs);
+		int count = mSQLiteDatabase.update(table, values, whereClause, whereArgs);
+		// arbitrary where clauses can touch any row, so rebuild the cache
+		if (count > 0 && DB_TABLE.equals(table)) {
+			reloadCache();
+		}
+		return count;
 	}
 	
 	/**
@@ -0,0 +1,235 @@
+package com.example.customdownload;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * 边下载边计算的文件摘要，支持MD5、SHA-1、SHA-256。
+ * 摘要按文件顺序更新，下载完成后和调用方给的或者服务器Content-MD5/Digest头给的值比较，不用再把整个文件读一遍。
+ * 暂停时把摘要的中间状态保存在内存里，续传时从断点继续算；进程重启后内存里没有了，才把已下载的部分重新读一遍。
+ */
+public class DownloadDigest {
+	private static final String TAG = DownloadDigest.class.getSimpleName();
+
+	public static final String MD5 = "MD5";
+	public static final String SHA1 = "SHA-1";
+	public static final String SHA256 = "SHA-256";
+
+	/** 暂停的任务的摘要中间状态，key为任务ID */
+	private static final Map<Long, DownloadDigest> sSavedDigests = new ConcurrentHashMap<Long, DownloadDigest>();
+
+	private final String mAlgorithm;
+	private final MessageDigest mDigest;
+	private long mBytes;	//已经计入摘要的字节数
+
+	private DownloadDigest(String algorithm, MessageDigest digest, long bytes) {
+		mAlgorithm = algorithm;
+		mDigest = digest;
+		mBytes = bytes;
+	}
+
+	/**
+	 * 开始或者继续计算一个下载的摘要
+	 * @param taskId
+	 * @param algorithm
+	 * @param filePath 下载文件路径，内存里没有中间状态时从这里重新计算已下载的部分
+	 * @param bytesSoFar 已下载大小
+	 * @return 不支持这个算法或者读已下载的部分失败时返回null
+	 */
+	public static DownloadDigest resume(long taskId, String algorithm, String filePath, long bytesSoFar) {
+		DownloadDigest saved = sSavedDigests.remove(taskId);
+		if (null != saved && saved.mAlgorithm.equalsIgnoreCase(algorithm) && saved.mBytes == bytesSoFar) {
+			Log.v(TAG, "resume: taskId = " + taskId + ", continue from " + bytesSoFar);
+			return saved;
+		}
+
+		DownloadDigest digest;
+		try {
+			digest = new DownloadDigest(algorithm, MessageDigest.getInstance(algorithm), 0);
+		} catch (NoSuchAlgorithmException ex) {
+			Log.w(TAG, "resume: unsupported algorithm " + algorithm);
+			return null;
+		}
+		if (bytesSoFar > 0) {
+			Log.v(TAG, "resume: taskId = " + taskId + ", rehash " + bytesSoFar + " bytes");
+			try {
+				digest.updateFromFile(filePath, bytesSoFar);
+			} catch (IOException ex) {
+				Log.w(TAG, "resume: couldn't read " + filePath + ": " + ex);
+				return null;
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * 计算整个文件的摘要，用于分段下载这种不按顺序写的情况
+	 * @param algorithm
+	 * @param filePath
+	 * @param length 文件有效长度
+	 * @return 十六进制小写的摘要
+	 */
+	public static String digestFile(String algorithm, String filePath, long length) throws IOException, NoSuchAlgorithmException {
+		DownloadDigest digest = new DownloadDigest(algorithm, MessageDigest.getInstance(algorithm), 0);
+		digest.updateFromFile(filePath, length);
+		return digest.finish();
+	}
+
+	/**
+	 * 丢掉保存的中间状态，任务成功、失败或者删除时调用
+	 * @param taskId
+	 */
+	public static void discard(long taskId) {
+		sSavedDigests.remove(taskId);
+	}
+
+	private void updateFromFile(String filePath, long length) throws IOException {
+		byte[] buffer = DownloadBufferPool.getInstance().acquireArray(64 * 1024);
+		FileInputStream in = new FileInputStream(filePath);
+		try {
+			long remaining = length;
+			while (remaining > 0) {
+				int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (bytesRead == -1) {
+					throw new IOException("file shorter than " + length);
+				}
+				update(buffer, 0, bytesRead);
+				remaining -= bytesRead;
+			}
+		} finally {
+			in.close();
+			DownloadBufferPool.getInstance().releaseArray(buffer);
+		}
+	}
+
+	/**
+	 * 计入下一段数据
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public void update(byte[] data, int offset, int length) {
+		mDigest.update(data, offset, length);
+		mBytes += length;
+	}
+
+	/**
+	 * 计入buffer里position到limit之间的数据，不改变buffer的position
+	 * @param buffer
+	 */
+	public void update(ByteBuffer buffer) {
+		int length = buffer.remaining();
+		mDigest.update(buffer.duplicate());
+		mBytes += length;
+	}
+
+	/**
+	 * 获取已经计入摘要的字节数
+	 * @return
+	 */
+	public long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * 获取算法名
+	 * @return
+	 */
+	public String getAlgorithm() {
+		return mAlgorithm;
+	}
+
+	/**
+	 * 暂停时保存中间状态，续传时用{@link #resume}取回
+	 * @param taskId
+	 */
+	public void save(long taskId) {
+		sSavedDigests.put(taskId, this);
+	}
+
+	/**
+	 * 结束计算
+	 * @return 十六进制小写的摘要
+	 */
+	public String finish() {
+		return toHex(mDigest.digest());
+	}
+
+	/**
+	 * 比较两个十六进制摘要
+	 * @param expected
+	 * @param actual
+	 * @return
+	 */
+	public static boolean matches(String expected, String actual) {
+		return null != expected && null != actual && expected.trim().equalsIgnoreCase(actual);
+	}
+
+	/**
+	 * 从响应头取服务器给的整个文件的摘要。Digest头(RFC 3230)优先，按SHA-256、SHA-1、MD5的顺序选，
+	 * 没有时用Content-MD5。两个头都是base64编码
+	 * @param digestHeader Digest头，可以为null
+	 * @param contentMd5Header Content-MD5头，可以为null
+	 * @return {算法, 十六进制摘要}，没有可用的摘要时返回null
+	 */
+	public static String[] parseResponseHeaders(String digestHeader, String contentMd5Header) {
+		if (null != digestHeader) {
+			String[] preferred = {SHA256, SHA1, MD5};
+			String[] names = {"sha-256", "sha", "md5"};
+			String[] values = new String[names.length];
+			for (String entry : digestHeader.split(",")) {
+				int equals = entry.indexOf('=');
+				if (equals <= 0) {
+					continue;
+				}
+				String name = entry.substring(0, equals).trim().toLowerCase(Locale.US);
+				for (int i = 0; i < names.length; i++) {
+					if (names[i].equals(name)) {
+						values[i] = entry.substring(equals + 1).trim();
+					}
+				}
+			}
+			for (int i = 0; i < names.length; i++) {
+				String hex = decodeBase64(values[i]);
+				if (null != hex) {
+					return new String[] {preferred[i], hex};
+				}
+			}
+		}
+		String hex = decodeBase64(contentMd5Header);
+		if (null != hex) {
+			return new String[] {MD5, hex};
+		}
+		return null;
+	}
+
+	private static String decodeBase64(String value) {
+		if (null == value) {
+			return null;
+		}
+		try {
+			return toHex(Base64.decode(value.trim(), Base64.DEFAULT));
+		} catch (IllegalArgumentException ex) {
+			Log.w(TAG, "decodeBase64: bad digest value " + value);
+			return null;
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
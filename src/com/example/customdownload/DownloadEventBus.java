@@ -0,0 +1,219 @@
+package com.example.customdownload;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 进程内的下载事件分发。
+ * DownloadMsgHandler写完数据库后直接把变化交给订阅者，在订阅时指定的Executor里回调，不再经过system_server转发广播。
+ * 进度不等写数据库，由下载线程直接发布，按每个订阅者的{@link ProgressGranularity}分别合并。
+ * 订阅者列表是CopyOnWriteArrayList，分发时不加锁。
+ */
+public class DownloadEventBus {
+	/** 在主线程回调 */
+	public static final Executor MAIN_THREAD = new Executor() {
+		private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		@Override
+		public void execute(Runnable command) {
+			mHandler.post(command);
+		}
+	};
+
+	/** 在发布事件的线程(持久化线程)里直接回调，回调要很快返回 */
+	public static final Executor POSTING_THREAD = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+	private final AtomicLong mSequence = new AtomicLong();	//变化的序列号
+	private volatile long mProgressInterval = Constants.MIN_PROGRESS_TIME;	//下载线程报告进度的间隔，ms
+	private volatile boolean mHasProgressSubscribers = false;	//有没有要进度的订阅者
+
+	private static class DownloadEventBusHolder {
+		private static final DownloadEventBus mInstance = new DownloadEventBus();
+	}
+
+	/**
+	 * 一个订阅者，它的回调线程和进度粒度
+	 */
+	private static class Subscription {
+		final DownloadObserver mObserver;
+		final Executor mExecutor;
+		final ProgressGranularity mGranularity;
+		// {time, bytes} of the last progress delivered per task, written by the thread reporting that task
+		final Map<Long, long[]> mLastProgress = new ConcurrentHashMap<Long, long[]>();
+
+		Subscription(DownloadObserver observer, Executor executor, ProgressGranularity granularity) {
+			mObserver = observer;
+			mExecutor = executor;
+			mGranularity = granularity;
+		}
+
+		/**
+		 * 判断这个订阅者要不要这个变化
+		 */
+		boolean accept(DownloadChange change, long now) {
+			if (change.mFields != DownloadChange.FIELD_PROGRESS) {
+				if (change.has(DownloadChange.FIELD_STATUS)) {
+					// the next run of the task starts a fresh window
+					mLastProgress.remove(change.mTaskId);
+				}
+				return true;
+			}
+			if (!mGranularity.wantsProgress()) {
+				return false;
+			}
+			long[] last = mLastProgress.get(change.mTaskId);
+			if (null != last && !mGranularity.isDue(last[0], last[1], now, change.mCurrentBytes, change.mTotalBytes)) {
+				return false;
+			}
+			mLastProgress.put(change.mTaskId, new long[] {now, change.mCurrentBytes});
+			return true;
+		}
+	}
+
+	private DownloadEventBus() {
+
+	}
+
+	public static DownloadEventBus getInstance() {
+		return DownloadEventBusHolder.mInstance;
+	}
+
+	/**
+	 * 订阅下载事件，进度按默认粒度，已经订阅过的不重复添加
+	 * @param observer
+	 * @param executor 回调所在的线程，同一个订阅者的事件按发布顺序回调要求executor是串行的
+	 */
+	public void subscribe(DownloadObserver observer, Executor executor) {
+		subscribe(observer, executor, ProgressGranularity.DEFAULT);
+	}
+
+	/**
+	 * 订阅下载事件，已经订阅过的不重复添加
+	 * @param observer
+	 * @param executor 回调所在的线程，同一个订阅者的事件按发布顺序回调要求executor是串行的
+	 * @param granularity 进度粒度，ProgressGranularity.NONE表示只要状态变化
+	 */
+	public void subscribe(DownloadObserver observer, Executor executor, ProgressGranularity granularity) {
+		synchronized (mSubscriptions) {
+			if (indexOf(observer) < 0) {
+				mSubscriptions.add(new Subscription(observer, executor, granularity));
+				updateProgressInterval();
+			}
+		}
+	}
+
+	/**
+	 * 取消订阅
+	 * @param observer
+	 */
+	public void unsubscribe(DownloadObserver observer) {
+		synchronized (mSubscriptions) {
+			int index = indexOf(observer);
+			if (index >= 0) {
+				mSubscriptions.remove(index);
+				updateProgressInterval();
+			}
+		}
+	}
+
+	private void updateProgressInterval() {
+		long interval = Constants.MIN_PROGRESS_TIME;
+		boolean hasProgressSubscribers = false;
+		for (Subscription subscription : mSubscriptions) {
+			if (subscription.mGranularity.wantsProgress()) {
+				interval = Math.min(interval, subscription.mGranularity.getSampleInterval());
+				hasProgressSubscribers = true;
+			}
+		}
+		mProgressInterval = interval;
+		mHasProgressSubscribers = hasProgressSubscribers;
+	}
+
+	/**
+	 * 获取下载线程报告进度的间隔，是所有订阅者要的最细的粒度；没有订阅者时只为了写数据库，用MIN_PROGRESS_TIME
+	 * @return ms
+	 */
+	public long getProgressInterval() {
+		return mProgressInterval;
+	}
+
+	/**
+	 * 分配下一个序列号
+	 * @return
+	 */
+	public long nextSequence() {
+		return mSequence.incrementAndGet();
+	}
+
+	private int indexOf(DownloadObserver observer) {
+		for (int i = 0; i < mSubscriptions.size(); i++) {
+			if (mSubscriptions.get(i).mObserver == observer) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 判断有没有订阅者
+	 * @return
+	 */
+	public boolean hasSubscribers() {
+		return !mSubscriptions.isEmpty();
+	}
+
+	/**
+	 * 判断有没有要进度的订阅者，没有时下载线程不用为进度创建事件
+	 * @return
+	 */
+	public boolean hasProgressSubscribers() {
+		return mHasProgressSubscribers;
+	}
+
+	/**
+	 * 把一个任务的变化发给所有订阅者，只有进度的变化按订阅者的粒度合并。
+	 * 同一个任务的同一种字段要在同一个线程里发布，订阅者才能按序列号收到
+	 * @param type DownloadMsgHandler.MSG_*
+	 * @param change 发布后不能再修改
+	 */
+	public void post(final int type, final DownloadChange change) {
+		long now = SystemClock.elapsedRealtime();
+		for (final Subscription subscription : mSubscriptions) {
+			if (!subscription.accept(change, now)) {
+				continue;
+			}
+			subscription.mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver(subscription.mObserver, type, change);
+				}
+			});
+		}
+	}
+
+	private static void deliver(DownloadObserver observer, int type, DownloadChange change) {
+		observer.onTaskChanged(change);
+		switch (type) {
+		case DownloadMsgHandler.MSG_PROGRESS:
+			observer.onProgressChanged(change.mCurrentBytes, change.mTotalBytes);
+			break;
+		case DownloadMsgHandler.MSG_STATUS:
+			observer.onStatusChanged(change.mStatus);
+			break;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.example.customdownload;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+/**
+ * 所有下载任务共享的HTTP客户端，由CustomDownloadService创建和关闭。
+ * 连接按host放在keep-alive连接池里，开始、续传、重试和重定向都可以复用已有连接，不用每次重新握手。
+ * 每个host的连接数有上限，空闲太久的连接定时关闭。
+ */
+public class DownloadHttpClient {
+	private static final String TAG = DownloadHttpClient.class.getSimpleName();
+
+	/** 连接和读超时，和AndroidHttpClient一样，ms */
+	private static final int SOCKET_OPERATION_TIMEOUT = 60 * 1000;
+
+	private final ThreadSafeClientConnManager mConnectionManager;
+	private final DefaultHttpClient mClient;
+	private final ScheduledExecutorService mEvictor;	//定时关闭空闲连接
+
+	public DownloadHttpClient(Context context) {
+		HttpParams params = new BasicHttpParams();
+		// pooled connections may have been closed by the server while idle
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setConnectionTimeout(params, SOCKET_OPERATION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_OPERATION_TIMEOUT);
+		HttpConnectionParams.setSocketBufferSize(params, 8192);
+		// redirects are followed by DownloadRunnable itself
+		HttpClientParams.setRedirecting(params, false);
+		HttpProtocolParams.setUserAgent(params, Constants.DEFAULT_USER_AGENT);
+		ConnManagerParams.setMaxTotalConnections(params, Constants.MAX_CONNECTIONS_TOTAL);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(Constants.MAX_CONNECTIONS_PER_ROUTE));
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		// the session cache lets new connections to a known host skip the full TLS handshake
+		schemeRegistry.register(new Scheme("https",
+				SSLCertificateSocketFactory.getHttpSocketFactory(SOCKET_OPERATION_TIMEOUT, new SSLSessionCache(context)), 443));
+
+		mConnectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+		mClient = new DefaultHttpClient(mConnectionManager, params);
+
+		mEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mEvictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdleConnections();
+			}
+		}, Constants.IDLE_CONNECTION_TIMEOUT, Constants.IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 获取共享的客户端，可以在多个线程里同时使用，不要关闭它
+	 * @return
+	 */
+	public HttpClient getClient() {
+		return mClient;
+	}
+
+	/**
+	 * 关闭过期和空闲太久的连接
+	 */
+	public void evictIdleConnections() {
+		mConnectionManager.closeExpiredConnections();
+		mConnectionManager.closeIdleConnections(Constants.IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 关闭连接池里的所有连接，之后不能再使用
+	 */
+	public void shutdown() {
+		Log.d(TAG, "shutdown: connectionsInPool = " + mConnectionManager.getConnectionsInPool());
+		mEvictor.shutdownNow();
+		mConnectionManager.shutdown();
+	}
+}
@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
@@ -58,6 +59,21 @@ public class DownloadInfo {
      * The app requesting the download specific that it can't use the current network connection.
      */
     public static final int NETWORK_TYPE_DISALLOWED_BY_REQUESTOR = 6;
+
+    /**
+     * 还没有开始传输数据
+     */
+    public static final int TRANSFER_NONE = 0;
+
+    /**
+     * 数据经过Java缓冲读出再写入文件
+     */
+    public static final int TRANSFER_BUFFERED = 1;
+
+    /**
+     * 数据由FileChannel.transferFrom直接从socket写入文件
+     */
+    public static final int TRANSFER_ZERO_COPY = 2;
 	
 	private Context mContext;
 
@@ -69,15 +85,29 @@ public class DownloadInfo {
     public String mMimeType;	//MIME type的缩写为(Multipurpose Internet Mail Extensions)代表互联网媒体类型(Internet media type)
     public String mETag;	//ETag是实体标签（Entity Tag）的缩写， 根据实体内容生成的一段hash字符串（类似于MD5或者SHA1之后的结果），可以标识资源的状态。 当资源发送改变时，ETag也随之发生变化。
     public long mTotalBytes;	//总大小
-    public long mBytesSoFar;	//已下载大小
+    public volatile long mBytesSoFar;	//已下载大小，写线程写盘后才增加
     public boolean mAllowRoaming;	//是否允许漫游
     public int mAllowedNetworkTypes = ~0; //允许下载的网络类型, default to all network types
     public int mBypassRecommendedSizeLimit = 0;
+    public long mRetryAfter = 0;	//服务器用Retry-After要求的重试等待时间，ms，0表示按指数退避
     public int mNumFailed = 0;	//The number of times that the download manager will retry its network operations when no progress is happening before it gives up.
-    public int mControl;	//控制状态，见Downloads.CONTROL_*
+    public volatile int mControl;	//控制状态，见Downloads.CONTROL_*，由TaskRegistry写，下载线程不加锁读
     public int mStatus;	//下载状态，见Downloads.STATUS_*
 
+    public long mReaderWaits;	//读网络的线程因为写盘跟不上而等待的次数
+    public long mWriterWaits;	//写盘线程因为没有数据而等待的次数
+    public int mMaxBufferSize = Constants.MAX_BUFFER_SIZE;	//读网络大小的上限
+    public volatile int mBufferSize = Constants.BUFFER_SIZE;	//当前读网络的大小
+    public final AtomicLong mReadCount = new AtomicLong();	//读网络的次数
+    public final AtomicLong mWriteCount = new AtomicLong();	//写盘的次数
+    public volatile int mTransferPath = TRANSFER_NONE;	//最近一次传输数据的方式，见TRANSFER_*
+    public String mHashAlgorithm;	//校验算法，见DownloadDigest，为null时不计算摘要
+    public String mExpectedHash;	//期望的摘要，十六进制
+    public String mHash;	//下载完成后算出的摘要，十六进制
+
     public volatile boolean mHasActiveThread;	//是否有线程正在处理这个下载任务
+    public int mProgressSlot = -1;	//在ProgressTable里的槽号，只在下载线程访问
+    public int mMaxSegments = Constants.SEGMENT_COUNT;	//分段下载最多的分段数，开始下载时由ConcurrencyController决定
     
     private List<Pair<String, String>> mRequestHeaders = new ArrayList<Pair<String, String>>();
     
@@ -146,6 +176,35 @@ public class DownloadInfo {
     	mETag = etag;
     }      
     
+    /**
+     * 设置校验算法和期望的摘要
+     * @param hashAlgorithm 为null时不计算摘要
+     * @param expectedHash 为null时只计算摘要不校验
+     */
+    public void setHash(String hashAlgorithm, String expectedHash) {
+    	mHashAlgorithm = hashAlgorithm;
+    	mExpectedHash = expectedHash;
+    }
+    
+    /**
+     * 调用方没有给期望的摘要时，用服务器响应头里的
+     * @param digestHeader Digest头
+     * @param contentMd5Header Content-MD5头
+     * @return 采用了响应头里的摘要时返回true
+     */
+    public boolean setHashFromResponse(String digestHeader, String contentMd5Header) {
+    	if (null != mExpectedHash) {
+    		return false;
+    	}
+    	String[] hash = DownloadDigest.parseResponseHeaders(digestHeader, contentMd5Header);
+    	if (null == hash || (null != mHashAlgorithm && !mHashAlgorithm.equalsIgnoreCase(hash[0]))) {
+    		return false;
+    	}
+    	mHashAlgorithm = hash[0];
+    	mExpectedHash = hash[1];
+    	return true;
+    }
+    
     /**
      * 设置任务总大小
      * @param totalBytes
@@ -156,6 +215,24 @@ public class DownloadInfo {
     	mTotalBytes = totalBytes;
     }    
 
+    /**
+     * 设置已下载大小
+     * @param currentBytes
+     */
+    public void setCurrentBytes(long currentBytes) {
+    	Log.d(TAG, "setCurrentBytes: currentBytes = " + currentBytes);
+    	
+    	mBytesSoFar = currentBytes;
+    }    
+
+    /**
+     * 设置读网络大小的上限，实际读大小会根据吞吐在BUFFER_SIZE和这个上限之间调整
+     * @param maxBufferSize
+     */
+    public void setMaxBufferSize(int maxBufferSize) {
+    	mMaxBufferSize = Math.max(maxBufferSize, Constants.BUFFER_SIZE);
+    }
+
     public Collection<Pair<String, String>> getHeaders() {
         return Collections.unmodifiableList(mRequestHeaders);
     }
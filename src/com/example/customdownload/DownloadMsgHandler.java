@@ -1,15 +1,34 @@
 package com.example.customdownload;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import org.apache.http.Header;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+/**
+ * 下载状态的持久化和分发。
+ * 所有数据库写和事件分发都在自己的后台线程里执行，不占用主线程；待处理的操作数有上限，满了发送方等待。
+ * 变化通过{@link DownloadEventBus}直接交给本进程的订阅者；跨进程的sendBroadcast默认关闭，打开后进度广播按任务限频。
+ * 记录队列深度和每种操作的排队、执行耗时，用来确认负载高时主线程没有被拖慢。
+ */
 public class DownloadMsgHandler {
 	private static final String TAG = DownloadMsgHandler.class.getSimpleName();
 
@@ -23,30 +42,71 @@ public class DownloadMsgHandler {
     public static final int MSG_STATUS = 7;
     public static final int MSG_URI = 8;
     public static final int MSG_NETWORK = 9;
+    public static final int MSG_HASH = 10;
+    public static final int MSG_FLUSH_PROGRESS = 11;
+    public static final int MSG_QUIT = 12;
+    public static final int MSG_RETRY = 13;
+    private static final int MSG_COUNT = 14;
+    
+    private static final int ARG_HOLDS_SLOT = 1;	//msg.arg2，这个消息占着mQueueSlots的一个位置
     
     public static final String BROADCAST_TYPE = "broadcast_type";
     public static final String BROADCAST_STATUS = "broadcast_status";
     public static final String BROADCAST_TOTAL_BYTES = "broadcast_total_bytes";
     public static final String BROADCAST_CURRENT_BYTES = "broadcast_current_bytes";
     public static final String BROADCAST_NEW_NAME = "broadcast_new_name";
+    public static final String BROADCAST_TASK_ID = "broadcast_task_id";
+    public static final String BROADCAST_SEQUENCE = "broadcast_sequence";
+    public static final String BROADCAST_FIELDS = "broadcast_fields";
+    public static final String BROADCAST_URI = "broadcast_uri";
+    public static final String BROADCAST_HASH = "broadcast_hash";
     
     private Context mContext;
+    private HandlerThread mHandlerThread;	//持久化线程
     private Handler mThisHandler = null;
+    private Map<Long, long[]> mPendingProgress = new ConcurrentHashMap<Long, long[]>();	//还没写数据库的进度，每个任务只保留最新的
+    private AtomicBoolean mFlushScheduled = new AtomicBoolean(false);	//是否已经安排了写进度
+    private volatile boolean mBroadcastEnabled = false;	//是否同时发跨进程广播
+    private Map<Long, Long> mLastProgressBroadcast = new HashMap<Long, Long>();	//任务ID -> 上次广播进度的时间，只在持久化线程访问
+    
+    private Semaphore mQueueSlots = new Semaphore(Constants.MAX_PENDING_MESSAGES);	//队列里剩余的位置
+    private AtomicInteger mQueueDepth = new AtomicInteger();	//队列里待处理的操作数
+    private AtomicInteger mMaxQueueDepth = new AtomicInteger();	//队列深度的最大值
+    private AtomicLong mSenderWaits = new AtomicLong();	//发送方因为队列满而等待的次数
+    private AtomicLong mOverflows = new AtomicLong();	//队列满时不能等待而直接放进队列的次数
+    private AtomicLongArray mOpCount = new AtomicLongArray(MSG_COUNT);	//各种操作的次数
+    private AtomicLongArray mOpTime = new AtomicLongArray(MSG_COUNT);	//各种操作的执行总耗时，us
+    private AtomicLongArray mOpMaxTime = new AtomicLongArray(MSG_COUNT);	//各种操作的最长执行耗时，us
+    private AtomicLongArray mWaitTime = new AtomicLongArray(MSG_COUNT);	//各种操作的排队总耗时，ms
 	
 	public DownloadMsgHandler(Context context) {
 		mContext = context;
-		// Set up a handler to post events back to the correct thread if possible
-        if (Looper.myLooper() != null)
-        {
-        	mThisHandler = new Handler()
-            {
-                @Override
-                public void handleMessage(Message msg)
-                {
-                	DownloadMsgHandler.this.handleMessage(msg);
-                }
-            };
-        }
+		// database and broadcast work gets its own thread, never the caller's looper
+		mHandlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mHandlerThread.start();
+		mThisHandler = new Handler(mHandlerThread.getLooper())
+		{
+			@Override
+			public void handleMessage(Message msg)
+			{
+				DownloadMsgHandler.this.dispatchMessage(msg);
+			}
+		};
+	}
+	
+	/**
+	 * 设置是否同时发跨进程广播，给其他进程的接收者用。本进程的订阅者用{@link DownloadEventBus}，不需要打开
+	 * @param enabled
+	 */
+	public void setBroadcastEnabled(boolean enabled) {
+		mBroadcastEnabled = enabled;
+	}
+	
+	/**
+	 * 写完待处理的操作后停止持久化线程
+	 */
+	public void quit() {
+		sendMessage(mThisHandler.obtainMessage(MSG_QUIT));
 	}
     
     public void sendStartMessage(long id)
@@ -65,9 +125,25 @@ public class DownloadMsgHandler {
     
     public void sendProgressChangeMessage(long id, long total, long loaded)
     {
-    	if (mThisHandler != null) {
-    		sendMessage(mThisHandler.obtainMessage(MSG_PROGRESS, new Object[] { id, total, loaded }));
-    	}        
+    	// subscribers see progress right away, coalesced to their own granularity
+    	DownloadEventBus eventBus = DownloadEventBus.getInstance();
+    	if (eventBus.hasProgressSubscribers()) {
+    		DownloadChange change = newChange(id, DownloadChange.FIELD_PROGRESS);
+    		change.mTotalBytes = total;
+    		change.mCurrentBytes = loaded;
+    		eventBus.post(MSG_PROGRESS, change);
+    	}
+    	
+    	// merged per task, so progress never takes more than one place in the queue
+    	mPendingProgress.put(id, new long[] {total, loaded});
+    	if (mFlushScheduled.compareAndSet(false, true)) {
+    		// at most one flush is ever queued, so it never waits for a slot
+    		Message msg = mThisHandler.obtainMessage(MSG_FLUSH_PROGRESS);
+    		acquireQueueSlot(msg);
+    		if (!mThisHandler.sendMessageDelayed(msg, Constants.PROGRESS_FLUSH_TIME)) {
+    			releaseQueueSlot(msg);
+    		}
+    	}
     }
     
     public void sendCancelMessage(long id/*int statusCode, Header[] headers, String responseBody*/)
@@ -123,49 +199,312 @@ public class DownloadMsgHandler {
     	}
     }
     
+    public void sendHashMessage(long id, String hashAlgorithm, String expectedHash, String hash) {
+    	if (mThisHandler != null) {
+    		sendMessage(mThisHandler.obtainMessage(MSG_HASH, new Object[] {id, hashAlgorithm, expectedHash, hash}));
+    	}
+    }
+    
+    /**
+     * 保存连续失败的次数和下次重试的时间
+     * @param id
+     * @param numFailed
+     * @param retryTime 不等待重试时为0
+     */
+    public void sendRetryMessage(long id, int numFailed, long retryTime) {
+    	if (mThisHandler != null) {
+    		sendMessage(mThisHandler.obtainMessage(MSG_RETRY, new Object[] {id, numFailed, retryTime}));
+    	}
+    }
+    
+    /**
+     * 把合并的进度马上写到数据库，在持久化线程调用
+     */
+    private void flushProgress() {
+    	if (mPendingProgress.isEmpty()) {
+    		return;
+    	}
+    	
+    	// take the entries out one by one, a newer report that comes in meanwhile stays for the next flush
+    	Map<Long, long[]> progressMap = new LinkedHashMap<Long, long[]>();
+    	for (Map.Entry<Long, long[]> entry : mPendingProgress.entrySet()) {
+    		if (mPendingProgress.remove(entry.getKey(), entry.getValue())) {
+    			progressMap.put(entry.getKey(), entry.getValue());
+    		}
+    	}
+    	if (progressMap.isEmpty()) {
+    		return;
+    	}
+    	
+    	DownloadDatabaseHelper.getInstance().updateProgress(progressMap);
+    	if (mBroadcastEnabled) {
+    		for (Map.Entry<Long, long[]> entry : progressMap.entrySet()) {
+    			DownloadChange change = newChange(entry.getKey(), DownloadChange.FIELD_PROGRESS);
+    			change.mTotalBytes = entry.getValue()[0];
+    			change.mCurrentBytes = entry.getValue()[1];
+    			broadcastChange(MSG_PROGRESS, change);
+    		}
+    	}
+    }
+    
+    private DownloadChange newChange(long id, int fields) {
+    	return new DownloadChange(id, DownloadEventBus.getInstance().nextSequence(), fields);
+    }
+    
+    /**
+     * 分发一个任务的变化，在持久化线程调用。进度已经由下载线程直接发给订阅者，不经过这里
+     * @param type MSG_*
+     * @param change
+     */
+    private void publishChange(int type, DownloadChange change) {
+    	DownloadEventBus.getInstance().post(type, change);
+    	if (mBroadcastEnabled) {
+    		broadcastChange(type, change);
+    	}
+    }
+    
+    /**
+     * 打开跨进程广播时广播一个任务的变化，进度按任务限频，在持久化线程调用
+     * @param type MSG_*
+     * @param change
+     */
+    private void broadcastChange(int type, DownloadChange change) {
+    	if (change.mFields == DownloadChange.FIELD_PROGRESS) {
+    		long now = SystemClock.elapsedRealtime();
+    		Long last = mLastProgressBroadcast.get(change.mTaskId);
+    		if (null != last && now - last < Constants.MIN_BROADCAST_PROGRESS_TIME) {
+    			return;
+    		}
+    		mLastProgressBroadcast.put(change.mTaskId, now);
+    	} else if (change.has(DownloadChange.FIELD_STATUS)) {
+    		mLastProgressBroadcast.remove(change.mTaskId);
+    	}
+    	sendChangeBroadcast(type, change);
+    }
+    
+    /**
+     * 广播一个任务的变化，只带变了的字段
+     * @param type MSG_*
+     * @param change
+     */
+    private void sendChangeBroadcast(int type, DownloadChange change) {
+    	Intent intent = new Intent("com.example.customdownloadmanager.ACTION_DOWNLOAD_CHANGED");
+    	intent.putExtra(BROADCAST_TYPE, type);
+    	intent.putExtra(BROADCAST_TASK_ID, change.mTaskId);
+    	intent.putExtra(BROADCAST_SEQUENCE, change.mSequence);
+    	intent.putExtra(BROADCAST_FIELDS, change.mFields);
+    	if (change.has(DownloadChange.FIELD_STATUS)) {
+    		intent.putExtra(BROADCAST_STATUS, change.mStatus);
+    	}
+    	if (change.has(DownloadChange.FIELD_PROGRESS)) {
+    		intent.putExtra(BROADCAST_TOTAL_BYTES, change.mTotalBytes);
+    		intent.putExtra(BROADCAST_CURRENT_BYTES, change.mCurrentBytes);
+    	}
+    	if (change.has(DownloadChange.FIELD_URI)) {
+    		intent.putExtra(BROADCAST_URI, change.mUri);
+    	}
+    	if (change.has(DownloadChange.FIELD_HASH)) {
+    		intent.putExtra(BROADCAST_HASH, change.mHash);
+    	}
+    	mContext.sendBroadcast(intent, "com.example.customdownloadmanager.permission.DOWNLOAD_CHANGED_RECV");
+    }
+    
     protected void sendMessage(Message msg)
     {
         if (mThisHandler != null)
         {
-        	mThisHandler.sendMessage(msg);
+        	acquireQueueSlot(msg);
+        	if (!mThisHandler.sendMessage(msg)) {
+        		// the thread has quit
+        		releaseQueueSlot(msg);
+        	}
         }
     }
     
+    /**
+     * 判断一个消息在队列满时能不能等待。
+     * 状态、控制和进度消息从不等待；主线程、持久化线程和NIO事件循环线程也从不等待，
+     * 否则界面会卡住，持久化线程里的回调再发消息会等自己
+     * @param what MSG_*
+     * @return
+     */
+    private boolean canWaitForSlot(int what) {
+    	switch (what) {
+    	case MSG_START:
+    	case MSG_STOP:
+    	case MSG_CANCEL:
+    	case MSG_STATUS:
+    	case MSG_QUIT:
+    	case MSG_FLUSH_PROGRESS:
+    		return false;
+    	}
+    	Looper looper = Looper.myLooper();
+    	if (null != looper && (looper == Looper.getMainLooper() || looper == mHandlerThread.getLooper())) {
+    		return false;
+    	}
+    	return !(Thread.currentThread() instanceof NioDownloadEngine.EventLoop);
+    }
+    
+    /**
+     * 占用队列里的一个位置。队列满时能等待的发送方等待持久化线程处理，
+     * 其他的不占位置直接放进队列，队列可以暂时超过MAX_PENDING_MESSAGES
+     * @param msg
+     */
+    private void acquireQueueSlot(Message msg) {
+    	if (mQueueSlots.tryAcquire()) {
+    		msg.arg2 = ARG_HOLDS_SLOT;
+    	} else if (canWaitForSlot(msg.what)) {
+    		mSenderWaits.incrementAndGet();
+    		Log.w(TAG, "acquireQueueSlot: queue full, depth = " + mQueueDepth.get());
+    		mQueueSlots.acquireUninterruptibly();
+    		msg.arg2 = ARG_HOLDS_SLOT;
+    	} else {
+    		mOverflows.incrementAndGet();
+    		msg.arg2 = 0;
+    	}
+    	int depth = mQueueDepth.incrementAndGet();
+    	int maxDepth;
+    	while (depth > (maxDepth = mMaxQueueDepth.get()) && !mMaxQueueDepth.compareAndSet(maxDepth, depth)) {
+    		// retry
+    	}
+    }
+    
+    private void releaseQueueSlot(Message msg) {
+    	mQueueDepth.decrementAndGet();
+    	if (msg.arg2 == ARG_HOLDS_SLOT) {
+    		mQueueSlots.release();
+    	}
+    }
+    
+    /**
+     * 在持久化线程处理一个操作，记录排队和执行耗时
+     */
+    private void dispatchMessage(Message msg) {
+    	long waitTime = Math.max(0, SystemClock.uptimeMillis() - msg.getWhen());
+    	long start = System.nanoTime();
+    	try {
+    		if (msg.what == MSG_FLUSH_PROGRESS) {
+    			// let the next report schedule a new flush before this one starts writing
+    			mFlushScheduled.set(false);
+    		}
+    		handleMessage(msg);
+    	} finally {
+    		releaseQueueSlot(msg);
+    		
+    		if (msg.what >= 0 && msg.what < MSG_COUNT) {
+    			long time = (System.nanoTime() - start) / 1000;
+    			mOpCount.incrementAndGet(msg.what);
+    			mOpTime.addAndGet(msg.what, time);
+    			mWaitTime.addAndGet(msg.what, waitTime);
+    			long maxTime;
+    			while (time > (maxTime = mOpMaxTime.get(msg.what)) && !mOpMaxTime.compareAndSet(msg.what, maxTime, time)) {
+    				// retry
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * 获取队列里待处理的操作数
+     * @return
+     */
+    public int getQueueDepth() {
+    	return mQueueDepth.get();
+    }
+    
+    /**
+     * 获取队列深度的最大值
+     * @return
+     */
+    public int getMaxQueueDepth() {
+    	return mMaxQueueDepth.get();
+    }
+    
+    /**
+     * 获取发送方因为队列满而等待的次数
+     * @return
+     */
+    public long getSenderWaits() {
+    	return mSenderWaits.get();
+    }
+    
+    /**
+     * 获取队列满时不能等待的消息直接放进队列的次数
+     * @return
+     */
+    public long getOverflows() {
+    	return mOverflows.get();
+    }
+    
+    /**
+     * 获取一种操作的执行次数
+     * @param what MSG_*
+     * @return
+     */
+    public long getOperationCount(int what) {
+    	return mOpCount.get(what);
+    }
+    
+    /**
+     * 获取一种操作的平均执行耗时
+     * @param what MSG_*
+     * @return us
+     */
+    public long getAverageLatency(int what) {
+    	long count = mOpCount.get(what);
+    	return count == 0 ? 0 : mOpTime.get(what) / count;
+    }
+    
+    /**
+     * 获取一种操作的最长执行耗时
+     * @param what MSG_*
+     * @return us
+     */
+    public long getMaxLatency(int what) {
+    	return mOpMaxTime.get(what);
+    }
+    
+    /**
+     * 获取一种操作的平均排队耗时，写进度的排队时间不包括合并等待的PROGRESS_FLUSH_TIME
+     * @param what MSG_*
+     * @return ms
+     */
+    public long getAverageWaitTime(int what) {
+    	long count = mOpCount.get(what);
+    	return count == 0 ? 0 : mWaitTime.get(what) / count;
+    }
+    
     protected void handleMessage(Message msg)
     {        
         Object[] obj;
         long result;
         
         switch (msg.what){
-        case MSG_PROGRESS:
-        	obj = (Object[])msg.obj;
-        	Log.d(TAG, "handleMessage:MSG_PROGRESS: totalBytes = " + (Long)obj[1] + ", currentBytes = " + (Long)obj[2]);
-        	ContentValues progressValues = new ContentValues();
-        	progressValues.put(Downloads.COLUMN_TOTAL_BYTES, (Long)obj[1]);
-        	progressValues.put(Downloads.COLUMN_CURRENT_BYTES, (Long)obj[2]);
-        	result = DownloadDatabaseHelper.getInstance().update((Long)obj[0], progressValues);
+        case MSG_FLUSH_PROGRESS:
+        	flushProgress();
         	
-        	if (result > 0) {
-        		Intent intent = new Intent("com.example.customdownloadmanager.ACTION_DOWNLOAD_CHANGED");
-        		intent.putExtra(BROADCAST_TYPE, msg.what);
-        		intent.putExtra(BROADCAST_TOTAL_BYTES, (Long)obj[1]);
-        		intent.putExtra(BROADCAST_CURRENT_BYTES, (Long)obj[2]);
-        		mContext.sendBroadcast(intent, "com.example.customdownloadmanager.permission.DOWNLOAD_CHANGED_RECV");
-        	}
+        	break;
+        case MSG_QUIT:
+        	flushProgress();
+        	Log.d(TAG, "handleMessage:MSG_QUIT: maxQueueDepth = " + mMaxQueueDepth.get() + ", senderWaits = " + mSenderWaits.get() + ", overflows = " + mOverflows.get()
+        			+ ", status = " + getAverageLatency(MSG_STATUS) + "/" + getMaxLatency(MSG_STATUS) + "us"
+        			+ ", progress = " + getAverageLatency(MSG_FLUSH_PROGRESS) + "/" + getMaxLatency(MSG_FLUSH_PROGRESS) + "us");
+        	mHandlerThread.quit();
         	
         	break;
         case MSG_STATUS:
         	obj = (Object[])msg.obj;
+        	// the progress reported before a status change must not land after it
+        	flushProgress();
         	
         	ContentValues statusValues = new ContentValues();
         	statusValues.put(Downloads.COLUMN_STATUS, (Integer)obj[2]);
         	result = DownloadDatabaseHelper.getInstance().update((Long)obj[0], statusValues);
         	
         	if (result > 0) {
-        		Intent intent = new Intent("com.example.customdownloadmanager.ACTION_DOWNLOAD_CHANGED");
-        		intent.putExtra(BROADCAST_TYPE, msg.what);
-        		intent.putExtra(BROADCAST_STATUS, (Integer)obj[2]);
-        		mContext.sendBroadcast(intent, "com.example.customdownloadmanager.permission.DOWNLOAD_CHANGED_RECV");
+        		DownloadChange change = newChange((Long)obj[0], DownloadChange.FIELD_STATUS);
+        		change.mStatus = (Integer)obj[2];
+        		publishChange(msg.what, change);
         	}
         	
         	break;
@@ -176,6 +515,12 @@ public class DownloadMsgHandler {
         	uriValues.put(Downloads.COLUMN_URI, obj[1].toString());
         	result = DownloadDatabaseHelper.getInstance().update((Long)obj[0], uriValues);
         	
+        	if (result > 0) {
+        		DownloadChange change = newChange((Long)obj[0], DownloadChange.FIELD_URI);
+        		change.mUri = obj[1].toString();
+        		publishChange(msg.what, change);
+        	}
+        	
         	break;
         case MSG_NETWORK:
         	obj = (Object[])msg.obj;
@@ -189,6 +534,37 @@ public class DownloadMsgHandler {
         	}
         	result = DownloadDatabaseHelper.getInstance().update((Long)obj[0], netWorkValues);
         	
+        	break;
+        case MSG_HASH:
+        	obj = (Object[])msg.obj;
+        	
+        	ContentValues hashValues = new ContentValues();
+        	if (null != obj[1]) {
+        		hashValues.put(Downloads.COLUMN_HASH_ALGORITHM, obj[1].toString());
+        	}
+        	if (null != obj[2]) {
+        		hashValues.put(Downloads.COLUMN_EXPECTED_HASH, obj[2].toString());
+        	}
+        	if (null != obj[3]) {
+        		hashValues.put(Downloads.COLUMN_HASH, obj[3].toString());
+        	}
+        	result = DownloadDatabaseHelper.getInstance().update((Long)obj[0], hashValues);
+        	
+        	if (result > 0 && null != obj[3]) {
+        		DownloadChange change = newChange((Long)obj[0], DownloadChange.FIELD_HASH);
+        		change.mHash = obj[3].toString();
+        		publishChange(msg.what, change);
+        	}
+        	
+        	break;
+        case MSG_RETRY:
+        	obj = (Object[])msg.obj;
+        	
+        	ContentValues retryValues = new ContentValues();
+        	retryValues.put(Downloads.COLUMN_FAILED_CONNECTIONS, (Integer)obj[1]);
+        	retryValues.put(Downloads.COLUMN_RETRY_TIME, (Long)obj[2]);
+        	result = DownloadDatabaseHelper.getInstance().update((Long)obj[0], retryValues);
+        	
         	break;
         }
     }
@@ -24,4 +24,10 @@ public class DownloadObserver {
 	 * @param downloadProgress
 	 */
 	public void onProgressChanged(long currentBytes, long totalBytes) {}
+	
+	/**
+	 * 任务变化事件，带任务ID、变了的字段和序列号，状态和进度改变时在onStatusChanged、onProgressChanged之前调用
+	 * @param change
+	 */
+	public void onTaskChanged(DownloadChange change) {}
 }
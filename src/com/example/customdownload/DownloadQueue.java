@@ -0,0 +1,270 @@
+package com.example.customdownload;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * 下载队列，限制同时下载的任务数和同一个主机同时下载的任务数。
+ * 等待的任务按优先级从高到低、同一优先级按进入队列的时间先后开始；
+ * 排在前面的任务所在的主机已经满了时跳过它，让后面其他主机的任务先开始。
+ * 有任务结束时马上从等待的任务里补上。队列本身只在内存里，优先级和进入队列的时间由调用方存数据库，重启后按它们重新排队。
+ */
+public class DownloadQueue {
+	private static final String TAG = DownloadQueue.class.getSimpleName();
+
+	/**
+	 * 真正开始下载一个任务，轮到这个任务时在调用enqueue或者onFinished的线程里调用，不持有队列的锁
+	 */
+	public interface Starter {
+		void start(long taskId);
+	}
+
+	/**
+	 * 一个等待中的任务
+	 */
+	private static class Entry {
+		final long mTaskId;
+		final int mPriority;
+		final long mQueuedTime;
+		final long mOrder;	//同一时间进入队列的按这个排
+		final String mHost;
+
+		Entry(long taskId, int priority, long queuedTime, long order, String host) {
+			mTaskId = taskId;
+			mPriority = priority;
+			mQueuedTime = queuedTime;
+			mOrder = order;
+			mHost = host;
+		}
+	}
+
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry lhs, Entry rhs) {
+			if (lhs.mPriority != rhs.mPriority) {
+				return lhs.mPriority > rhs.mPriority ? -1 : 1;
+			}
+			if (lhs.mQueuedTime != rhs.mQueuedTime) {
+				return lhs.mQueuedTime < rhs.mQueuedTime ? -1 : 1;
+			}
+			if (lhs.mOrder != rhs.mOrder) {
+				return lhs.mOrder < rhs.mOrder ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	private final Starter mStarter;
+	private int mMaxActive;
+	private int mMaxActivePerHost;
+
+	private final TreeSet<Entry> mWaiting = new TreeSet<Entry>(ORDER);
+	private final Map<Long, Entry> mWaitingById = new HashMap<Long, Entry>();
+	private final Map<Long, String> mActive = new HashMap<Long, String>();	//任务ID到主机
+	private final Map<String, Integer> mActivePerHost = new HashMap<String, Integer>();
+	private long mNextOrder = 0;
+
+	/**
+	 * @param maxActive 同时下载的任务数
+	 * @param maxActivePerHost 同一个主机同时下载的任务数
+	 * @param starter
+	 */
+	public DownloadQueue(int maxActive, int maxActivePerHost, Starter starter) {
+		mMaxActive = maxActive;
+		mMaxActivePerHost = maxActivePerHost;
+		mStarter = starter;
+	}
+
+	/**
+	 * 获取任务的主机，用来按主机限制
+	 * @param uri
+	 * @return 解析不出来时返回空字符串
+	 */
+	public static String getHost(String uri) {
+		if (null == uri) {
+			return "";
+		}
+		Uri parsed = Uri.parse(uri);
+		String host = null == parsed ? null : parsed.getHost();
+		return null == host ? "" : host.toLowerCase(Locale.US);
+	}
+
+	/**
+	 * 任务进入队列，有空闲名额时马上开始。已经在下载的任务什么也不做，已经在等待的任务按新的优先级重新排
+	 * @param taskId
+	 * @param priority Downloads.PRIORITY_*
+	 * @param queuedTime 进入队列的时间，重启后恢复的任务用原来的时间
+	 * @param uri
+	 * @return 已经在下载时返回false
+	 */
+	public boolean enqueue(long taskId, int priority, long queuedTime, String uri) {
+		synchronized (this) {
+			if (mActive.containsKey(taskId)) {
+				return false;
+			}
+			Entry old = mWaitingById.remove(taskId);
+			if (null != old) {
+				mWaiting.remove(old);
+			}
+			Entry entry = new Entry(taskId, priority, queuedTime, mNextOrder++, getHost(uri));
+			mWaiting.add(entry);
+			mWaitingById.put(taskId, entry);
+			Log.d(TAG, "enqueue: taskId = " + taskId + ", priority = " + priority + ", host = " + entry.mHost
+					+ ", waiting = " + mWaiting.size() + ", active = " + mActive.size());
+		}
+		startPromoted();
+		return true;
+	}
+
+	/**
+	 * 修改等待中的任务的优先级
+	 * @param taskId
+	 * @param priority
+	 * @return 任务不在等待时返回false
+	 */
+	public synchronized boolean setPriority(long taskId, int priority) {
+		Entry old = mWaitingById.get(taskId);
+		if (null == old || old.mPriority == priority) {
+			return null != old;
+		}
+		mWaiting.remove(old);
+		Entry entry = new Entry(taskId, priority, old.mQueuedTime, old.mOrder, old.mHost);
+		mWaiting.add(entry);
+		mWaitingById.put(taskId, entry);
+		return true;
+	}
+
+	/**
+	 * 把等待中的任务移出队列，暂停、取消、删除还没开始的任务时调用
+	 * @param taskId
+	 * @return 任务不在等待时返回false
+	 */
+	public synchronized boolean remove(long taskId) {
+		Entry entry = mWaitingById.remove(taskId);
+		if (null == entry) {
+			return false;
+		}
+		mWaiting.remove(entry);
+		return true;
+	}
+
+	/**
+	 * 下载结束(成功、失败、暂停、取消)时调用，空出的名额给等待的任务
+	 * @param taskId
+	 */
+	public void onFinished(long taskId) {
+		synchronized (this) {
+			String host = mActive.remove(taskId);
+			if (null == host) {
+				return;
+			}
+			Integer count = mActivePerHost.get(host);
+			if (null == count || count <= 1) {
+				mActivePerHost.remove(host);
+			} else {
+				mActivePerHost.put(host, count - 1);
+			}
+			Log.d(TAG, "onFinished: taskId = " + taskId + ", waiting = " + mWaiting.size() + ", active = " + mActive.size());
+		}
+		startPromoted();
+	}
+
+	/**
+	 * 修改同时下载的任务数，变大时马上补上等待的任务，变小时正在下载的任务不受影响
+	 * @param maxActive
+	 * @param maxActivePerHost
+	 */
+	public void setLimits(int maxActive, int maxActivePerHost) {
+		synchronized (this) {
+			mMaxActive = Math.max(maxActive, 1);
+			mMaxActivePerHost = Math.max(maxActivePerHost, 1);
+		}
+		startPromoted();
+	}
+
+	/**
+	 * 判断任务是不是在等待
+	 * @param taskId
+	 * @return
+	 */
+	public synchronized boolean isWaiting(long taskId) {
+		return mWaitingById.containsKey(taskId);
+	}
+
+	/**
+	 * 判断任务是不是占着名额在下载
+	 * @param taskId
+	 * @return
+	 */
+	public synchronized boolean isActive(long taskId) {
+		return mActive.containsKey(taskId);
+	}
+
+	/**
+	 * 获取等待的任务数
+	 * @return
+	 */
+	public synchronized int getWaitingCount() {
+		return mWaiting.size();
+	}
+
+	/**
+	 * 获取正在下载的任务数
+	 * @return
+	 */
+	public synchronized int getActiveCount() {
+		return mActive.size();
+	}
+
+	/**
+	 * 获取同时下载的任务数
+	 * @return
+	 */
+	public synchronized int getMaxActive() {
+		return mMaxActive;
+	}
+
+	/**
+	 * 在锁里挑出可以开始的任务，挪到正在下载里
+	 * @return
+	 */
+	private synchronized List<Long> promote() {
+		List<Long> promoted = new ArrayList<Long>();
+		Iterator<Entry> iterator = mWaiting.iterator();
+		while (mActive.size() < mMaxActive && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			Integer count = mActivePerHost.get(entry.mHost);
+			if (null != count && count >= mMaxActivePerHost) {
+				// this host is busy, let tasks of other hosts go first
+				continue;
+			}
+			iterator.remove();
+			mWaitingById.remove(entry.mTaskId);
+			mActive.put(entry.mTaskId, entry.mHost);
+			mActivePerHost.put(entry.mHost, null == count ? 1 : count + 1);
+			promoted.add(entry.mTaskId);
+		}
+		return promoted;
+	}
+
+	private void startPromoted() {
+		for (Long taskId : promote()) {
+			Log.d(TAG, "startPromoted: taskId = " + taskId);
+			try {
+				mStarter.start(taskId);
+			} catch (RuntimeException ex) {
+				Log.e(TAG, "startPromoted: couldn't start task " + taskId + ": " + ex);
+				onFinished(taskId);
+			}
+		}
+	}
+}
@@ -5,18 +5,30 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpUriRequest;
 
 import android.content.Context;
-import android.net.http.AndroidHttpClient;
 import android.os.FileUtils;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
@@ -27,12 +39,21 @@ public class DownloadRunnable implements Runnable {
 	private Context mContext;
 	private DownloadMsgHandler mDownloadMsgHandler;
 	private DownloadInfo mDownloadInfo;
+	private ExecutorService mExecutor;	//分段下载时用来执行各段的线程池
+	private HttpClient mClient;	//Service共享的HTTP客户端
 	
-	public FileOutputStream mStream;	//文件输出流
+	public RandomAccessFile mFile;	//目标文件
+	public FileChannel mChannel;	//目标文件的通道，按偏移写入，各分段可以并发写
 	public int mRedirectCount = 0;	//重定向次数
 	public boolean mContinuingDownload = false;	//是否续传
 	public String mHeaderContentLength;
 	public long mTimeLastNotification = 0;
+	public List<DownloadSegment> mSegments = null;	//分段下载的各段，为null时表示单连接下载
+	private volatile StopRequest mSegmentError = null;	//第一个失败的分段的错误
+	private SegmentScheduler mSegmentScheduler = null;	//分段下载时给各线程分配区间
+	private DownloadWritePipeline mWritePipeline = null;	//读网络和写盘之间的流水线
+	private DownloadDigest mDigest = null;	//单连接下载时边写盘边算的摘要，只在写线程里更新
+	private final CopyOnWriteArraySet<HttpUriRequest> mRequests = new CopyOnWriteArraySet<HttpUriRequest>();	//正在进行的请求，暂停、取消时马上中断
 
     /**
      * Raised from methods called by run() to indicate that the current request
@@ -69,21 +90,48 @@ public class DownloadRunnable implements Runnable {
     	private static final long serialVersionUID = 1L;
     }
 	
-	public DownloadRunnable(Context context, DownloadMsgHandler downloadMsgHandler, DownloadInfo downloadInfo) {
+	public DownloadRunnable(Context context, DownloadMsgHandler downloadMsgHandler, DownloadInfo downloadInfo, ExecutorService executor, HttpClient client) {
 		mContext = context;
 		mDownloadMsgHandler = downloadMsgHandler;
 		mDownloadInfo = downloadInfo;
+		mExecutor = executor;
+		mClient = client;
 		
-		mDownloadInfo.mBytesSoFar = 0;
 		mDownloadInfo.mHasActiveThread = true;
 	}
 	
 	/**
-	 * 设置控制状态
+	 * 设置控制状态，暂停、取消时中断正在进行的请求，阻塞在连接或者读数据上的线程马上返回
 	 * @param control
 	 */
 	public void setControl(int control) {
 		mDownloadInfo.mControl = control;
+		if (control != Downloads.CONTROL_RUN) {
+			for (HttpUriRequest request : mRequests) {
+				request.abort();
+			}
+		}
+	}
+	
+	/**
+	 * 登记一个要发出的请求，已经要求暂停、取消时直接中断
+	 * @param request
+	 */
+	private void trackRequest(HttpUriRequest request) {
+		mRequests.add(request);
+		// setControl or a failed segment may have gone over the set just before the add
+		if (mDownloadInfo.mControl != Downloads.CONTROL_RUN || mSegmentError != null) {
+			request.abort();
+		}
+	}
+	
+	/**
+	 * 请求结束，关闭连接并取消登记
+	 * @param request
+	 */
+	private void untrackRequest(HttpUriRequest request) {
+		mRequests.remove(request);
+		request.abort();
 	}
 
 	/**
@@ -91,26 +139,35 @@ public class DownloadRunnable implements Runnable {
      */
 	@Override
 	public void run() {		
+		mDownloadInfo.mProgressSlot = ProgressTable.getInstance().acquire(mDownloadInfo.mId,
+				mDownloadInfo.mTotalBytes, mDownloadInfo.mBytesSoFar, Downloads.STATUS_RUNNING);
 		reportStatusChanged(0, Downloads.STATUS_RUNNING);
 		
 		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 		
-		AndroidHttpClient client = null;
 		int finalStatus = Downloads.STATUS_UNKNOWN_ERROR;
 		
 		try {	
-		    client = AndroidHttpClient.newInstance(userAgent(), mContext);			
-		    HttpGet request = new HttpGet(mDownloadInfo.mUri);
-			
-			try {
-			    executeDownload(client, request);
-			} catch (RetryDownload exc) {
-			    exc.printStackTrace();
-			} finally {
-			    request.abort();
-			    request = null;
-			}
+		    startWritePipeline();
+		    
+		    boolean finished = false;
+		    while (!finished) {
+		    	// a redirect sends the same download to mDownloadInfo.mUri again
+		    	HttpGet request = new HttpGet(mDownloadInfo.mUri);
+		    	trackRequest(request);
+				try {
+				    // the connection goes back to the shared pool once the response is consumed
+				    executeDownload(mClient, request);
+				    finished = true;
+				} catch (RetryDownload exc) {
+				    Log.v(TAG, "run: retrying " + mDownloadInfo.mId + " at " + mDownloadInfo.mUri);
+				} finally {
+				    untrackRequest(request);
+				    request = null;
+				}
+		    }
 			
+		    verifyDigest();
 		    finalizeDestinationFile();
 		    finalStatus = Downloads.STATUS_SUCCESS;
 		} catch (StopRequest error) {
@@ -123,12 +180,14 @@ public class DownloadRunnable implements Runnable {
 		    finalStatus = Downloads.STATUS_UNKNOWN_ERROR;
 		    // falls through to the code that reports an error
 		} finally {
-		    if (client != null) {
-				client.close();
-				client = null;
-		    }
+		    closeWritePipeline();
+		    saveDigest(finalStatus);
 		    cleanupDestination(finalStatus);
+		    // save exactly how far we got, the next run resumes from there
+		    reportProgress(true);
 		    reportStatusChanged(0, finalStatus);
+		    ProgressTable.getInstance().release(mDownloadInfo.mProgressSlot);
+		    mDownloadInfo.mProgressSlot = -1;
 		    mDownloadInfo.mHasActiveThread = false;
 		}
 	}
@@ -137,11 +196,19 @@ public class DownloadRunnable implements Runnable {
      * Fully execute a single download request - setup and send the request,
      * handle the response, and transfer the data to the destination file.
      */
-    private void executeDownload(AndroidHttpClient client, HttpGet request) throws StopRequest, RetryDownload {
-    	byte data[] = new byte[Constants.BUFFER_SIZE];
-	
+    private void executeDownload(HttpClient client, HttpGet request) throws StopRequest, RetryDownload {
     	//获取断点续传信息
 		setupDestinationFile();
+		
+		//服务器支持Range时分段下载，否则走下面的单连接下载
+		if (null == mSegments && !mContinuingDownload) {
+			mSegments = probeSegments(client);
+		}
+		if (null != mSegments) {
+			executeSegmentedDownload(client);
+			return;
+		}
+		
 		//组装请求头
 		addRequestHeaders(request);
 	
@@ -160,9 +227,11 @@ public class DownloadRunnable implements Runnable {
 		try {
 			entityStream = response.getEntity().getContent();
 		} catch (IOException ex) {
+			checkPausedOrCanceled();
 		    throw new StopRequest(getFinalStatusForHttpError(), "while getting entity: " + ex.toString(), ex);
 		}
-		transferData(data, entityStream);
+		startDigest();
+		transferData(entityStream);
     }
 
     /**
@@ -176,17 +245,35 @@ public class DownloadRunnable implements Runnable {
 				throw new StopRequest(Downloads.STATUS_FILE_ERROR, "found invalid internal destination filename");
 		    }
 		    
+		    // the destination file is preallocated, so its length doesn't tell how
+		    // much was downloaded, the progress saved in the database does
+		    long savedBytes = mDownloadInfo.mBytesSoFar;
+		    mDownloadInfo.mBytesSoFar = 0;
+		    
 		    // We're resuming a download that got interrupted
 		    File f = new File(mDownloadInfo.mFilePath);
 		    if (f.exists()) {
-				long fileLength = f.length();
-				if (fileLength == 0) {
+				long fileLength = Math.min(f.length(), savedBytes);
+				List<DownloadSegment> segments = DownloadSegment.loadSegments(mDownloadInfo.mId);
+				if (fileLength == 0 && segments == null) {
 				    // The download hadn't actually started, we can restart from scratch
 				    f.delete();
+				    DownloadSegment.deleteSegments(mDownloadInfo.mId);
 				} else if (mDownloadInfo.mETag == null) {
 				    // This should've been caught upon failure
 				    f.delete();
+				    DownloadSegment.deleteSegments(mDownloadInfo.mId);
 				    throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, "Trying to resume a download that can't be resumed");
+				} else if (segments != null) {
+				    // A segmented download, every segment resumes from its own offset
+				    mSegments = segments;
+				    mDownloadInfo.mBytesSoFar = getSegmentedBytesSoFar();
+				    mDownloadInfo.mTotalBytes = 0;
+				    for (DownloadSegment segment : segments) {
+				    	mDownloadInfo.mTotalBytes = Math.max(mDownloadInfo.mTotalBytes, segment.mEndByte + 1);
+				    }
+				    mHeaderContentLength = Long.toString(mDownloadInfo.mTotalBytes);
+				    mContinuingDownload = true;
 				} else {
 				    // All right, we'll be able to resume this download
 				    mDownloadInfo.mBytesSoFar = fileLength;
@@ -199,13 +286,306 @@ public class DownloadRunnable implements Runnable {
 		}
     }
 
+    /**
+     * Ask the server whether it supports byte ranges for this download, and
+     * if so split it into segments that can be fetched in parallel.
+     * 
+     * @return the segments, or null if the download should use a single
+     *         connection
+     */
+    private List<DownloadSegment> probeSegments(HttpClient client) throws StopRequest {
+    	if (mDownloadInfo.mMaxSegments <= 1 || null == mExecutor) {
+    		return null;
+    	}
+    	
+    	checkConnectivity();
+    	
+    	HttpHead request = new HttpHead(mDownloadInfo.mUri);
+    	addCustomHeaders(request);
+    	trackRequest(request);
+    	HttpResponse response;
+    	try {
+    		response = client.execute(request);
+    	} catch (IllegalArgumentException ex) {
+    		Log.w(TAG, "probeSegments: while trying to execute request: " + ex.toString());
+    		return null;
+    	} catch (IOException ex) {
+    		// aborted by a pause or cancel, don't go on with a single connection
+    		checkPausedOrCanceled();
+    		Log.w(TAG, "probeSegments: while trying to execute request: " + ex.toString());
+    		return null;
+    	} finally {
+    		untrackRequest(request);
+    	}
+    	
+    	// redirects and errors are handled by the single connection path
+    	int statusCode = response.getStatusLine().getStatusCode();
+    	if (statusCode != Downloads.STATUS_SUCCESS) {
+    		Log.v(TAG, "probeSegments: status " + statusCode + ", fall back to single connection");
+    		return null;
+    	}
+    	Header header = response.getFirstHeader("Accept-Ranges");
+    	if (header == null || !"bytes".equalsIgnoreCase(header.getValue().trim())) {
+    		Log.v(TAG, "probeSegments: server doesn't accept byte ranges");
+    		return null;
+    	}
+    	if (response.getFirstHeader("Transfer-Encoding") != null || response.getFirstHeader("Content-Encoding") != null) {
+    		return null;
+    	}
+    	header = response.getFirstHeader("Content-Length");
+    	if (header == null) {
+    		return null;
+    	}
+    	long totalBytes;
+    	try {
+    		totalBytes = Long.parseLong(header.getValue().trim());
+    	} catch (NumberFormatException ex) {
+    		return null;
+    	}
+    	
+    	int segmentCount = (int) Math.min(mDownloadInfo.mMaxSegments, totalBytes / Constants.MIN_SEGMENT_SIZE);
+    	if (segmentCount <= 1) {
+    		return null;
+    	}
+    	
+		if (mDownloadInfo.mMimeType == null) {
+		    header = response.getFirstHeader("Content-Type");
+		    if (header != null) {
+		    	mDownloadInfo.mMimeType = mDownloadInfo.sanitizeMimeType(header.getValue());
+		    }
+		}
+		header = response.getFirstHeader("ETag");
+		if (header != null) {
+			mDownloadInfo.mETag = header.getValue();
+		}
+		takeHashFromResponse(response);
+		mHeaderContentLength = Long.toString(totalBytes);
+		mDownloadInfo.mTotalBytes = totalBytes;
+		
+	    Log.v(TAG, "probeSegments: Content-Length = " + mHeaderContentLength + ", segmentCount = " + segmentCount);
+	    
+		reportNetworkChanged(mDownloadInfo.mETag, mDownloadInfo.mMimeType);
+		
+		// check connectivity again now that we know the total size
+		checkConnectivity();
+		
+		return DownloadSegment.split(totalBytes, segmentCount);
+    }
+
+    /**
+     * Fetch all unfinished segments in parallel on the executor, and wait for
+     * them while reporting the aggregate progress. The workers take their
+     * ranges from a {@link SegmentScheduler}, so a worker that finishes early
+     * splits the largest remaining range instead of going idle.
+     */
+    private void executeSegmentedDownload(HttpClient client) throws StopRequest {
+    	mDownloadInfo.mTransferPath = DownloadInfo.TRANSFER_BUFFERED;
+    	// the segments fill the preallocated file in at their own offsets
+    	openDestination(!mContinuingDownload);
+    	mSegmentScheduler = new SegmentScheduler(mSegments);
+    	saveSegments();
+    	
+    	// resumed segments may outnumber the workers, the scheduler hands them out one by one
+    	int workerCount = Math.max(mDownloadInfo.mMaxSegments, 1);
+    	CountDownLatch latch = new CountDownLatch(workerCount);
+    	for (int i = 0; i < workerCount; i++) {
+    		mExecutor.execute(new SegmentWorker(client, latch));
+    	}
+    	
+    	try {
+	    	long lastSave = SystemClock.elapsedRealtime();
+	    	while (!latch.await(DownloadEventBus.getInstance().getProgressInterval(), TimeUnit.MILLISECONDS)) {
+	    		mDownloadInfo.mBytesSoFar = getSegmentedBytesSoFar();
+	    		reportProgress();
+	    		// progress may be sampled much more often than the resume state needs saving
+	    		long now = SystemClock.elapsedRealtime();
+	    		if (now - lastSave >= Constants.PROGRESS_FLUSH_TIME) {
+	    			saveSegments();
+	    			lastSave = now;
+	    		}
+	    	}
+    	} catch (InterruptedException ex) {
+    		// the task was removed, tell the segments to stop and wait for them: once this
+    		// returns, run() closes the pipeline and the file the workers are still using
+    		mSegmentError = new StopRequest(Downloads.STATUS_CANCELED, "segmented download interrupted");
+    		for (HttpUriRequest request : mRequests) {
+    			request.abort();
+    		}
+    		awaitUninterruptibly(latch);
+    		Thread.currentThread().interrupt();
+    		throw mSegmentError;
+    	} finally {
+    		mDownloadInfo.mBytesSoFar = getSegmentedBytesSoFar();
+    		saveSegments();
+    		Log.v(TAG, "executeSegmentedDownload: " + mSegmentScheduler.getStealCount() + " ranges split");
+    	}
+    	
+    	if (mSegmentError != null) {
+    		throw mSegmentError;
+    	}
+    	if (mDownloadInfo.mBytesSoFar != mDownloadInfo.mTotalBytes) {
+    		throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, "mismatched segmented content length");
+    	}
+    }
+
+    /**
+     * Wait until all segment workers have exited, even if interrupted again.
+     * The caller restores the interrupt flag.
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+    	while (true) {
+    		try {
+    			latch.await();
+    			return;
+    		} catch (InterruptedException ex) {
+    			// keep waiting, the workers are stopping
+    		}
+    	}
+    }
+
+    /**
+     * @return the sum of the bytes downloaded by all segments
+     */
+    private long getSegmentedBytesSoFar() {
+    	if (null != mSegmentScheduler) {
+    		return mSegmentScheduler.getBytesSoFar();
+    	}
+    	long bytesSoFar = 0;
+    	for (DownloadSegment segment : mSegments) {
+    		bytesSoFar += segment.mCurrentBytes;
+    	}
+    	return bytesSoFar;
+    }
+
+    /**
+     * Save the resume offsets of all segments, including the ones split off
+     * by the scheduler.
+     */
+    private void saveSegments() {
+    	mSegments = mSegmentScheduler.getSegments();
+    	DownloadSegment.saveSegments(mDownloadInfo.mId, mSegments);
+    }
+
+    /**
+     * Takes ranges from the segment scheduler until there is nothing left to
+     * fetch or steal.
+     */
+    private class SegmentWorker implements Runnable {
+    	private HttpClient mClient;
+    	private CountDownLatch mLatch;
+    	
+    	public SegmentWorker(HttpClient client, CountDownLatch latch) {
+    		mClient = client;
+    		mLatch = latch;
+    	}
+    	
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			
+			try {
+				DownloadSegment segment;
+				while (mSegmentError == null && (segment = mSegmentScheduler.nextSegment()) != null) {
+					try {
+						fetchSegment(mClient, segment);
+					} finally {
+						mSegmentScheduler.release(segment);
+					}
+				}
+			} catch (StopRequest error) {
+				if (mSegmentError == null) {
+					mSegmentError = error;
+				}
+			} catch (Throwable ex) { // sometimes the socket code throws unchecked exceptions
+				ex.printStackTrace();
+				if (mSegmentError == null) {
+					mSegmentError = new StopRequest(Downloads.STATUS_UNKNOWN_ERROR, "segment worker: " + ex.toString(), ex);
+				}
+			} finally {
+				mLatch.countDown();
+			}
+		}
+    }
+
+    /**
+     * Fetch a single segment through its own connection, with a Range header,
+     * and write it at the segment's offset in the destination file. Stops at
+     * the segment's end, which may move down while fetching if the scheduler
+     * gives the tail of the range to another worker.
+     */
+    private void fetchSegment(HttpClient client, DownloadSegment segment) throws StopRequest {
+		HttpGet request = new HttpGet(mDownloadInfo.mUri);
+		trackRequest(request);
+		try {
+			addCustomHeaders(request);
+		    if (mDownloadInfo.mETag != null) {
+		    	request.addHeader("If-Match", mDownloadInfo.mETag);
+		    }
+		    request.addHeader("Range", "bytes=" + segment.getCurrentOffset() + "-" + segment.mEndByte);
+		    
+		    checkConnectivity();
+		    HttpResponse response = sendRequest(client, request);
+		    int statusCode = response.getStatusLine().getStatusCode();
+		    if (statusCode == 503 && mDownloadInfo.mNumFailed < Constants.MAX_RETRIES) {
+		    	// same as a single connection: wait as long as the server asks, the other segments stop too
+		    	handleServiceUnavailable(response);
+		    }
+		    if (statusCode != 206) {
+		    	int finalStatus = Downloads.isStatusError(statusCode) ? statusCode : Downloads.STATUS_CANNOT_RESUME;
+		    	throw new StopRequest(finalStatus, "segment " + segment.mIndex + " got http status " + statusCode);
+		    }
+		    
+			InputStream entityStream;
+			try {
+				entityStream = response.getEntity().getContent();
+			} catch (IOException ex) {
+				checkPausedOrCanceled();
+			    throw new StopRequest(getFinalStatusForHttpError(), "while getting segment entity: " + ex.toString(), ex);
+			}
+			
+			// the segment's own offset only moves once the data is on disk
+			long offset = segment.getCurrentOffset();
+			long requestedEnd = segment.mEndByte;
+			AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(Constants.BUFFER_SIZE, mDownloadInfo.mMaxBufferSize);
+			while (offset <= segment.mEndByte) {
+				if (mSegmentError != null) {
+					// another segment failed, the whole download stops
+					return;
+				}
+				DownloadWritePipeline.Chunk chunk = obtainChunk(sizer.getSize());
+				int length = (int) Math.min(sizer.getSize(), segment.mEndByte - offset + 1);
+				int bytesRead = readFromResponse(chunk.mData, length, entityStream);
+				sizer.onRead(length, bytesRead);
+				mDownloadInfo.mBufferSize = sizer.getSize();
+				if (bytesRead == -1) {
+					mWritePipeline.recycle(chunk);
+					throw new StopRequest(getFinalStatusForHttpError(), "closed socket before end of segment " + segment.mIndex);
+				}
+				chunk.mLength = bytesRead;
+				chunk.mOffset = offset;
+				chunk.mSegment = segment;
+				mWritePipeline.submit(chunk);
+				offset += bytesRead;
+				
+				checkPausedOrCanceled();
+			}
+			if (offset == requestedEnd + 1) {
+				// nothing left in the response, hand the connection back for reuse
+				// instead of letting abort() close it
+				releaseConnection(response);
+			}
+			// the scheduler must see the segment complete before it is released
+			flushWritePipeline();
+		} finally {
+			untrackRequest(request);
+		}
+    }
+
     /**
      * Add custom headers for this download to the HTTP request.
      */
     private void addRequestHeaders(HttpGet request) {
-    	for (Pair<String, String> header : mDownloadInfo.getHeaders()) {
-		    request.addHeader(header.first, header.second);
-		}
+    	addCustomHeaders(request);
 	
 		if (mContinuingDownload) {
 		    if (mDownloadInfo.mETag != null) {
@@ -215,6 +595,32 @@ public class DownloadRunnable implements Runnable {
 		}
     }
 
+    /**
+     * Add the headers supplied by the initiating app to the HTTP request.
+     */
+    private void addCustomHeaders(HttpUriRequest request) {
+    	// the client is shared, so the user agent goes on each request
+    	request.addHeader("User-Agent", userAgent());
+    	for (Pair<String, String> header : mDownloadInfo.getHeaders()) {
+		    request.addHeader(header.first, header.second);
+		}
+    }
+
+    /**
+     * Release the connection of a fully read response to the shared pool, so
+     * that the next request to the same host doesn't need a new handshake.
+     */
+    private void releaseConnection(HttpResponse response) {
+    	try {
+    		if (response.getEntity() != null) {
+    			response.getEntity().consumeContent();
+    		}
+    	} catch (IOException ex) {
+    		// the connection is closed by abort() instead
+    		Log.w(TAG, "releaseConnection: " + ex.toString());
+    	}
+    }
+
     /**
      * Check if current connectivity is valid for this request.
      */
@@ -228,12 +634,14 @@ public class DownloadRunnable implements Runnable {
     /**
      * Send the request to the server, handling any I/O exceptions.
      */
-    private HttpResponse sendRequest(AndroidHttpClient client, HttpGet request) throws StopRequest {
+    private HttpResponse sendRequest(HttpClient client, HttpGet request) throws StopRequest {
 		try {
 		    return client.execute(request);
 		} catch (IllegalArgumentException ex) {
 		    throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "while trying to execute request: " + ex.toString(), ex);
 		} catch (IOException ex) {
+			// an aborted request is a pause or cancel, not a network error
+			checkPausedOrCanceled();
 		    throw new StopRequest(getFinalStatusForHttpError(), "while trying to execute request: " + ex.toString(), ex);
 		}
     }
@@ -297,6 +705,9 @@ public class DownloadRunnable implements Runnable {
 		if (header != null) {
 			mDownloadInfo.mETag = header.getValue();
 		}
+		takeHashFromResponse(response);
+		// forget the size of an earlier attempt, the file is preallocated to it
+		mDownloadInfo.mTotalBytes = -1;
 		String headerTransferEncoding = null;
 		header = response.getFirstHeader("Transfer-Encoding");
 		if (header != null) {
@@ -324,11 +735,7 @@ public class DownloadRunnable implements Runnable {
 		    throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "can't know size of download, giving up");
 		}
 	
-		try {
-		    mStream = new FileOutputStream(mDownloadInfo.mFilePath);
-		} catch (FileNotFoundException exc) {
-		    throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while opening destination file: " + exc.toString(), exc);
-		}
+		openDestination(true);
 		
 		reportNetworkChanged(mDownloadInfo.mETag, mDownloadInfo.mMimeType);
     	
@@ -338,18 +745,27 @@ public class DownloadRunnable implements Runnable {
 
     /**
      * Transfer as much data as possible from the HTTP response to the
-     * destination file.
+     * destination file. The data is read into buffers of the write pipeline
+     * and written to disk on its own thread, mBytesSoFar follows the writes.
      * 
-     * @param data
-     *            buffer to use to read data
      * @param entityStream
      *            stream for reading the HTTP response entity
      */
-    private void transferData(byte[] data, InputStream entityStream) throws StopRequest {
+    private void transferData(InputStream entityStream) throws StopRequest {
+    	// the entity stream hides the socket, so this path always copies through a buffer
+    	mDownloadInfo.mTransferPath = DownloadInfo.TRANSFER_BUFFERED;
+    	long offset = mDownloadInfo.mBytesSoFar;
+    	AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(Constants.BUFFER_SIZE, mDownloadInfo.mMaxBufferSize);
 		for (;;) {
-		    int bytesRead = readFromResponse(data, entityStream);
+			int length = sizer.getSize();
+			DownloadWritePipeline.Chunk chunk = obtainChunk(length);
+		    int bytesRead = readFromResponse(chunk.mData, length, entityStream);
+		    sizer.onRead(length, bytesRead);
+		    mDownloadInfo.mBufferSize = sizer.getSize();
 		    if (bytesRead == -1) { // success, end of stream already reached
-		    	boolean lengthMismatched = (mHeaderContentLength != null) && (mDownloadInfo.mBytesSoFar != Integer.parseInt(mHeaderContentLength));
+		    	mWritePipeline.recycle(chunk);
+		    	flushWritePipeline();
+		    	boolean lengthMismatched = (mHeaderContentLength != null) && (mDownloadInfo.mBytesSoFar != Long.parseLong(mHeaderContentLength));
 				if (lengthMismatched) {
 				    if (cannotResume()) {
 						throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, "mismatched content length");
@@ -360,8 +776,11 @@ public class DownloadRunnable implements Runnable {
 				return;
 		    }
 	
-		    writeDataToDestination(data, bytesRead);
-		    mDownloadInfo.mBytesSoFar += bytesRead;
+		    chunk.mLength = bytesRead;
+		    chunk.mOffset = offset;
+		    chunk.mSegment = null;
+		    mWritePipeline.submit(chunk);
+		    offset += bytesRead;
 		    
 		    reportProgress();	
 		    
@@ -370,14 +789,201 @@ public class DownloadRunnable implements Runnable {
     }
 
     /**
-     * Close the destination output stream.
+     * Use the Digest or Content-MD5 header of a full response as the expected
+     * hash, unless the caller gave one.
+     */
+    private void takeHashFromResponse(HttpResponse response) {
+    	Header digest = response.getFirstHeader("Digest");
+    	Header contentMd5 = response.getFirstHeader("Content-MD5");
+    	if (mDownloadInfo.setHashFromResponse(digest == null ? null : digest.getValue(), contentMd5 == null ? null : contentMd5.getValue())) {
+    		reportHashChanged(null);
+    	}
+    }
+
+    /**
+     * Start hashing the single connection download, from where the paused
+     * run stopped if its digest state is still around.
+     */
+    private void startDigest() {
+    	if (null == mDownloadInfo.mHashAlgorithm) {
+    		return;
+    	}
+    	mDigest = DownloadDigest.resume(mDownloadInfo.mId, mDownloadInfo.mHashAlgorithm, mDownloadInfo.mFilePath, mDownloadInfo.mBytesSoFar);
+    }
+
+    /**
+     * Compare the hash of the finished file with the expected one. Segmented
+     * downloads are written out of order, so their file is hashed once here.
+     */
+    private void verifyDigest() throws StopRequest {
+    	if (null == mDownloadInfo.mHashAlgorithm) {
+    		return;
+    	}
+    	
+    	String hash;
+    	if (null != mDigest && mDigest.getBytes() == mDownloadInfo.mBytesSoFar) {
+    		hash = mDigest.finish();
+    	} else {
+    		try {
+    			hash = DownloadDigest.digestFile(mDownloadInfo.mHashAlgorithm, mDownloadInfo.mFilePath, mDownloadInfo.mBytesSoFar);
+    		} catch (IOException ex) {
+    			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while hashing destination file: " + ex.toString(), ex);
+    		} catch (NoSuchAlgorithmException ex) {
+    			throw new StopRequest(Downloads.STATUS_FILE_INTEGRITY_ERROR, "unsupported hash algorithm " + mDownloadInfo.mHashAlgorithm, ex);
+    		}
+    	}
+    	mDigest = null;
+    	mDownloadInfo.mHash = hash;
+    	reportHashChanged(hash);
+    	
+    	if (null != mDownloadInfo.mExpectedHash && !DownloadDigest.matches(mDownloadInfo.mExpectedHash, hash)) {
+    		throw new StopRequest(Downloads.STATUS_FILE_INTEGRITY_ERROR, "hash mismatch");
+    	}
+    }
+
+    /**
+     * Keep the digest state of a paused download so that the next run doesn't
+     * rehash the part already on disk, drop it once the download is over.
+     */
+    private void saveDigest(int finalStatus) {
+    	if (finalStatus == Downloads.STATUS_SUCCESS || Downloads.isStatusError(finalStatus)) {
+    		DownloadDigest.discard(mDownloadInfo.mId);
+    	} else if (null != mDigest && mDigest.getBytes() == mDownloadInfo.mBytesSoFar) {
+    		mDigest.save(mDownloadInfo.mId);
+    	}
+    }
+
+    /**
+     * Start the disk writer stage of the download.
+     */
+    private void startWritePipeline() {
+    	mWritePipeline = new DownloadWritePipeline(Constants.WRITE_BEHIND_CHUNKS, new DownloadWritePipeline.ChunkWriter() {
+			@Override
+			public void writeChunk(DownloadWritePipeline.Chunk chunk) throws Throwable {
+				writeDataToDestination(chunk.mData, chunk.mLength, chunk.mOffset);
+				if (null != chunk.mSegment) {
+					chunk.mSegment.addBytes(chunk.mLength);
+				} else {
+					// single connection chunks are written in file order
+					if (null != mDigest) {
+						mDigest.update(chunk.mData, 0, chunk.mLength);
+					}
+					mDownloadInfo.mBytesSoFar += chunk.mLength;
+				}
+			}
+		});
+    	mWritePipeline.start(mExecutor);
+    }
+
+    /**
+     * Write out everything still queued and stop the disk writer stage, so
+     * that the progress saved afterwards matches the data on disk.
+     */
+    private void closeWritePipeline() {
+    	if (null == mWritePipeline) {
+    		return;
+    	}
+    	mWritePipeline.close();
+    	mDownloadInfo.mReaderWaits = mWritePipeline.getReaderWaits();
+    	mDownloadInfo.mWriterWaits = mWritePipeline.getWriterWaits();
+    	Log.v(TAG, "closeWritePipeline: bufferSize = " + mDownloadInfo.mBufferSize + ", reads = " + mDownloadInfo.mReadCount.get() + ", writes = " + mDownloadInfo.mWriteCount.get());
+    	if (null != mSegmentScheduler) {
+    		mDownloadInfo.mBytesSoFar = getSegmentedBytesSoFar();
+    		saveSegments();
+    	}
+    	mWritePipeline = null;
+    }
+
+    /**
+     * Get an empty buffer from the write pipeline, waiting while all of them
+     * are queued for the disk. The buffer is borrowed from the shared pool and
+     * goes back to it once written.
+     */
+    private DownloadWritePipeline.Chunk obtainChunk(int size) throws StopRequest {
+    	DownloadWritePipeline.Chunk chunk = mWritePipeline.obtain(size);
+    	if (null == chunk) {
+    		throw getWriteError();
+    	}
+    	return chunk;
+    }
+
+    /**
+     * Wait until everything submitted to the write pipeline is on disk.
+     */
+    private void flushWritePipeline() throws StopRequest {
+    	if (!mWritePipeline.flush()) {
+    		throw getWriteError();
+    	}
+    }
+
+    /**
+     * @return the error that stopped the write pipeline
+     */
+    private StopRequest getWriteError() {
+    	Throwable error = mWritePipeline.getWriteError();
+    	if (error instanceof StopRequest) {
+    		return (StopRequest) error;
+    	} else if (null != error) {
+    		return new StopRequest(Downloads.STATUS_FILE_ERROR, "while writing destination file: " + error.toString(), error);
+    	}
+    	return new StopRequest(Downloads.STATUS_CANCELED, "interrupted while waiting for the disk");
+    }
+
+    /**
+     * Open the destination file for positional writes. A new download is
+     * truncated and then preallocated to its full length when known, so the
+     * filesystem can lay it out once instead of growing it write by write.
+     * 
+     * @param truncate
+     *            whether to discard the current content of the file
+     */
+    private void openDestination(boolean truncate) throws StopRequest {
+    	if (mChannel != null) {
+    		return;
+    	}
+    	try {
+    		mFile = new RandomAccessFile(mDownloadInfo.mFilePath, "rw");
+    		mChannel = mFile.getChannel();
+    		if (truncate) {
+    			mFile.setLength(0);
+    		}
+    		if (mDownloadInfo.mTotalBytes > 0 && mFile.length() < mDownloadInfo.mTotalBytes) {
+    			checkAvailableSpace(mDownloadInfo.mTotalBytes - mFile.length());
+    			mFile.setLength(mDownloadInfo.mTotalBytes);
+    		}
+    	} catch (FileNotFoundException exc) {
+		    throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while opening destination file: " + exc.toString(), exc);
+    	} catch (IOException exc) {
+    		throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while preallocating destination file: " + exc.toString(), exc);
+    	}
+    }
+
+    /**
+     * Fail early when the filesystem can't hold the rest of the download.
+     */
+    private void checkAvailableSpace(long bytesNeeded) throws StopRequest {
+    	long availableBytes;
+    	try {
+    		availableBytes = Helpers.getAvailableBytes(Helpers.getFilesystemRoot(mDownloadInfo.mFilePath));
+    	} catch (IllegalArgumentException ex) {
+    		// unknown filesystem, let the writes find out
+    		return;
+    	}
+    	if (availableBytes < bytesNeeded) {
+    		throw new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR, "insufficient space to preallocate destination file");
+    	}
+    }
+
+    /**
+     * Close the destination file.
      */
     private void closeDestination() {
 		try {
 		    // close the file
-		    if (mStream != null) {
-				mStream.close();
-				mStream = null;
+		    if (mFile != null) {
+				mFile.close();
+				mFile = null;
+				mChannel = null;
 		    }
 		} catch (IOException ex) {
 			Log.e(TAG, "closeDestination: exception when closing the file after download : " + ex);
@@ -398,27 +1004,12 @@ public class DownloadRunnable implements Runnable {
 
     /**
      * Handle a 503 Service Unavailable status by processing the Retry-After
-     * header.
+     * header. The retry scheduler waits that long before the next attempt.
      */
     private void handleServiceUnavailable(HttpResponse response) throws StopRequest {
 		Header header = response.getFirstHeader("Retry-After");
 		if (header != null) {
-		    try {
-				int retryAfter = Integer.parseInt(header.getValue());
-				if (retryAfter < 0) {
-				    retryAfter = 0;
-				} else {
-				    if (retryAfter < Constants.MIN_RETRY_AFTER) {
-				    	retryAfter = Constants.MIN_RETRY_AFTER;
-				    } else if (retryAfter > Constants.MAX_RETRY_AFTER) {
-				    	retryAfter = Constants.MAX_RETRY_AFTER;
-				    }
-				    retryAfter += Helpers.sRandom.nextInt(Constants.MIN_RETRY_AFTER + 1);
-				    retryAfter *= 1000;
-				}
-		    } catch (NumberFormatException ex) {
-		    	// ignored - retryAfter stays 0 in this case.
-		    }
+		    mDownloadInfo.mRetryAfter = Helpers.parseRetryAfter(header.getValue());
 		}
 		throw new StopRequest(Downloads.STATUS_WAITING_TO_RETRY, "got 503 Service Unavailable, will retry later");
     }
@@ -454,20 +1045,17 @@ public class DownloadRunnable implements Runnable {
     }
 
     /**
-     * Read some data from the HTTP response stream, handling I/O errors.
-     * 
-     * @param data
-     *            buffer to use to read data
-     * @param entityStream
-     *            stream for reading the HTTP response entity
-     * @return the number of bytes actually read or -1 if the end of the stream
-     *         has been reached
+     * Read at most length bytes from the HTTP response stream, handling I/O
+     * errors.
      */
-    private int readFromResponse(byte[] data, InputStream entityStream) throws StopRequest {
+    private int readFromResponse(byte[] data, int length, InputStream entityStream) throws StopRequest {
 		try {
-		    return entityStream.read(data);
+			mDownloadInfo.mReadCount.incrementAndGet();
+		    return entityStream.read(data, 0, length);
 		} catch (IOException ex) {
 		    reportProgress();	
+		    // the stream was closed under us by a pause or cancel, what's written so far stays
+		    checkPausedOrCanceled();
 		    if (cannotResume()) {
 				String message = "while reading response: " + ex.toString() + ", can't resume interrupted download with no ETag";
 				throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, message, ex);
@@ -486,34 +1074,36 @@ public class DownloadRunnable implements Runnable {
     }
 
     /**
-     * Write a data buffer to the destination file.
+     * Write a data buffer to the destination file at the given offset. The
+     * write doesn't move the channel position, so the segments of a segmented
+     * download can write concurrently without locking.
      * 
      * @param data
      *            buffer containing the data to write
      * @param bytesRead
      *            how many bytes to write from the buffer
+     * @param offset
+     *            position in the destination file of the first byte
      */
-    private void writeDataToDestination(byte[] data, int bytesRead) throws StopRequest {
-    	for (;;) {
-		    try {
-				if (mStream == null) {
-				    mStream = new FileOutputStream(mDownloadInfo.mFilePath, true);
-				}
-				mStream.write(data, 0, bytesRead);
-				//closeDestination();
-				return;
-		    } catch (IOException ex) {
-				if (!Helpers.isExternalMediaMounted()) {
-				    throw new StopRequest( Downloads.STATUS_DEVICE_NOT_FOUND_ERROR, "external media not mounted while writing destination file");
-				}
-		
-				long availableBytes = Helpers.getAvailableBytes(Helpers.getFilesystemRoot(mDownloadInfo.mFilePath));
-				if (availableBytes < bytesRead) {
-				    throw new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR, "insufficient space while writing destination file", ex);
-				}
-				throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while writing destination file: " + ex.toString(), ex);
-		    }
-		} 
+    private void writeDataToDestination(byte[] data, int bytesRead, long offset) throws StopRequest {
+	    try {
+	    	openDestination(false);
+	    	ByteBuffer buffer = ByteBuffer.wrap(data, 0, bytesRead);
+	    	while (buffer.hasRemaining()) {
+	    		offset += mChannel.write(buffer, offset);
+	    		mDownloadInfo.mWriteCount.incrementAndGet();
+	    	}
+	    } catch (IOException ex) {
+			if (!Helpers.isExternalMediaMounted()) {
+			    throw new StopRequest( Downloads.STATUS_DEVICE_NOT_FOUND_ERROR, "external media not mounted while writing destination file");
+			}
+	
+			long availableBytes = Helpers.getAvailableBytes(Helpers.getFilesystemRoot(mDownloadInfo.mFilePath));
+			if (availableBytes < bytesRead) {
+			    throw new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR, "insufficient space while writing destination file", ex);
+			}
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while writing destination file: " + ex.toString(), ex);
+	    }
     }
 
     /**
@@ -521,14 +1111,14 @@ public class DownloadRunnable implements Runnable {
      * appropriately if it has been.
      */
     private void checkPausedOrCanceled() throws StopRequest {
-    	synchronized (mDownloadInfo) {
-		    if (mDownloadInfo.mControl == Downloads.CONTROL_PAUSED) {
-		    	throw new StopRequest(Downloads.STATUS_PAUSED, "download paused by owner");
-		    }
-		    if (mDownloadInfo.mControl == Downloads.CONTROL_CANCEL) {
-		    	throw new StopRequest(Downloads.STATUS_CANCELED, "download canceled");
-		    }
-		}
+    	// a single volatile read, no monitor on the per-chunk path
+    	int control = mDownloadInfo.mControl;
+	    if (control == Downloads.CONTROL_PAUSED) {
+	    	throw new StopRequest(Downloads.STATUS_PAUSED, "download paused by owner");
+	    }
+	    if (control == Downloads.CONTROL_CANCEL) {
+	    	throw new StopRequest(Downloads.STATUS_CANCELED, "download canceled");
+	    }
     }
 
     /**
@@ -539,12 +1129,22 @@ public class DownloadRunnable implements Runnable {
 		// make sure the file is readable
 		FileUtils.setPermissions(mDownloadInfo.mFilePath, 0644, -1, -1);
 		syncDestination();
+		DownloadSegment.deleteSegments(mDownloadInfo.mId);
     }
 
     /**
      * Sync the destination file to storage.
      */
     private void syncDestination() {
+    	if (mChannel != null) {
+    		try {
+    			mChannel.force(true);
+    			return;
+    		} catch (IOException ex) {
+    			Log.w(TAG, "syncDestination: IOException trying to force " + mDownloadInfo.mFilePath + ": " + ex);
+    		}
+    	}
+    	
 		FileOutputStream downloadedFileStream = null;
 		try {
 		    downloadedFileStream = new FileOutputStream(mDownloadInfo.mFilePath, true);
@@ -590,6 +1190,7 @@ public class DownloadRunnable implements Runnable {
 		closeDestination();
 		if (mDownloadInfo.mFilePath != null && Downloads.isStatusError(finalStatus)) {
 		    new File(mDownloadInfo.mFilePath).delete();
+		    DownloadSegment.deleteSegments(mDownloadInfo.mId);
 		}
     }
     
@@ -602,6 +1203,7 @@ public class DownloadRunnable implements Runnable {
      */
     private void reportStatusChanged(int oldStatus, int newStatus) {
     	mDownloadInfo.mStatus = newStatus;
+    	ProgressTable.getInstance().updateStatus(mDownloadInfo.mProgressSlot, newStatus);
     	
     	mDownloadMsgHandler.sendStatusChanged(mDownloadInfo.mId, oldStatus, newStatus);
     }
@@ -610,8 +1212,21 @@ public class DownloadRunnable implements Runnable {
      * Report download progress through the database if necessary.
      */
     private void reportProgress() {
+    	reportProgress(false);
+    }
+
+    /**
+     * Report download progress through the database.
+     * 
+     * @param force
+     *            report even if the last report was less than
+     *            {@link DownloadEventBus#getProgressInterval()} ago
+     */
+    private void reportProgress(boolean force) {
+		// the live table is cheap to write, keep it exact
+		ProgressTable.getInstance().updateProgress(mDownloadInfo.mProgressSlot, mDownloadInfo.mTotalBytes, mDownloadInfo.mBytesSoFar);
 		long now = System.currentTimeMillis();
-		if (now - mTimeLastNotification > Constants.MIN_PROGRESS_TIME) {
+		if (force || now - mTimeLastNotification > DownloadEventBus.getInstance().getProgressInterval()) {
 		    mDownloadMsgHandler.sendProgressChangeMessage(mDownloadInfo.mId, mDownloadInfo.mTotalBytes, mDownloadInfo.mBytesSoFar);
 		    mTimeLastNotification = now;
 		}
@@ -630,4 +1245,8 @@ public class DownloadRunnable implements Runnable {
     private void reportNetworkChanged(String etag, String mimeType) {
     	mDownloadMsgHandler.sendNetworkMessage(mDownloadInfo.mId, etag, mimeType);
     }
+    
+    private void reportHashChanged(String hash) {
+    	mDownloadMsgHandler.sendHashMessage(mDownloadInfo.mId, mDownloadInfo.mHashAlgorithm, mDownloadInfo.mExpectedHash, hash);
+    }
 }
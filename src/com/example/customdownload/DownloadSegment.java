@@ -0,0 +1,115 @@
+package com.example.customdownload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分段下载中的一段字节区间，[mStartByte, mEndByte]，两端都包含
+ */
+public class DownloadSegment {
+	public int mIndex;	//分段序号
+	public long mStartByte;	//起始偏移
+	public volatile long mEndByte;	//结束偏移(包含)，被调度器切分时会变小
+	public volatile long mCurrentBytes;	//本段已下载大小，只由负责本段的线程写
+
+	public DownloadSegment(int index, long startByte, long endByte, long currentBytes) {
+		mIndex = index;
+		mStartByte = startByte;
+		mEndByte = endByte;
+		mCurrentBytes = currentBytes;
+	}
+
+	/**
+	 * 获取本段总大小
+	 * @return
+	 */
+	public long getLength() {
+		return mEndByte - mStartByte + 1;
+	}
+
+	/**
+	 * 获取本段剩余大小
+	 * @return
+	 */
+	public long getRemainingBytes() {
+		return getLength() - mCurrentBytes;
+	}
+
+	/**
+	 * 获取下一个要写入的文件偏移
+	 * @return
+	 */
+	public long getCurrentOffset() {
+		return mStartByte + mCurrentBytes;
+	}
+
+	/**
+	 * 记录写入的字节数。本段被切分时可能多读了一点越过新的结束位置，
+	 * 多出来的字节也属于后一段，所以不计入本段
+	 * @param bytes
+	 */
+	public void addBytes(long bytes) {
+		mCurrentBytes = Math.min(mCurrentBytes + bytes, getLength());
+	}
+
+	/**
+	 * 本段是否已下载完成
+	 * @return
+	 */
+	public boolean isComplete() {
+		return mCurrentBytes >= getLength();
+	}
+
+	/**
+	 * 把[0, totalBytes)平均分成segmentCount段
+	 * @param totalBytes
+	 * @param segmentCount
+	 * @return
+	 */
+	public static List<DownloadSegment> split(long totalBytes, int segmentCount) {
+		List<DownloadSegment> segments = new ArrayList<DownloadSegment>(segmentCount);
+		long segmentSize = totalBytes / segmentCount;
+		long startByte = 0;
+		for (int i = 0; i < segmentCount; i++) {
+			long endByte = (i == segmentCount - 1) ? totalBytes - 1 : startByte + segmentSize - 1;
+			segments.add(new DownloadSegment(i, startByte, endByte, 0));
+			startByte = endByte + 1;
+		}
+		return segments;
+	}
+
+	/**
+	 * 读取分段断点信息
+	 * @param taskId
+	 * @return 没有断点信息时返回null
+	 */
+	public static List<DownloadSegment> loadSegments(long taskId) {
+		return DownloadDatabaseHelper.getInstance().getSegments(taskId);
+	}
+
+	/**
+	 * 判断一个任务有没有分段断点信息
+	 * @param taskId
+	 * @return
+	 */
+	public static boolean hasSegments(long taskId) {
+		return null != DownloadDatabaseHelper.getInstance().getSegments(taskId);
+	}
+
+	/**
+	 * 保存分段断点信息，在一个事务里替换，进程被杀时不会只写了一半
+	 * @param taskId
+	 * @param segments
+	 */
+	public static void saveSegments(long taskId, List<DownloadSegment> segments) {
+		DownloadDatabaseHelper.getInstance().saveSegments(taskId, segments);
+	}
+
+	/**
+	 * 删除分段断点信息
+	 * @param taskId
+	 */
+	public static void deleteSegments(long taskId) {
+		DownloadDatabaseHelper.getInstance().deleteSegments(taskId);
+	}
+}
@@ -0,0 +1,234 @@
+package com.example.customdownload;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * 网络读和磁盘写之间的流水线。
+ * 读线程从有界的缓冲环里取空块填数据后提交，单独的写线程按提交顺序写盘再把块还回环里。
+ * 环满时读线程等待（反压），磁盘偶尔卡顿不会马上卡住socket。
+ * 块里的缓冲从{@link DownloadBufferPool}借，写完马上归还，所以空闲的块不占内存。
+ */
+public class DownloadWritePipeline {
+	private static final String TAG = DownloadWritePipeline.class.getSimpleName();
+
+	/**
+	 * 一块待写入的数据
+	 */
+	public static class Chunk {
+		public byte[] mData;	//数据，从缓冲池借来的
+		public int mLength;	//有效长度
+		public long mOffset;	//写入文件的偏移
+		public DownloadSegment mSegment;	//所属分段，单连接下载时为null
+
+	}
+
+	/**
+	 * 写线程里实际写盘的回调
+	 */
+	public interface ChunkWriter {
+		/**
+		 * 写入一块数据，抛出的异常会让流水线停止，之后读线程取块时会失败
+		 * @param chunk
+		 * @throws Throwable
+		 */
+		void writeChunk(Chunk chunk) throws Throwable;
+	}
+
+	private static final Chunk END_OF_STREAM = new Chunk();
+
+	private final BlockingQueue<Chunk> mFreeChunks;	//空块
+	private final BlockingQueue<Chunk> mFilledChunks;	//待写的块
+	private final ChunkWriter mChunkWriter;
+
+	private long mSubmittedCount = 0;	//已提交的块数
+	private long mWrittenCount = 0;	//已写完的块数
+	private boolean mWriterExited = false;
+	private volatile boolean mClosed = false;
+	private volatile Throwable mWriteError = null;
+
+	private final AtomicLong mReaderWaits = new AtomicLong();	//读线程因为没有空块而等待的次数
+	private final AtomicLong mWriterWaits = new AtomicLong();	//写线程因为没有数据而等待的次数
+
+	/**
+	 * @param chunkCount 缓冲环里块的个数
+	 * @param chunkWriter 写盘回调
+	 */
+	public DownloadWritePipeline(int chunkCount, ChunkWriter chunkWriter) {
+		mFreeChunks = new ArrayBlockingQueue<Chunk>(chunkCount);
+		// one extra slot for the end of stream marker
+		mFilledChunks = new ArrayBlockingQueue<Chunk>(chunkCount + 1);
+		mChunkWriter = chunkWriter;
+		for (int i = 0; i < chunkCount; i++) {
+			mFreeChunks.add(new Chunk());
+		}
+	}
+
+	/**
+	 * 在线程池里启动写线程
+	 * @param executor
+	 */
+	public void start(Executor executor) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		});
+	}
+
+	/**
+	 * 取一个空块并借好缓冲，环满时等待写线程还块
+	 * @param size 缓冲至少要多大
+	 * @return 写线程已经出错、流水线已关闭或者当前线程被中断时返回null
+	 */
+	public Chunk obtain(int size) {
+		Chunk chunk = mFreeChunks.poll();
+		if (null == chunk) {
+			mReaderWaits.incrementAndGet();
+			try {
+				while (null == chunk && null == mWriteError && !mClosed) {
+					chunk = mFreeChunks.poll(Constants.MIN_PROGRESS_TIME, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if (null == chunk) {
+				return null;
+			}
+		}
+
+		chunk.mData = DownloadBufferPool.getInstance().acquireArray(size);
+		return chunk;
+	}
+
+	/**
+	 * 提交填好数据的块，不会阻塞
+	 * @param chunk
+	 */
+	public void submit(Chunk chunk) {
+		synchronized (this) {
+			mSubmittedCount++;
+		}
+		mFilledChunks.add(chunk);
+	}
+
+	/**
+	 * 把没用上的块还回环里，缓冲还给缓冲池
+	 * @param chunk
+	 */
+	public void recycle(Chunk chunk) {
+		DownloadBufferPool.getInstance().releaseArray(chunk.mData);
+		chunk.mData = null;
+		chunk.mSegment = null;
+		mFreeChunks.add(chunk);
+	}
+
+	/**
+	 * 等待目前已提交的块全部写完
+	 * @return 全部写成功时返回true
+	 */
+	public boolean flush() {
+		synchronized (this) {
+			long target = mSubmittedCount;
+			try {
+				while (mWrittenCount < target && !mWriterExited) {
+					wait();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return null == mWriteError;
+	}
+
+	/**
+	 * 写完所有已提交的块后停止写线程
+	 */
+	public void close() {
+		flush();
+		mClosed = true;
+		mFilledChunks.add(END_OF_STREAM);
+		synchronized (this) {
+			try {
+				while (!mWriterExited) {
+					wait();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Log.v(TAG, "close: readerWaits = " + mReaderWaits.get() + ", writerWaits = " + mWriterWaits.get() + ", chunks = " + mWrittenCount);
+	}
+
+	/**
+	 * 获取写线程的错误
+	 * @return
+	 */
+	public Throwable getWriteError() {
+		return mWriteError;
+	}
+
+	/**
+	 * 获取读线程因为环满而等待的次数
+	 * @return
+	 */
+	public long getReaderWaits() {
+		return mReaderWaits.get();
+	}
+
+	/**
+	 * 获取写线程因为没有数据而等待的次数
+	 * @return
+	 */
+	public long getWriterWaits() {
+		return mWriterWaits.get();
+	}
+
+	private void writeLoop() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+		try {
+			for (;;) {
+				Chunk chunk = mFilledChunks.poll();
+				if (null == chunk) {
+					mWriterWaits.incrementAndGet();
+					chunk = mFilledChunks.take();
+				}
+				if (chunk == END_OF_STREAM) {
+					return;
+				}
+
+				if (null == mWriteError) {
+					try {
+						mChunkWriter.writeChunk(chunk);
+					} catch (Throwable ex) {
+						// keep draining so that no reader waits forever
+						mWriteError = ex;
+					}
+				}
+				recycle(chunk);
+				synchronized (this) {
+					mWrittenCount++;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException ex) {
+			if (null == mWriteError) {
+				mWriteError = ex;
+			}
+		} finally {
+			synchronized (this) {
+				mWriterExited = true;
+				notifyAll();
+			}
+		}
+	}
+}
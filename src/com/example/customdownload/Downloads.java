@@ -45,6 +45,40 @@ public class Downloads implements BaseColumns {
      */
     public static final int CONTROL_CANCEL = 2;
 
+    /**
+     * 每个下载占一个线程，用阻塞IO读网络
+     * 
+     * @hide
+     */
+    public static final int ENGINE_THREADED = 0;
+
+    /**
+     * http下载由几个事件循环线程用非阻塞IO复用，https等其他下载仍然每个占一个线程
+     * 
+     * @hide
+     */
+    public static final int ENGINE_NIO = 1;
+
+    /**
+     * 优先级：后台任务，有空闲名额时才开始
+     */
+    public static final int PRIORITY_LOW = 0;
+
+    /**
+     * 优先级：默认
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * 优先级：用户正在等的任务，排在其他等待的任务前面
+     */
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * This download is queued and waits for a free download slot.
+     */
+    public static final int STATUS_PENDING = 190;
+
     /**
      * 正在取消任务
      * 
@@ -124,6 +158,12 @@ public class Downloads implements BaseColumns {
      */
     public static final int STATUS_NOT_ACCEPTABLE = 406;
 
+    /**
+     * The downloaded file doesn't match the hash given by the caller or by the
+     * server's Content-MD5/Digest header.
+     */
+    public static final int STATUS_FILE_INTEGRITY_ERROR = 487;
+
     /**
      * The requested destination file already exists.
      */
@@ -388,6 +428,110 @@ public class Downloads implements BaseColumns {
     /** The column that is used for the downloads's ETag */
     public static final String COLUMN_ETAG = "etag";
 
+    /**
+     * The hash algorithm used to verify the download, MD5, SHA-1 or SHA-256.
+     * Null when the file isn't hashed.
+     * <P>
+     * Type: TEXT
+     * </P>
+     */
+    public static final String COLUMN_HASH_ALGORITHM = "hash_algorithm";
+
+    /**
+     * The expected hash of the file in lowercase hex, given by the caller or
+     * taken from the server's response headers.
+     * <P>
+     * Type: TEXT
+     * </P>
+     */
+    public static final String COLUMN_EXPECTED_HASH = "expected_hash";
+
+    /**
+     * The hash of the downloaded file in lowercase hex, computed while the
+     * data was written.
+     * <P>
+     * Type: TEXT
+     * </P>
+     */
+    public static final String COLUMN_HASH = "hash";
+
+    /**
+     * The priority of the download in the queue, one of the PRIORITY_*
+     * constants.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     */
+    public static final String COLUMN_PRIORITY = "priority";
+
+    /**
+     * The time the download last entered the queue, in ms since the epoch.
+     * Downloads of the same priority start in this order.
+     * <P>
+     * Type: BIGINT
+     * </P>
+     */
+    public static final String COLUMN_QUEUED_TIME = "queued_time";
+
+    /**
+     * The number of consecutive failed attempts of the download, reset when an
+     * attempt makes progress or the download is restarted by the user.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     */
+    public static final String COLUMN_FAILED_CONNECTIONS = "numfailed";
+
+    /**
+     * When the download is waiting to retry, the time of the next attempt in
+     * ms since the epoch, 0 otherwise.
+     * <P>
+     * Type: BIGINT
+     * </P>
+     */
+    public static final String COLUMN_RETRY_TIME = "retry_time";
+
+    /**
+     * download_segments table: the id of the download a segment belongs to.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     */
+    public static final String COLUMN_SEGMENT_TASK_ID = "task_id";
+
+    /**
+     * download_segments table: the index of the segment within its download.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     */
+    public static final String COLUMN_SEGMENT_INDEX = "segment_index";
+
+    /**
+     * download_segments table: the first byte of the segment's range.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     */
+    public static final String COLUMN_SEGMENT_START_BYTE = "start_byte";
+
+    /**
+     * download_segments table: the last byte of the segment's range, inclusive.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     */
+    public static final String COLUMN_SEGMENT_END_BYTE = "end_byte";
+
+    /**
+     * download_segments table: the number of bytes of the range already
+     * written, the segment resumes at start_byte + current_bytes.
+     * <P>
+     * Type: INTEGER
+     * </P>
+     */
+    public static final String COLUMN_SEGMENT_CURRENT_BYTES = "current_bytes";
+
     /**
      * The name of the column where the initiating application can provide the
      * description of this download. The description will be displayed to the
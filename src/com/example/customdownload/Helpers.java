@@ -32,6 +32,47 @@ public class Helpers {
     	return time * 100 + msAtomicInteger.incrementAndGet();
     }
 
+    /**
+     * Parses a Retry-After header given in delta-seconds, clamped to
+     * [MIN_RETRY_AFTER, MAX_RETRY_AFTER] with some random slack added.
+     * 
+     * @return the delay in ms, or 0 if the header is missing or not in seconds
+     */
+    public static long parseRetryAfter(String value) {
+    	if (value == null) {
+    		return 0;
+    	}
+    	try {
+			int retryAfter = Integer.parseInt(value.trim());
+			if (retryAfter < 0) {
+			    return 0;
+			}
+		    if (retryAfter < Constants.MIN_RETRY_AFTER) {
+		    	retryAfter = Constants.MIN_RETRY_AFTER;
+		    } else if (retryAfter > Constants.MAX_RETRY_AFTER) {
+		    	retryAfter = Constants.MAX_RETRY_AFTER;
+		    }
+		    retryAfter += sRandom.nextInt(Constants.MIN_RETRY_AFTER + 1);
+		    return retryAfter * 1000L;
+	    } catch (NumberFormatException ex) {
+	    	// an HTTP date, fall back to the exponential backoff
+	    	return 0;
+	    }
+    }
+
+    /**
+     * Returns the delay before retrying a download that failed numFailed
+     * times in a row: exponential backoff from RETRY_FIRST_DELAY, capped at
+     * MAX_RETRY_BACKOFF, with up to half of it taken off at random.
+     * 
+     * @return the delay in ms
+     */
+    public static long getRetryBackoff(int numFailed) {
+    	long delay = Constants.RETRY_FIRST_DELAY * 1000L << Math.min(Math.max(numFailed - 1, 0), 20);
+    	delay = Math.min(delay, Constants.MAX_RETRY_BACKOFF * 1000L);
+    	return delay - (long) (sRandom.nextDouble() * (delay / 2));
+    }
+
     /**
      * Checks whether the filename looks legitimate
      */
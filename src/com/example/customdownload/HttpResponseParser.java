@@ -0,0 +1,211 @@
+package com.example.customdownload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * NIO引擎用的HTTP响应解析，边收边解析响应头和chunked编码。
+ * 只处理读缓冲里的字节，不碰socket和文件，响应体的数据留在读缓冲里由调用方写出去。
+ */
+class HttpResponseParser {
+	/** {@link #readChunked}的返回值，响应体已经结束 */
+	static final int BODY_COMPLETE = -1;
+
+	private static final int CHUNK_SIZE = 0;	//读chunk大小那一行
+	private static final int CHUNK_DATA = 1;	//读chunk数据
+	private static final int CHUNK_DATA_END = 2;	//读chunk数据后面的CRLF
+	private static final int CHUNK_TRAILER = 3;	//读最后一个chunk后面的trailer
+	private static final int CHUNK_DONE = 4;	//响应体已经结束
+
+	/** 响应头的最大长度 */
+	static final int MAX_HEADER_SIZE = 32 * 1024;
+
+	/** chunk大小行和trailer行的最大长度 */
+	static final int MAX_LINE_SIZE = 1024;
+
+	private ByteArrayOutputStream mHeaderBytes = new ByteArrayOutputStream();
+	private int mHeaderTail;	//最近收到的4个字节，用来找响应头的结尾
+	private int mStatusCode;
+	private Map<String, String> mHeaders = new HashMap<String, String>();	//响应头，名字转成小写，同名的只保留第一个
+
+	private int mChunkState = CHUNK_SIZE;
+	private long mChunkRemaining;	//当前chunk剩余的字节数
+	private StringBuilder mChunkLine = new StringBuilder();
+
+	/**
+	 * 从读缓冲里收响应头，跳过1xx的中间响应。
+	 * 收完整时读缓冲停在响应体的第一个字节
+	 * @param buffer
+	 * @return 收到完整的最终响应头时返回true
+	 * @throws ProtocolException 响应头太长或者状态行不对
+	 */
+	boolean readHeaders(ByteBuffer buffer) throws ProtocolException {
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			mHeaderBytes.write(b);
+			mHeaderTail = (mHeaderTail << 8) | (b & 0xff);
+			if (mHeaderTail == 0x0d0a0d0a) {
+				parseHeaders();
+				mHeaderBytes.reset();
+				mHeaderTail = 0;
+				if (mStatusCode >= 100 && mStatusCode < 200) {
+					// interim response, the real one follows
+					continue;
+				}
+				return true;
+			}
+			if (mHeaderBytes.size() > MAX_HEADER_SIZE) {
+				throw new ProtocolException("response headers too long");
+			}
+		}
+		return false;
+	}
+
+	private void parseHeaders() throws ProtocolException {
+		String[] lines;
+		try {
+			lines = mHeaderBytes.toString("ISO-8859-1").split("\r\n");
+		} catch (UnsupportedEncodingException ex) {
+			throw new AssertionError(ex);
+		}
+		String[] statusLine = lines[0].split(" ", 3);
+		try {
+			if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+				throw new NumberFormatException(lines[0]);
+			}
+			mStatusCode = Integer.parseInt(statusLine[1]);
+		} catch (NumberFormatException ex) {
+			throw new ProtocolException("bad status line: " + lines[0]);
+		}
+
+		mHeaders.clear();
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+			if (!mHeaders.containsKey(name)) {
+				mHeaders.put(name, lines[i].substring(colon + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * 获取最近一个响应的状态码
+	 * @return
+	 */
+	int getStatusCode() {
+		return mStatusCode;
+	}
+
+	/**
+	 * 获取最近一个响应的响应头
+	 * @param name 小写的名字
+	 * @return 没有时返回null
+	 */
+	String getHeader(String name) {
+		return mHeaders.get(name);
+	}
+
+	/**
+	 * 解析chunked编码，跳过chunk大小行、CRLF和trailer，停在chunk数据上。
+	 * 返回正数时调用方必须从读缓冲当前位置取走这么多字节，然后再调用
+	 * @param buffer
+	 * @return 读缓冲当前位置开始可用的数据字节数；0表示读缓冲用完了；响应体结束时返回{@link #BODY_COMPLETE}
+	 * @throws ProtocolException chunk大小不对或者行太长
+	 */
+	int readChunked(ByteBuffer buffer) throws ProtocolException {
+		while (true) {
+			switch (mChunkState) {
+			case CHUNK_SIZE:
+				if (!readLine(buffer)) {
+					return 0;
+				}
+				String size = mChunkLine.toString();
+				int extension = size.indexOf(';');
+				if (extension >= 0) {
+					size = size.substring(0, extension);
+				}
+				mChunkLine.setLength(0);
+				try {
+					mChunkRemaining = Long.parseLong(size.trim(), 16);
+				} catch (NumberFormatException ex) {
+					throw new ProtocolException("bad chunk size: " + size);
+				}
+				if (mChunkRemaining < 0) {
+					throw new ProtocolException("bad chunk size: " + size);
+				}
+				mChunkState = mChunkRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+				break;
+			case CHUNK_DATA:
+				if (!buffer.hasRemaining()) {
+					return 0;
+				}
+				int length = (int) Math.min(buffer.remaining(), mChunkRemaining);
+				mChunkRemaining -= length;
+				if (mChunkRemaining == 0) {
+					mChunkState = CHUNK_DATA_END;
+				}
+				return length;
+			case CHUNK_DATA_END:
+				if (!readLine(buffer)) {
+					return 0;
+				}
+				mChunkLine.setLength(0);
+				mChunkState = CHUNK_SIZE;
+				break;
+			case CHUNK_TRAILER:
+				if (!readLine(buffer)) {
+					return 0;
+				}
+				boolean lastLine = mChunkLine.length() == 0;
+				mChunkLine.setLength(0);
+				if (lastLine) {
+					mChunkState = CHUNK_DONE;
+				}
+				break;
+			default:
+				return BODY_COMPLETE;
+			}
+		}
+	}
+
+	/**
+	 * 从读缓冲里读一行到mChunkLine，不包括CRLF
+	 * @return 读到行尾时返回true
+	 */
+	private boolean readLine(ByteBuffer buffer) throws ProtocolException {
+		while (buffer.hasRemaining()) {
+			char c = (char) (buffer.get() & 0xff);
+			if (c == '\n') {
+				return true;
+			}
+			if (c != '\r') {
+				mChunkLine.append(c);
+			}
+			if (mChunkLine.length() > MAX_LINE_SIZE) {
+				throw new ProtocolException("chunk line too long");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 准备解析下一个响应，重定向后重新发请求时调用
+	 */
+	void reset() {
+		mHeaderBytes.reset();
+		mHeaderTail = 0;
+		mStatusCode = 0;
+		mHeaders.clear();
+		mChunkState = CHUNK_SIZE;
+		mChunkRemaining = 0;
+		mChunkLine.setLength(0);
+	}
+}
@@ -0,0 +1,220 @@
+package com.example.customdownload;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 基于NIO Selector的下载引擎。
+ * 少量事件循环线程复用所有下载的非阻塞连接，每个下载不再占一个阻塞在read上的线程，适合大量小文件同时下载。
+ * 只处理http，https、分段下载的续传仍然由{@link DownloadRunnable}处理。
+ */
+public class NioDownloadEngine {
+	private static final String TAG = NioDownloadEngine.class.getSimpleName();
+
+	private final Context mContext;
+	private final DownloadMsgHandler mDownloadMsgHandler;
+	private final EventLoop[] mEventLoops;
+	private final AtomicInteger mNextEventLoop = new AtomicInteger();
+	private final ExecutorService mResolver;	//域名解析会阻塞，不能放在事件循环里
+
+	/**
+	 * 一个事件循环线程，负责分给它的所有下载的连接、读写和进度
+	 */
+	static class EventLoop extends Thread {
+		private final Selector mSelector;
+		private final Queue<Runnable> mPendingActions = new ConcurrentLinkedQueue<Runnable>();
+		private final Set<NioDownloadTask> mTasks = new HashSet<NioDownloadTask>();	//只在本线程访问
+		private volatile boolean mShutdown = false;
+		private long mLastTick = 0;
+
+		EventLoop(String name) throws IOException {
+			super(name);
+			mSelector = Selector.open();
+		}
+
+		/**
+		 * 在事件循环线程里执行
+		 * @param action
+		 */
+		void execute(Runnable action) {
+			mPendingActions.add(action);
+			mSelector.wakeup();
+		}
+
+		Selector getSelector() {
+			return mSelector;
+		}
+
+		void addTask(NioDownloadTask task) {
+			mTasks.add(task);
+		}
+
+		void removeTask(NioDownloadTask task) {
+			mTasks.remove(task);
+		}
+
+		void shutdown() {
+			mShutdown = true;
+			mSelector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			try {
+				while (!mShutdown) {
+					// wake up at least once per progress interval to report progress and see pause/cancel requests
+					long progressInterval = DownloadEventBus.getInstance().getProgressInterval();
+					mSelector.select(progressInterval);
+
+					Runnable action;
+					while ((action = mPendingActions.poll()) != null) {
+						try {
+							action.run();
+						} catch (RuntimeException ex) {
+							// one bad action mustn't take the other tasks on this loop down with it
+							Log.e(TAG, "EventLoop: action failed: " + ex.toString());
+						}
+					}
+
+					Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						NioDownloadTask task = (NioDownloadTask) key.attachment();
+						try {
+							task.onSelected(key);
+						} catch (RuntimeException ex) {
+							task.onUnexpectedError(ex);
+						}
+					}
+
+					long now = SystemClock.elapsedRealtime();
+					if (now - mLastTick >= progressInterval) {
+						mLastTick = now;
+						// tasks may finish while ticking
+						for (NioDownloadTask task : new ArrayList<NioDownloadTask>(mTasks)) {
+							try {
+								task.onTick(now);
+							} catch (RuntimeException ex) {
+								task.onUnexpectedError(ex);
+							}
+						}
+					}
+				}
+			} catch (IOException ex) {
+				Log.e(TAG, "EventLoop: select failed: " + ex.toString());
+			} finally {
+				for (NioDownloadTask task : new ArrayList<NioDownloadTask>(mTasks)) {
+					task.onShutdown();
+				}
+				try {
+					mSelector.close();
+				} catch (IOException ex) {
+					// ignored
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param context
+	 * @param downloadMsgHandler
+	 * @param eventLoopCount 事件循环线程数
+	 */
+	public NioDownloadEngine(Context context, DownloadMsgHandler downloadMsgHandler, int eventLoopCount) throws IOException {
+		mContext = context;
+		mDownloadMsgHandler = downloadMsgHandler;
+		mResolver = Executors.newCachedThreadPool();
+		mEventLoops = new EventLoop[eventLoopCount];
+		for (int i = 0; i < eventLoopCount; i++) {
+			mEventLoops[i] = new EventLoop(TAG + "-" + i);
+			mEventLoops[i].start();
+		}
+	}
+
+	/**
+	 * 判断这个下载能否由NIO引擎处理：只支持http，分段下载到一半的任务要按分段续传
+	 * @param downloadInfo
+	 * @return
+	 */
+	public static boolean canHandle(DownloadInfo downloadInfo) {
+		try {
+			if (!"http".equalsIgnoreCase(new URI(downloadInfo.mUri).getScheme())) {
+				return false;
+			}
+		} catch (URISyntaxException ex) {
+			return false;
+		}
+		return !DownloadSegment.hasSegments(downloadInfo.mId);
+	}
+
+	/**
+	 * 开始一个下载，由事件循环线程轮流负责
+	 * @param downloadInfo
+	 * @param onFinished 下载结束后在事件循环线程里调用，可以为null
+	 * @return 可以用来查询是否结束或者取消下载
+	 */
+	public NioDownloadTask submit(DownloadInfo downloadInfo, Runnable onFinished) {
+		EventLoop eventLoop = mEventLoops[(mNextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % mEventLoops.length];
+		final NioDownloadTask task = new NioDownloadTask(mContext, mDownloadMsgHandler, downloadInfo, this, eventLoop);
+		task.setFinishCallback(onFinished);
+		eventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				task.start();
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * 解析域名后在任务的事件循环线程里建立连接
+	 * @param task
+	 * @param host
+	 * @param port
+	 */
+	void connect(final NioDownloadTask task, final String host, final int port) {
+		mResolver.execute(new Runnable() {
+			@Override
+			public void run() {
+				final InetSocketAddress address = new InetSocketAddress(host, port);
+				task.getEventLoop().execute(new Runnable() {
+					@Override
+					public void run() {
+						task.onResolved(address);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * 停止所有事件循环，正在进行的下载按暂停处理，下次从断点继续
+	 */
+	public void shutdown() {
+		mResolver.shutdownNow();
+		for (EventLoop eventLoop : mEventLoops) {
+			eventLoop.shutdown();
+		}
+	}
+}
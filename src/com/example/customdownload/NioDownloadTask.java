@@ -0,0 +1,1013 @@
+package com.example.customdownload;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.content.Context;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Pair;
+
+/**
+ * NIO引擎里的一个下载。
+ * 所有方法都在所属的事件循环线程里调用，按连接、发请求、读响应头、读响应体几个状态逐步推进，
+ * 响应头和chunked编码都是边收边解析。状态码、重定向和续传的处理和{@link DownloadRunnable}的单连接下载一致。
+ */
+public class NioDownloadTask implements Future<Void> {
+	private static final String TAG = NioDownloadTask.class.getSimpleName();
+
+	private static final int STATE_IDLE = 0;	//等待解析域名
+	private static final int STATE_CONNECTING = 1;
+	private static final int STATE_SENDING = 2;
+	private static final int STATE_READING_HEADERS = 3;
+	private static final int STATE_READING_BODY = 4;
+	private static final int STATE_DONE = 5;
+
+	/** 读网络的缓冲大小 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/** 连接和读超时，和DownloadHttpClient一样，ms */
+	private static final long SOCKET_TIMEOUT = 60 * 1000;
+
+	private Context mContext;
+	private DownloadMsgHandler mDownloadMsgHandler;
+	private DownloadInfo mDownloadInfo;
+	private NioDownloadEngine mEngine;
+	private NioDownloadEngine.EventLoop mEventLoop;
+
+	private int mState = STATE_IDLE;
+	private SocketChannel mSocket;
+	private SelectionKey mKey;
+	private ByteBuffer mRequest;	//待发送的请求
+	private ByteBuffer mReadBuffer;	//从缓冲池借的direct buffer
+	private long mLastActivity;	//最近一次连接有进展的时间
+
+	private final HttpResponseParser mParser = new HttpResponseParser();
+
+	private boolean mChunked;	//响应体是否chunked编码
+	private boolean mZeroCopy;	//响应体是否由transferFrom直接写入文件
+	private DownloadDigest mDigest;	//边写边算的摘要
+	private long mBodyRemaining;	//Content-Length方式剩余的字节数，-1表示读到连接关闭
+
+	private RandomAccessFile mFile;	//目标文件
+	private FileChannel mChannel;	//目标文件的通道
+	public int mRedirectCount = 0;	//重定向次数
+	public boolean mContinuingDownload = false;	//是否续传
+	public String mHeaderContentLength;
+	public long mTimeLastNotification = 0;
+
+	private final CountDownLatch mDone = new CountDownLatch(1);
+	private volatile boolean mCancelled = false;
+	private Runnable mFinishCallback = null;	//结束后调用，开始前设置
+
+    /**
+     * Raised to indicate that the current request should be stopped
+     * immediately, same as in DownloadRunnable.
+     */
+    private class StopRequest extends Throwable {
+		private static final long serialVersionUID = 1L;
+
+		public int mFinalStatus;
+
+		public StopRequest(int finalStatus, String message) {
+		    super(message);
+		    Log.e(TAG, "StopRequest: finalStatus = " + finalStatus + ", message = " + message);
+		    mFinalStatus = finalStatus;
+		}
+
+		public StopRequest(int finalStatus, String message, Throwable throwable) {
+		    super(message, throwable);
+		    Log.e(TAG, "StopRequest: finalStatus = " + finalStatus + ", message = " + message);
+		    mFinalStatus = finalStatus;
+		}
+    }
+
+	NioDownloadTask(Context context, DownloadMsgHandler downloadMsgHandler, DownloadInfo downloadInfo, NioDownloadEngine engine, NioDownloadEngine.EventLoop eventLoop) {
+		mContext = context;
+		mDownloadMsgHandler = downloadMsgHandler;
+		mDownloadInfo = downloadInfo;
+		mEngine = engine;
+		mEventLoop = eventLoop;
+
+		mDownloadInfo.mHasActiveThread = true;
+	}
+
+	/**
+	 * 设置下载结束后的回调，在事件循环线程里调用
+	 * @param finishCallback
+	 */
+	void setFinishCallback(Runnable finishCallback) {
+		mFinishCallback = finishCallback;
+	}
+
+	NioDownloadEngine.EventLoop getEventLoop() {
+		return mEventLoop;
+	}
+
+	/**
+	 * 设置控制状态，马上在事件循环线程里检查
+	 * @param control
+	 */
+	public void setControl(int control) {
+		mDownloadInfo.mControl = control;
+		mEventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkPausedOrCanceled();
+				} catch (StopRequest error) {
+					finish(error.mFinalStatus);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 开始下载
+	 */
+	void start() {
+		mEventLoop.addTask(this);
+		mDownloadInfo.mProgressSlot = ProgressTable.getInstance().acquire(mDownloadInfo.mId,
+				mDownloadInfo.mTotalBytes, mDownloadInfo.mBytesSoFar, Downloads.STATUS_RUNNING);
+		reportStatusChanged(0, Downloads.STATUS_RUNNING);
+
+		try {
+			setupDestinationFile();
+			sendRequest();
+		} catch (StopRequest error) {
+			finish(error.mFinalStatus);
+		}
+	}
+
+	/**
+	 * 域名解析完成，开始连接
+	 * @param address
+	 */
+	void onResolved(InetSocketAddress address) {
+		if (mState == STATE_DONE) {
+			return;
+		}
+
+		try {
+			if (address.isUnresolved()) {
+				throw new StopRequest(getFinalStatusForHttpError(), "couldn't resolve host");
+			}
+			mLastActivity = SystemClock.elapsedRealtime();
+			mSocket = SocketChannel.open();
+			mSocket.configureBlocking(false);
+			if (mSocket.connect(address)) {
+				onConnected();
+			} else {
+				mState = STATE_CONNECTING;
+				setInterest(SelectionKey.OP_CONNECT);
+			}
+		} catch (IOException ex) {
+			handleNetworkError("while connecting", ex);
+		} catch (StopRequest error) {
+			finish(error.mFinalStatus);
+		}
+	}
+
+	/**
+	 * 连接可以继续操作
+	 * @param key
+	 */
+	void onSelected(SelectionKey key) {
+		if (mState == STATE_DONE || !key.isValid()) {
+			return;
+		}
+
+		try {
+			mLastActivity = SystemClock.elapsedRealtime();
+			if (key.isConnectable()) {
+				if (mSocket.finishConnect()) {
+					onConnected();
+				}
+			} else if (key.isWritable()) {
+				onWritable();
+			} else if (key.isReadable()) {
+				onReadable();
+			}
+		} catch (IOException ex) {
+			handleNetworkError("while reading response", ex);
+		} catch (StopRequest error) {
+			finish(error.mFinalStatus);
+		}
+	}
+
+	/**
+	 * 定时检查暂停、取消和超时，报告进度
+	 * @param now
+	 */
+	void onTick(long now) {
+		if (mState == STATE_DONE) {
+			return;
+		}
+
+		try {
+			checkPausedOrCanceled();
+			if (mState != STATE_IDLE && now - mLastActivity > SOCKET_TIMEOUT) {
+				reportProgress();
+				throw new StopRequest(cannotResume() ? Downloads.STATUS_CANNOT_RESUME : getFinalStatusForHttpError(), "socket timed out");
+			}
+			reportProgress();
+		} catch (StopRequest error) {
+			finish(error.mFinalStatus);
+		}
+	}
+
+	/**
+	 * 引擎停止，当作暂停处理，下次从断点继续
+	 */
+	void onShutdown() {
+		finish(Downloads.STATUS_PAUSED);
+	}
+
+	/**
+	 * 处理事件时抛出了未预料的异常，只结束这个任务，事件循环继续
+	 * @param ex
+	 */
+	void onUnexpectedError(RuntimeException ex) {
+		Log.e(TAG, "onUnexpectedError: " + ex.toString());
+		ex.printStackTrace();
+		if (mState != STATE_DONE) {
+			finish(Downloads.STATUS_UNKNOWN_ERROR);
+		}
+	}
+
+	private void onConnected() throws IOException {
+		mRequest = buildRequest();
+		mState = STATE_SENDING;
+		setInterest(SelectionKey.OP_WRITE);
+		onWritable();
+	}
+
+	private void onWritable() throws IOException {
+		mSocket.write(mRequest);
+		if (mRequest.hasRemaining()) {
+			return;
+		}
+
+		mRequest = null;
+		mState = STATE_READING_HEADERS;
+		if (null == mReadBuffer) {
+			mReadBuffer = DownloadBufferPool.getInstance().acquireDirect(READ_BUFFER_SIZE);
+		}
+		mReadBuffer.clear();
+		setInterest(SelectionKey.OP_READ);
+	}
+
+	private void onReadable() throws IOException, StopRequest {
+		if (mState == STATE_READING_BODY && mZeroCopy && transferBody()) {
+			return;
+		}
+
+		int bytesRead = mSocket.read(mReadBuffer);
+		mDownloadInfo.mReadCount.incrementAndGet();
+		if (bytesRead == -1) {
+			onEndOfStream();
+			return;
+		}
+
+		mReadBuffer.flip();
+		if (mState == STATE_READING_HEADERS) {
+			readHeaders();
+		}
+		if (mState == STATE_READING_BODY) {
+			readBody();
+		}
+		if (mState == STATE_READING_HEADERS || mState == STATE_READING_BODY) {
+			mReadBuffer.compact();
+			reportProgress();
+			checkPausedOrCanceled();
+		}
+	}
+
+	private void setInterest(int ops) throws IOException {
+		if (null == mKey) {
+			mKey = mSocket.register(mEventLoop.getSelector(), ops, this);
+		} else {
+			mKey.interestOps(ops);
+		}
+	}
+
+	/**
+	 * Prepare the destination file to receive data. If the file already exists,
+	 * we'll set up appropriately for resumption.
+	 */
+	private void setupDestinationFile() throws StopRequest {
+		if (TextUtils.isEmpty(mDownloadInfo.mFilePath)) {
+			return;
+		}
+		if (!Helpers.isFilenameValid(mDownloadInfo.mFilePath)) {
+			// this should never happen
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "found invalid internal destination filename");
+		}
+
+		// the destination file is preallocated, so its length doesn't tell how
+		// much was downloaded, the progress saved in the database does
+		long savedBytes = mDownloadInfo.mBytesSoFar;
+		mDownloadInfo.mBytesSoFar = 0;
+
+		File f = new File(mDownloadInfo.mFilePath);
+		if (f.exists()) {
+			long fileLength = Math.min(f.length(), savedBytes);
+			if (fileLength == 0) {
+				// The download hadn't actually started, we can restart from scratch
+				f.delete();
+			} else if (mDownloadInfo.mETag == null) {
+				// This should've been caught upon failure
+				f.delete();
+				throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, "Trying to resume a download that can't be resumed");
+			} else {
+				// All right, we'll be able to resume this download
+				mDownloadInfo.mBytesSoFar = fileLength;
+				if (mDownloadInfo.mTotalBytes != -1) {
+					mHeaderContentLength = Long.toString(mDownloadInfo.mTotalBytes);
+				}
+				mContinuingDownload = true;
+			}
+		}
+	}
+
+	/**
+	 * 发请求，先在引擎的线程池里解析域名
+	 */
+	private void sendRequest() throws StopRequest {
+		checkPausedOrCanceled();
+		// check just before sending the request to avoid using an invalid connection at all
+		checkConnectivity();
+
+		URI uri;
+		try {
+			uri = new URI(mDownloadInfo.mUri);
+		} catch (URISyntaxException ex) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "while trying to execute request: " + ex.toString(), ex);
+		}
+		if (uri.getHost() == null) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "while trying to execute request: no host");
+		}
+
+		mState = STATE_IDLE;
+		mEngine.connect(this, uri.getHost(), uri.getPort() == -1 ? 80 : uri.getPort());
+	}
+
+	/**
+	 * 组装HTTP/1.1请求，每个连接只发一个请求
+	 */
+	private ByteBuffer buildRequest() throws UnsupportedEncodingException {
+		URI uri = URI.create(mDownloadInfo.mUri);
+		String path = TextUtils.isEmpty(uri.getRawPath()) ? "/" : uri.getRawPath();
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+		appendHeader(request, "Host", uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort());
+		appendHeader(request, "User-Agent", userAgent());
+		// the body goes to the file as is
+		appendHeader(request, "Accept-Encoding", "identity");
+		appendHeader(request, "Connection", "close");
+		for (Pair<String, String> header : mDownloadInfo.getHeaders()) {
+			appendHeader(request, header.first, header.second);
+		}
+		if (mContinuingDownload) {
+			if (mDownloadInfo.mETag != null) {
+				appendHeader(request, "If-Match", mDownloadInfo.mETag); //If-Match:只有请求内容与实体相匹配才有效
+			}
+			appendHeader(request, "Range", "bytes=" + mDownloadInfo.mBytesSoFar + "-");
+		}
+		request.append("\r\n");
+		return ByteBuffer.wrap(request.toString().getBytes("ISO-8859-1"));
+	}
+
+	private static void appendHeader(StringBuilder request, String name, String value) {
+		request.append(name).append(": ").append(value).append("\r\n");
+	}
+
+	/**
+	 * 从读缓冲里收响应头，收完整后处理
+	 */
+	private void readHeaders() throws StopRequest, IOException {
+		boolean complete;
+		try {
+			complete = mParser.readHeaders(mReadBuffer);
+		} catch (ProtocolException ex) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, ex.getMessage(), ex);
+		}
+		if (complete) {
+			handleResponse();
+		}
+	}
+
+	/**
+	 * Check the HTTP response status and handle anything unusual (e.g. not
+	 * 200/206), then set up the body framing.
+	 */
+	private void handleResponse() throws StopRequest, IOException {
+		int statusCode = mParser.getStatusCode();
+		if (statusCode == 503 && mDownloadInfo.mNumFailed < Constants.MAX_RETRIES) {
+			mDownloadInfo.mRetryAfter = Helpers.parseRetryAfter(mParser.getHeader("retry-after"));
+			throw new StopRequest(Downloads.STATUS_WAITING_TO_RETRY, "got 503 Service Unavailable, will retry later");
+		}
+		if (statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307) {
+			if (handleRedirect(statusCode)) {
+				return;
+			}
+		}
+
+		int expectedStatus = mContinuingDownload ? 206 : Downloads.STATUS_SUCCESS;
+		if (statusCode != expectedStatus) {
+			int finalStatus;
+			if (Downloads.isStatusError(statusCode)) {
+				finalStatus = statusCode;
+			} else if (statusCode >= 300 && statusCode < 400) {
+				finalStatus = Downloads.STATUS_UNHANDLED_REDIRECT;
+			} else if (mContinuingDownload && statusCode == Downloads.STATUS_SUCCESS) {
+				finalStatus = Downloads.STATUS_CANNOT_RESUME;
+			} else {
+				finalStatus = Downloads.STATUS_UNHANDLED_HTTP_CODE;
+			}
+			throw new StopRequest(finalStatus, "http error " + statusCode);
+		}
+
+		processResponseHeaders();
+		if (null != mDownloadInfo.mHashAlgorithm) {
+			mDigest = DownloadDigest.resume(mDownloadInfo.mId, mDownloadInfo.mHashAlgorithm, mDownloadInfo.mFilePath, mDownloadInfo.mBytesSoFar);
+		}
+
+		String transferEncoding = mParser.getHeader("transfer-encoding");
+		mChunked = transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked");
+		mBodyRemaining = -1;
+		if (transferEncoding == null && mParser.getHeader("content-length") != null) {
+			try {
+				mBodyRemaining = Long.parseLong(mParser.getHeader("content-length"));
+			} catch (NumberFormatException ex) {
+				throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "bad content length", ex);
+			}
+		}
+		// a plain body of known length can go from the socket to the file
+		// without passing through a Java buffer, unless it has to be hashed
+		String contentEncoding = mParser.getHeader("content-encoding");
+		mZeroCopy = null == mDownloadInfo.mHashAlgorithm && !mChunked && mBodyRemaining > 0 && (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity"));
+		mDownloadInfo.mTransferPath = mZeroCopy ? DownloadInfo.TRANSFER_ZERO_COPY : DownloadInfo.TRANSFER_BUFFERED;
+		mState = STATE_READING_BODY;
+		if (!mChunked && mBodyRemaining == 0) {
+			onBodyComplete();
+		}
+	}
+
+	/**
+	 * Read HTTP response headers and take appropriate action, including setting
+	 * up the destination file and updating the database.
+	 */
+	private void processResponseHeaders() throws StopRequest {
+		if (mContinuingDownload) {
+			// ignore response headers on resume requests
+			return;
+		}
+
+		if (mDownloadInfo.mMimeType == null && mParser.getHeader("content-type") != null) {
+			mDownloadInfo.mMimeType = mDownloadInfo.sanitizeMimeType(mParser.getHeader("content-type"));
+		}
+		if (mParser.getHeader("etag") != null) {
+			mDownloadInfo.mETag = mParser.getHeader("etag");
+		}
+		if (mDownloadInfo.setHashFromResponse(mParser.getHeader("digest"), mParser.getHeader("content-md5"))) {
+			reportHashChanged(null);
+		}
+		// forget the size of an earlier attempt, the file is preallocated to it
+		mDownloadInfo.mTotalBytes = -1;
+		String headerTransferEncoding = mParser.getHeader("transfer-encoding");
+		if (headerTransferEncoding == null) {
+			mHeaderContentLength = mParser.getHeader("content-length");
+			if (mHeaderContentLength != null) {
+				try {
+					mDownloadInfo.mTotalBytes = Long.parseLong(mHeaderContentLength);
+				} catch (NumberFormatException ex) {
+					throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "bad content length", ex);
+				}
+			}
+		} else {
+			// Ignore content-length with transfer-encoding - 2616 4.4 3
+		}
+
+		Log.v(TAG, "processResponseHeaders: Content-Length = " + mHeaderContentLength + ", Content-Type = " + mDownloadInfo.mMimeType
+				+ ", ETag = " + mDownloadInfo.mETag + ", Transfer-Encoding = " + headerTransferEncoding);
+
+		boolean noSizeInfo = mHeaderContentLength == null && (headerTransferEncoding == null || !headerTransferEncoding.equalsIgnoreCase("chunked"));
+		if (noSizeInfo) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "can't know size of download, giving up");
+		}
+
+		openDestination(true);
+
+		reportNetworkChanged(mDownloadInfo.mETag, mDownloadInfo.mMimeType);
+
+		// check connectivity again now that we know the total size
+		checkConnectivity();
+	}
+
+	/**
+	 * Handle a 3xx redirect status by sending the request again to the new
+	 * location.
+	 *
+	 * @return false if there is no location to follow
+	 */
+	private boolean handleRedirect(int statusCode) throws StopRequest {
+		if (mRedirectCount >= Constants.MAX_REDIRECTS) {
+			throw new StopRequest(Downloads.STATUS_TOO_MANY_REDIRECTS, "too many redirects");
+		}
+		String location = mParser.getHeader("location");
+		if (location == null) {
+			return false;
+		}
+
+		String newUri;
+		try {
+			newUri = new URI(mDownloadInfo.mUri).resolve(new URI(location)).toString();
+		} catch (URISyntaxException ex) {
+			Log.e(TAG, "handleRedirect: Couldn't resolve redirect URI " + location + " for " + mDownloadInfo.mUri);
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "Couldn't resolve redirect URI");
+		}
+		if (!"http".equalsIgnoreCase(URI.create(newUri).getScheme())) {
+			throw new StopRequest(Downloads.STATUS_UNHANDLED_REDIRECT, "redirect out of plain http");
+		}
+		++mRedirectCount;
+		mDownloadInfo.mUri = newUri;
+		if (statusCode == 301 || statusCode == 303) {
+			// use the new URI for all future requests (should a retry/resume be
+			// necessary)
+			reportUriChanged(newUri);
+		}
+
+		closeSocket();
+		mParser.reset();
+		sendRequest();
+		return true;
+	}
+
+	/**
+	 * 把读缓冲里的响应体写到文件
+	 */
+	private void readBody() throws StopRequest {
+		// onBodyComplete finishes the task and gives the read buffer back, check the state first
+		while (mState == STATE_READING_BODY && mReadBuffer.hasRemaining()) {
+			if (mChunked) {
+				int length = readChunked();
+				if (length == HttpResponseParser.BODY_COMPLETE) {
+					onBodyComplete();
+				} else if (length > 0) {
+					writeBody(length);
+				} else {
+					break;
+				}
+				continue;
+			}
+
+			int length = mReadBuffer.remaining();
+			if (mBodyRemaining >= 0) {
+				length = (int) Math.min(length, mBodyRemaining);
+			}
+			writeBody(length);
+			if (mBodyRemaining >= 0) {
+				mBodyRemaining -= length;
+				if (mBodyRemaining == 0) {
+					onBodyComplete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 用FileChannel.transferFrom把socket里现有的数据直接写到文件。
+	 * 读缓冲里剩下的响应头之后的数据已经由readBody写完
+	 * @return 没有传输任何数据时返回false，由普通的读来判断连接是否已关闭
+	 */
+	private boolean transferBody() throws IOException, StopRequest {
+		openDestination(false);
+		long count = Math.min(mBodyRemaining, mDownloadInfo.mMaxBufferSize);
+		long transferred;
+		try {
+			transferred = mChannel.transferFrom(mSocket, mDownloadInfo.mBytesSoFar, count);
+		} catch (IOException ex) {
+			// the same call reads the socket and writes the file, find out which one failed
+			if (!Helpers.isExternalMediaMounted() || getAvailableBytes() < count) {
+				throw getWriteError(ex, count);
+			}
+			throw ex;
+		}
+		if (transferred <= 0) {
+			return false;
+		}
+
+		mDownloadInfo.mReadCount.incrementAndGet();
+		mDownloadInfo.mWriteCount.incrementAndGet();
+		mDownloadInfo.mBytesSoFar += transferred;
+		mBodyRemaining -= transferred;
+		if (mBodyRemaining == 0) {
+			onBodyComplete();
+			return true;
+		}
+		reportProgress();
+		checkPausedOrCanceled();
+		return true;
+	}
+
+	/**
+	 * 解析chunked编码，跳到下一段chunk数据
+	 * @return 见{@link HttpResponseParser#readChunked}
+	 */
+	private int readChunked() throws StopRequest {
+		try {
+			return mParser.readChunked(mReadBuffer);
+		} catch (ProtocolException ex) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * 把读缓冲当前位置开始的length字节写到文件
+	 * @param length
+	 */
+	private void writeBody(int length) throws StopRequest {
+		int limit = mReadBuffer.limit();
+		mReadBuffer.limit(mReadBuffer.position() + length);
+		ByteBuffer data = mReadBuffer.duplicate();
+		try {
+			openDestination(false);
+			long offset = mDownloadInfo.mBytesSoFar;
+			while (mReadBuffer.hasRemaining()) {
+				offset += mChannel.write(mReadBuffer, offset);
+				mDownloadInfo.mWriteCount.incrementAndGet();
+			}
+		} catch (IOException ex) {
+			throw getWriteError(ex, length);
+		} finally {
+			mReadBuffer.limit(limit);
+		}
+		if (null != mDigest) {
+			mDigest.update(data);
+		}
+		mDownloadInfo.mBytesSoFar += length;
+	}
+
+	/**
+	 * 把写文件的IO错误转成对应的下载状态
+	 * @param ex
+	 * @param bytesNeeded 正在写的字节数
+	 * @return
+	 */
+	private StopRequest getWriteError(IOException ex, long bytesNeeded) {
+		if (!Helpers.isExternalMediaMounted()) {
+			return new StopRequest(Downloads.STATUS_DEVICE_NOT_FOUND_ERROR, "external media not mounted while writing destination file");
+		}
+		if (getAvailableBytes() < bytesNeeded) {
+			return new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR, "insufficient space while writing destination file", ex);
+		}
+		return new StopRequest(Downloads.STATUS_FILE_ERROR, "while writing destination file: " + ex.toString(), ex);
+	}
+
+	private long getAvailableBytes() {
+		return Helpers.getAvailableBytes(Helpers.getFilesystemRoot(mDownloadInfo.mFilePath));
+	}
+
+	/**
+	 * 连接被服务器关闭
+	 */
+	private void onEndOfStream() throws StopRequest {
+		if (mState == STATE_READING_BODY && !mChunked && mBodyRemaining < 0) {
+			// no framing, the body ends with the connection
+			onBodyComplete();
+			return;
+		}
+
+		reportProgress();
+		if (cannotResume()) {
+			throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, "closed socket before end of file, can't resume interrupted download with no ETag");
+		}
+		throw new StopRequest(getFinalStatusForHttpError(), "closed socket before end of file");
+	}
+
+	/**
+	 * 响应体读完，检查长度后结束下载
+	 */
+	private void onBodyComplete() throws StopRequest {
+		boolean lengthMismatched = (mHeaderContentLength != null) && (mDownloadInfo.mBytesSoFar != Long.parseLong(mHeaderContentLength));
+		if (lengthMismatched) {
+			if (cannotResume()) {
+				throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, "mismatched content length");
+			} else {
+				throw new StopRequest(getFinalStatusForHttpError(), "closed socket before end of file");
+			}
+		}
+		verifyDigest();
+		finish(Downloads.STATUS_SUCCESS);
+	}
+
+	/**
+	 * Compare the hash of the finished file with the expected one.
+	 */
+	private void verifyDigest() throws StopRequest {
+		if (null == mDownloadInfo.mHashAlgorithm) {
+			return;
+		}
+
+		String hash;
+		if (null != mDigest && mDigest.getBytes() == mDownloadInfo.mBytesSoFar) {
+			hash = mDigest.finish();
+		} else {
+			try {
+				hash = DownloadDigest.digestFile(mDownloadInfo.mHashAlgorithm, mDownloadInfo.mFilePath, mDownloadInfo.mBytesSoFar);
+			} catch (IOException ex) {
+				throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while hashing destination file: " + ex.toString(), ex);
+			} catch (NoSuchAlgorithmException ex) {
+				throw new StopRequest(Downloads.STATUS_FILE_INTEGRITY_ERROR, "unsupported hash algorithm " + mDownloadInfo.mHashAlgorithm, ex);
+			}
+		}
+		mDigest = null;
+		mDownloadInfo.mHash = hash;
+		reportHashChanged(hash);
+
+		if (null != mDownloadInfo.mExpectedHash && !DownloadDigest.matches(mDownloadInfo.mExpectedHash, hash)) {
+			throw new StopRequest(Downloads.STATUS_FILE_INTEGRITY_ERROR, "hash mismatch");
+		}
+	}
+
+	private void handleNetworkError(String message, IOException ex) {
+		reportProgress();
+		StopRequest error;
+		if (cannotResume()) {
+			error = new StopRequest(Downloads.STATUS_CANNOT_RESUME, message + ": " + ex.toString() + ", can't resume interrupted download with no ETag", ex);
+		} else {
+			error = new StopRequest(getFinalStatusForHttpError(), message + ": " + ex.toString(), ex);
+		}
+		finish(error.mFinalStatus);
+	}
+
+	/**
+	 * 结束下载，不管成功失败都会调用一次
+	 * @param finalStatus
+	 */
+	private void finish(int finalStatus) {
+		if (mState == STATE_DONE) {
+			return;
+		}
+		mState = STATE_DONE;
+
+		closeSocket();
+		if (null != mReadBuffer) {
+			DownloadBufferPool.getInstance().releaseDirect(mReadBuffer);
+			mReadBuffer = null;
+		}
+		if (finalStatus == Downloads.STATUS_SUCCESS) {
+			finalizeDestinationFile();
+		}
+		// a paused download keeps its digest state for the next run
+		if (finalStatus == Downloads.STATUS_SUCCESS || Downloads.isStatusError(finalStatus)) {
+			DownloadDigest.discard(mDownloadInfo.mId);
+		} else if (null != mDigest && mDigest.getBytes() == mDownloadInfo.mBytesSoFar) {
+			mDigest.save(mDownloadInfo.mId);
+		}
+		cleanupDestination(finalStatus);
+		Log.v(TAG, "finish: finalStatus = " + finalStatus + ", transferPath = " + mDownloadInfo.mTransferPath
+				+ ", reads = " + mDownloadInfo.mReadCount.get() + ", writes = " + mDownloadInfo.mWriteCount.get());
+		// save exactly how far we got, the next run resumes from there
+		reportProgress(true);
+		reportStatusChanged(0, finalStatus);
+		ProgressTable.getInstance().release(mDownloadInfo.mProgressSlot);
+		mDownloadInfo.mProgressSlot = -1;
+		mDownloadInfo.mHasActiveThread = false;
+		mEventLoop.removeTask(this);
+		// the queue slot is free before anyone sees the task done and starts it again
+		if (null != mFinishCallback) {
+			mFinishCallback.run();
+		}
+		mDone.countDown();
+	}
+
+	private void closeSocket() {
+		if (null != mKey) {
+			mKey.cancel();
+			mKey = null;
+		}
+		if (null != mSocket) {
+			try {
+				mSocket.close();
+			} catch (IOException ex) {
+				// ignored
+			}
+			mSocket = null;
+		}
+	}
+
+	/**
+	 * Open the destination file for positional writes, preallocated to its
+	 * full length when known.
+	 */
+	private void openDestination(boolean truncate) throws StopRequest {
+		if (mChannel != null) {
+			return;
+		}
+		try {
+			mFile = new RandomAccessFile(mDownloadInfo.mFilePath, "rw");
+			mChannel = mFile.getChannel();
+			if (truncate) {
+				mFile.setLength(0);
+			}
+			if (mDownloadInfo.mTotalBytes > 0 && mFile.length() < mDownloadInfo.mTotalBytes) {
+				long bytesNeeded = mDownloadInfo.mTotalBytes - mFile.length();
+				try {
+					if (Helpers.getAvailableBytes(Helpers.getFilesystemRoot(mDownloadInfo.mFilePath)) < bytesNeeded) {
+						throw new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR, "insufficient space to preallocate destination file");
+					}
+				} catch (IllegalArgumentException ex) {
+					// unknown filesystem, let the writes find out
+				}
+				mFile.setLength(mDownloadInfo.mTotalBytes);
+			}
+		} catch (FileNotFoundException exc) {
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while opening destination file: " + exc.toString(), exc);
+		} catch (IOException exc) {
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while preallocating destination file: " + exc.toString(), exc);
+		}
+	}
+
+	/**
+	 * Called after a successful completion to make the file readable and sync
+	 * it to storage.
+	 */
+	private void finalizeDestinationFile() {
+		FileUtils.setPermissions(mDownloadInfo.mFilePath, 0644, -1, -1);
+		if (mChannel != null) {
+			try {
+				mChannel.force(true);
+			} catch (IOException ex) {
+				Log.w(TAG, "finalizeDestinationFile: IOException trying to force " + mDownloadInfo.mFilePath + ": " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Close the destination file, and delete it when the download failed.
+	 */
+	private void cleanupDestination(int finalStatus) {
+		try {
+			if (mFile != null) {
+				mFile.close();
+				mFile = null;
+				mChannel = null;
+			}
+		} catch (IOException ex) {
+			Log.e(TAG, "cleanupDestination: exception when closing the file after download : " + ex);
+		}
+		if (mDownloadInfo.mFilePath != null && Downloads.isStatusError(finalStatus)) {
+			new File(mDownloadInfo.mFilePath).delete();
+		}
+	}
+
+	/**
+	 * Check if current connectivity is valid for this request.
+	 */
+	private void checkConnectivity() throws StopRequest {
+		int networkUsable = mDownloadInfo.checkCanUseNetwork();
+		if (networkUsable != DownloadInfo.NETWORK_OK) {
+			throw new StopRequest(Downloads.STATUS_WAITING_FOR_NETWORK, "no network usable");
+		}
+	}
+
+	/**
+	 * Check if the download has been paused or canceled.
+	 */
+	private void checkPausedOrCanceled() throws StopRequest {
+		if (mCancelled) {
+			throw new StopRequest(Downloads.STATUS_CANCELED, "download canceled");
+		}
+		int control = mDownloadInfo.mControl;
+		if (control == Downloads.CONTROL_PAUSED) {
+			throw new StopRequest(Downloads.STATUS_PAUSED, "download paused by owner");
+		}
+		if (control == Downloads.CONTROL_CANCEL) {
+			throw new StopRequest(Downloads.STATUS_CANCELED, "download canceled");
+		}
+	}
+
+	private int getFinalStatusForHttpError() {
+		if (!Helpers.isNetworkAvailable(mContext)) {
+			return Downloads.STATUS_WAITING_FOR_NETWORK;
+		} else if (mDownloadInfo.mNumFailed < Constants.MAX_RETRIES) {
+			return Downloads.STATUS_WAITING_TO_RETRY;
+		} else {
+			Log.e(TAG, "reached max retries for " + mDownloadInfo.mId);
+			return Downloads.STATUS_HTTP_DATA_ERROR;
+		}
+	}
+
+	/**
+	 * 判断是否可以断点续传
+	 * @return
+	 */
+	private boolean cannotResume() {
+		return mDownloadInfo.mBytesSoFar > 0 && mDownloadInfo.mETag == null;
+	}
+
+	private String userAgent() {
+		return mDownloadInfo.mUserAgent == null ? Constants.DEFAULT_USER_AGENT : mDownloadInfo.mUserAgent;
+	}
+
+	private void reportStatusChanged(int oldStatus, int newStatus) {
+		mDownloadInfo.mStatus = newStatus;
+		ProgressTable.getInstance().updateStatus(mDownloadInfo.mProgressSlot, newStatus);
+		mDownloadMsgHandler.sendStatusChanged(mDownloadInfo.mId, oldStatus, newStatus);
+	}
+
+	private void reportProgress() {
+		reportProgress(false);
+	}
+
+	private void reportProgress(boolean force) {
+		ProgressTable.getInstance().updateProgress(mDownloadInfo.mProgressSlot, mDownloadInfo.mTotalBytes, mDownloadInfo.mBytesSoFar);
+		long now = System.currentTimeMillis();
+		if (force || now - mTimeLastNotification > DownloadEventBus.getInstance().getProgressInterval()) {
+			mDownloadMsgHandler.sendProgressChangeMessage(mDownloadInfo.mId, mDownloadInfo.mTotalBytes, mDownloadInfo.mBytesSoFar);
+			mTimeLastNotification = now;
+		}
+	}
+
+	private void reportUriChanged(String uri) {
+		if (null != uri) {
+			mDownloadMsgHandler.sendUriMessage(mDownloadInfo.mId, uri);
+		}
+	}
+
+	private void reportNetworkChanged(String etag, String mimeType) {
+		mDownloadMsgHandler.sendNetworkMessage(mDownloadInfo.mId, etag, mimeType);
+	}
+
+	private void reportHashChanged(String hash) {
+		mDownloadMsgHandler.sendHashMessage(mDownloadInfo.mId, mDownloadInfo.mHashAlgorithm, mDownloadInfo.mExpectedHash, hash);
+	}
+
+	/**
+	 * ------------------------------------------------------------Future---------------------------------------------------------
+	 */
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (isDone()) {
+			return false;
+		}
+		mCancelled = true;
+		mEventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				finish(Downloads.STATUS_CANCELED);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return mCancelled || mDone.getCount() == 0;
+	}
+
+	@Override
+	public Void get() throws InterruptedException, ExecutionException {
+		mDone.await();
+		return null;
+	}
+
+	@Override
+	public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!mDone.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return null;
+	}
+}
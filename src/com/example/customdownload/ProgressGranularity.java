@@ -0,0 +1,96 @@
+package com.example.customdownload;
+
+/**
+ * 订阅者要的进度粒度：按时间、按字节数或者按百分比。
+ * 进度事件按订阅者分别合并，没到粒度的进度不回调；下载完成时的进度和状态变化总是回调。
+ */
+public class ProgressGranularity {
+	/** 和之前一样，每MIN_PROGRESS_TIME一次 */
+	public static final ProgressGranularity DEFAULT = time(Constants.MIN_PROGRESS_TIME);
+	/** 只要状态变化，不要进度 */
+	public static final ProgressGranularity NONE = new ProgressGranularity(0, 0, 0);
+
+	private final long mInterval;	//ms，0表示不按时间
+	private final long mBytes;	//0表示不按字节数
+	private final int mPercent;	//0表示不按百分比
+
+	private ProgressGranularity(long interval, long bytes, int percent) {
+		mInterval = interval;
+		mBytes = bytes;
+		mPercent = percent;
+	}
+
+	/**
+	 * 每隔一段时间一次，比如显示中的进度条用100ms
+	 * @param interval ms，小于MIN_PROGRESS_INTERVAL时按MIN_PROGRESS_INTERVAL
+	 * @return
+	 */
+	public static ProgressGranularity time(long interval) {
+		return new ProgressGranularity(Math.max(interval, Constants.MIN_PROGRESS_INTERVAL), 0, 0);
+	}
+
+	/**
+	 * 每下载一定字节数一次
+	 * @param bytes
+	 * @return
+	 */
+	public static ProgressGranularity bytes(long bytes) {
+		return new ProgressGranularity(0, Math.max(bytes, 1), 0);
+	}
+
+	/**
+	 * 每下载一定百分比一次，比如后台同步用1%。不知道总大小时按MIN_PROGRESS_TIME
+	 * @param percent 1到100
+	 * @return
+	 */
+	public static ProgressGranularity percent(int percent) {
+		return new ProgressGranularity(0, 0, Math.min(Math.max(percent, 1), 100));
+	}
+
+	/**
+	 * 判断要不要进度事件
+	 * @return NONE返回false
+	 */
+	boolean wantsProgress() {
+		return mInterval > 0 || mBytes > 0 || mPercent > 0;
+	}
+
+	/**
+	 * 下载线程报告进度的间隔，按字节数、百分比的订阅者也要及时看到进度，用最细的间隔
+	 * @return ms
+	 */
+	long getSampleInterval() {
+		return mInterval > 0 ? mInterval : Constants.MIN_PROGRESS_INTERVAL;
+	}
+
+	/**
+	 * 判断从上次回调到现在是否到了粒度
+	 * @param lastTime 上次回调的时间，ms
+	 * @param lastBytes 上次回调时的已下载大小
+	 * @param now
+	 * @param currentBytes
+	 * @param totalBytes 不知道时小于等于0
+	 * @return
+	 */
+	boolean isDue(long lastTime, long lastBytes, long now, long currentBytes, long totalBytes) {
+		if (totalBytes > 0 && currentBytes >= totalBytes) {
+			// the last report of a download always goes out
+			return true;
+		}
+		if (mInterval > 0) {
+			return now - lastTime >= mInterval;
+		}
+		if (mBytes > 0) {
+			return currentBytes - lastBytes >= mBytes;
+		}
+		if (totalBytes <= 0) {
+			return now - lastTime >= Constants.MIN_PROGRESS_TIME;
+		}
+		return (currentBytes - lastBytes) * 100 >= mPercent * totalBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "ProgressGranularity: interval = " + mInterval + ", bytes = " + mBytes + ", percent = " + mPercent;
+	}
+}
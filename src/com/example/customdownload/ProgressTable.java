@@ -0,0 +1,215 @@
+package com.example.customdownload;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 正在下载的任务的实时进度表，给轮询的调用方用，不用等写数据库。
+ * 每个正在下载的任务占一个槽，槽是AtomicLongArray里连续的几个long：版本号、任务ID、总大小、已下载大小、状态。
+ * 写的时候用CAS把版本号改成奇数，写完字段再用有序写把版本号改回偶数；读的时候前后两次版本号相同且为偶数才算读到一致的值。
+ * 读不加锁也不分配对象。
+ * 设置了{@link SharedProgressFile}时，每次写都在持有槽的时候同步写到文件里，给其他进程读。
+ */
+public class ProgressTable {
+	/** 读出来的每个任务占的long数和各字段的下标 */
+	public static final int FIELD_TASK_ID = 0;
+	public static final int FIELD_TOTAL_BYTES = 1;
+	public static final int FIELD_CURRENT_BYTES = 2;
+	public static final int FIELD_STATUS = 3;
+	public static final int FIELD_COUNT = 4;
+
+	private static final int STRIDE = FIELD_COUNT + 1;	//槽里第一个long是版本号
+	private static final long FREE = -1;	//空槽的任务ID
+
+	private final int mCapacity;
+	private final AtomicLongArray mSlots;
+	private volatile SharedProgressFile mMirror = null;	//同步写的共享文件
+
+	private static class ProgressTableHolder {
+		private static final ProgressTable mInstance = new ProgressTable(Constants.MAX_PROGRESS_SLOTS);
+	}
+
+	ProgressTable(int capacity) {
+		mCapacity = capacity;
+		mSlots = new AtomicLongArray(capacity * STRIDE);
+		for (int slot = 0; slot < capacity; slot++) {
+			mSlots.set(slot * STRIDE + 1 + FIELD_TASK_ID, FREE);
+		}
+	}
+
+	public static ProgressTable getInstance() {
+		return ProgressTableHolder.mInstance;
+	}
+
+	/**
+	 * 设置同步写的共享文件，已经在下载的任务马上写进去
+	 * @param mirror 为null时不再写
+	 */
+	public synchronized void setMirror(SharedProgressFile mirror) {
+		mMirror = mirror;
+		if (null == mirror) {
+			return;
+		}
+		for (int slot = 0; slot < mCapacity; slot++) {
+			int base = slot * STRIDE;
+			long version = beginWrite(base);
+			mirror(base, slot);
+			mSlots.lazySet(base, version + 1);
+		}
+	}
+
+	/**
+	 * 把槽写到共享文件，要在持有槽的时候调用
+	 */
+	private void mirror(int base, int slot) {
+		SharedProgressFile mirror = mMirror;
+		if (null != mirror) {
+			mirror.write(slot, mSlots.get(base + 1 + FIELD_TASK_ID), mSlots.get(base + 1 + FIELD_TOTAL_BYTES),
+					mSlots.get(base + 1 + FIELD_CURRENT_BYTES), (int) mSlots.get(base + 1 + FIELD_STATUS));
+		}
+	}
+
+	/**
+	 * 获取槽数，也是{@link #snapshot}最多返回的任务数
+	 * @return
+	 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * 任务开始下载时占一个槽
+	 * @param taskId
+	 * @param totalBytes
+	 * @param currentBytes
+	 * @param status
+	 * @return 槽号，没有空槽时返回-1，之后的更新什么也不做
+	 */
+	public synchronized int acquire(long taskId, long totalBytes, long currentBytes, int status) {
+		for (int slot = 0; slot < mCapacity; slot++) {
+			if (mSlots.get(slot * STRIDE + 1 + FIELD_TASK_ID) == FREE) {
+				write(slot, taskId, totalBytes, currentBytes, status);
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 任务结束时释放槽
+	 * @param slot
+	 */
+	public synchronized void release(int slot) {
+		if (slot >= 0) {
+			write(slot, FREE, 0, 0, 0);
+		}
+	}
+
+	/**
+	 * 更新进度
+	 * @param slot
+	 * @param totalBytes
+	 * @param currentBytes
+	 */
+	public void updateProgress(int slot, long totalBytes, long currentBytes) {
+		if (slot < 0) {
+			return;
+		}
+		int base = slot * STRIDE;
+		long version = beginWrite(base);
+		mSlots.lazySet(base + 1 + FIELD_TOTAL_BYTES, totalBytes);
+		mSlots.lazySet(base + 1 + FIELD_CURRENT_BYTES, currentBytes);
+		mirror(base, slot);
+		mSlots.lazySet(base, version + 1);
+	}
+
+	/**
+	 * 更新状态
+	 * @param slot
+	 * @param status
+	 */
+	public void updateStatus(int slot, int status) {
+		if (slot < 0) {
+			return;
+		}
+		int base = slot * STRIDE;
+		long version = beginWrite(base);
+		mSlots.lazySet(base + 1 + FIELD_STATUS, status);
+		mirror(base, slot);
+		mSlots.lazySet(base, version + 1);
+	}
+
+	private void write(int slot, long taskId, long totalBytes, long currentBytes, int status) {
+		int base = slot * STRIDE;
+		long version = beginWrite(base);
+		mSlots.lazySet(base + 1 + FIELD_TASK_ID, taskId);
+		mSlots.lazySet(base + 1 + FIELD_TOTAL_BYTES, totalBytes);
+		mSlots.lazySet(base + 1 + FIELD_CURRENT_BYTES, currentBytes);
+		mSlots.lazySet(base + 1 + FIELD_STATUS, status);
+		mirror(base, slot);
+		mSlots.lazySet(base, version + 1);
+	}
+
+	/**
+	 * 把版本号从偶数改成奇数，同一个槽同时只有一个写者
+	 * @return 奇数的版本号
+	 */
+	private long beginWrite(int base) {
+		while (true) {
+			long version = mSlots.get(base);
+			if ((version & 1) == 0 && mSlots.compareAndSet(base, version, version + 1)) {
+				return version + 1;
+			}
+		}
+	}
+
+	/**
+	 * 一致地读一个槽
+	 * @return 槽是空的时返回false
+	 */
+	private boolean read(int slot, long[] out, int offset) {
+		int base = slot * STRIDE;
+		while (true) {
+			long version = mSlots.get(base);
+			if ((version & 1) != 0) {
+				// a writer is in the middle of this slot
+				continue;
+			}
+			for (int i = 0; i < FIELD_COUNT; i++) {
+				out[offset + i] = mSlots.get(base + 1 + i);
+			}
+			if (mSlots.get(base) == version) {
+				return out[offset + FIELD_TASK_ID] != FREE;
+			}
+		}
+	}
+
+	/**
+	 * 读一个正在下载的任务的实时进度
+	 * @param taskId
+	 * @param out 长度至少FIELD_COUNT，按FIELD_*的下标填
+	 * @return 任务没有在下载时返回false
+	 */
+	public boolean read(long taskId, long[] out) {
+		for (int slot = 0; slot < mCapacity; slot++) {
+			if (mSlots.get(slot * STRIDE + 1 + FIELD_TASK_ID) == taskId && read(slot, out, 0) && out[FIELD_TASK_ID] == taskId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 读所有正在下载的任务的实时进度，每个槽各自是一致的
+	 * @param out 长度至少getCapacity() * FIELD_COUNT，第i个任务从i * FIELD_COUNT开始按FIELD_*的下标填
+	 * @return 任务数
+	 */
+	public int snapshot(long[] out) {
+		int count = 0;
+		for (int slot = 0; slot < mCapacity; slot++) {
+			if (read(slot, out, count * FIELD_COUNT)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,213 @@
+package com.example.customdownload;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 等待重试的任务的定时器，时间轮实现。
+ * 轮子有WHEEL_SIZE个格子，每TICK_TIME走一格，任务按到期的格数放进对应的格子，到期时回调Listener重新排队。
+ * 等待的任务不占下载线程，所有任务共用一个定时线程，而且只在有任务等待时才走。
+ * 等待时间超过一圈的任务留在格子里，每圈检查一次到期没有。
+ */
+public class RetryScheduler {
+	private static final String TAG = RetryScheduler.class.getSimpleName();
+
+	static final long TICK_TIME = 1000;	//一格的时间，ms
+	static final int WHEEL_SIZE = 512;	//一圈的格数，大约8.5分钟
+
+	/**
+	 * 到期回调，在定时线程里调用，不持有定时器的锁
+	 */
+	public interface Listener {
+		void onRetry(long taskId);
+	}
+
+	/**
+	 * 一个等待重试的任务
+	 */
+	private static class Entry {
+		final long mTaskId;
+		final long mDeadline;	//到期的格数
+
+		Entry(long taskId, long deadline) {
+			mTaskId = taskId;
+			mDeadline = deadline;
+		}
+	}
+
+	private final Listener mListener;
+	private final List<List<Entry>> mWheel = new ArrayList<List<Entry>>(WHEEL_SIZE);
+	private final Map<Long, Entry> mEntries = new HashMap<Long, Entry>();
+	private final long mStartTime;	//第0格的时间，uptimeMillis
+	private long mTick = 0;	//已经走到的格数
+	private boolean mTicking = false;
+
+	private HandlerThread mHandlerThread;
+	private Handler mHandler;	//为null时不自己走，由调用方调用tick(long)
+
+	private final Runnable mTickRunnable = new Runnable() {
+		@Override
+		public void run() {
+			tick();
+		}
+	};
+
+	public RetryScheduler(Listener listener) {
+		this(listener, SystemClock.uptimeMillis());
+		mHandlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mHandlerThread.start();
+		mHandler = new Handler(mHandlerThread.getLooper());
+	}
+
+	/**
+	 * 没有定时线程的时间轮，由调用方传入时间调用{@link #schedule(long, long, long)}和{@link #tick(long)}，测试用
+	 * @param listener
+	 * @param startTime 第0格的时间，uptimeMillis
+	 */
+	RetryScheduler(Listener listener, long startTime) {
+		mListener = listener;
+		mStartTime = startTime;
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			mWheel.add(new ArrayList<Entry>());
+		}
+	}
+
+	/**
+	 * 安排一个任务在一段时间后重试，已经安排过的按新的时间
+	 * @param taskId
+	 * @param delay ms
+	 */
+	public void schedule(long taskId, long delay) {
+		schedule(taskId, delay, SystemClock.uptimeMillis());
+	}
+
+	/**
+	 * 安排一个任务在一段时间后重试
+	 * @param taskId
+	 * @param delay ms
+	 * @param now 当前时间，uptimeMillis
+	 */
+	synchronized void schedule(long taskId, long delay, long now) {
+		if (!mTicking) {
+			// the wheel stood still while it was empty, catch up before counting from it
+			mTick = currentTick(now);
+		}
+		removeEntry(taskId);
+		long ticks = Math.max((delay + TICK_TIME - 1) / TICK_TIME, 1);
+		Entry entry = new Entry(taskId, mTick + ticks);
+		mWheel.get((int) (entry.mDeadline % WHEEL_SIZE)).add(entry);
+		mEntries.put(taskId, entry);
+		Log.d(TAG, "schedule: taskId = " + taskId + ", delay = " + delay + ", pending = " + mEntries.size());
+		if (!mTicking) {
+			mTicking = true;
+			postNextTick();
+		}
+	}
+
+	/**
+	 * 取消一个任务的重试
+	 * @param taskId
+	 * @return 任务没有在等待重试时返回false
+	 */
+	public synchronized boolean cancel(long taskId) {
+		return removeEntry(taskId);
+	}
+
+	/**
+	 * 判断任务是不是在等待重试
+	 * @param taskId
+	 * @return
+	 */
+	public synchronized boolean isScheduled(long taskId) {
+		return mEntries.containsKey(taskId);
+	}
+
+	/**
+	 * 获取等待重试的任务数
+	 * @return
+	 */
+	public synchronized int getPendingCount() {
+		return mEntries.size();
+	}
+
+	/**
+	 * 停止定时线程，没到期的任务不再回调
+	 */
+	public synchronized void quit() {
+		if (null != mHandler) {
+			mHandler.removeCallbacks(mTickRunnable);
+			mHandlerThread.quit();
+		}
+		mTicking = false;
+	}
+
+	private boolean removeEntry(long taskId) {
+		Entry entry = mEntries.remove(taskId);
+		if (null == entry) {
+			return false;
+		}
+		mWheel.get((int) (entry.mDeadline % WHEEL_SIZE)).remove(entry);
+		return true;
+	}
+
+	private long currentTick(long now) {
+		return (now - mStartTime) / TICK_TIME;
+	}
+
+	private void postNextTick() {
+		if (null != mHandler) {
+			mHandler.postAtTime(mTickRunnable, mStartTime + (mTick + 1) * TICK_TIME);
+		}
+	}
+
+	private void tick() {
+		tick(SystemClock.uptimeMillis());
+	}
+
+	/**
+	 * 走到now所在的格子，回调所有到期的任务
+	 * @param now 当前时间，uptimeMillis
+	 */
+	void tick(long now) {
+		List<Long> expired = new ArrayList<Long>();
+		synchronized (this) {
+			if (!mTicking) {
+				return;
+			}
+			// the thread may have been held up for several ticks, every slot passed is checked once
+			long target = Math.max(currentTick(now), mTick + 1);
+			long slots = Math.min(target - mTick, WHEEL_SIZE);
+			for (long i = 1; i <= slots; i++) {
+				Iterator<Entry> iterator = mWheel.get((int) ((mTick + i) % WHEEL_SIZE)).iterator();
+				while (iterator.hasNext()) {
+					Entry entry = iterator.next();
+					if (entry.mDeadline <= target) {
+						iterator.remove();
+						mEntries.remove(entry.mTaskId);
+						expired.add(entry.mTaskId);
+					}
+				}
+			}
+			mTick = target;
+			if (mEntries.isEmpty()) {
+				mTicking = false;
+			} else {
+				postNextTick();
+			}
+		}
+
+		for (Long taskId : expired) {
+			Log.d(TAG, "tick: retry taskId = " + taskId);
+			mListener.onRetry(taskId);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.example.customdownload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分段下载的调度器，按需把字节区间分给下载线程。
+ * 没有未分配的区间时，把剩余最多的区间从中间切开，后一半交给空闲的线程，
+ * 这样所有连接都能一直忙到文件结束，而不是等最慢的那一段。
+ */
+public class SegmentScheduler {
+	private final List<DownloadSegment> mSegments;	//所有分段，包括切出来的新段
+	private final List<DownloadSegment> mActiveSegments;	//正在被线程下载的分段
+	private int mStealCount = 0;	//切分次数
+
+	public SegmentScheduler(List<DownloadSegment> segments) {
+		mSegments = new ArrayList<DownloadSegment>(segments);
+		mActiveSegments = new ArrayList<DownloadSegment>();
+	}
+
+	/**
+	 * 获取下一个要下载的分段，优先分配还没有线程负责的分段，否则切分剩余最多的分段
+	 * @return 没有可分配的分段时返回null，调用线程应该退出
+	 */
+	public synchronized DownloadSegment nextSegment() {
+		for (DownloadSegment segment : mSegments) {
+			if (!segment.isComplete() && !mActiveSegments.contains(segment)) {
+				mActiveSegments.add(segment);
+				return segment;
+			}
+		}
+
+		DownloadSegment victim = null;
+		for (DownloadSegment segment : mActiveSegments) {
+			if (null == victim || segment.getRemainingBytes() > victim.getRemainingBytes()) {
+				victim = segment;
+			}
+		}
+		if (null == victim || victim.getRemainingBytes() < 2 * Constants.MIN_SPLIT_SIZE) {
+			return null;
+		}
+
+		// 切掉后一半，原来的线程读到新的结束位置就会停下
+		long splitOffset = victim.getCurrentOffset() + victim.getRemainingBytes() / 2;
+		DownloadSegment segment = new DownloadSegment(mSegments.size(), splitOffset, victim.mEndByte, 0);
+		victim.mEndByte = splitOffset - 1;
+		mSegments.add(segment);
+		mActiveSegments.add(segment);
+		mStealCount++;
+
+		return segment;
+	}
+
+	/**
+	 * 线程不再下载这个分段（完成或者出错）
+	 * @param segment
+	 */
+	public synchronized void release(DownloadSegment segment) {
+		mActiveSegments.remove(segment);
+	}
+
+	/**
+	 * 获取所有分段的拷贝，用于保存断点信息
+	 * @return
+	 */
+	public synchronized List<DownloadSegment> getSegments() {
+		return new ArrayList<DownloadSegment>(mSegments);
+	}
+
+	/**
+	 * 获取所有分段已下载的总大小
+	 * @return
+	 */
+	public synchronized long getBytesSoFar() {
+		long bytesSoFar = 0;
+		for (DownloadSegment segment : mSegments) {
+			bytesSoFar += segment.mCurrentBytes;
+		}
+		return bytesSoFar;
+	}
+
+	/**
+	 * 获取切分次数
+	 * @return
+	 */
+	public synchronized int getStealCount() {
+		return mStealCount;
+	}
+}
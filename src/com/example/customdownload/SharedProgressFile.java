@@ -0,0 +1,261 @@
+package com.example.customdownload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * 共享给其他进程的实时进度文件，和{@link ProgressTable}的槽一一对应。
+ * 下载服务所在进程用{@link #create}读写映射，其他进程用{@link #openForRead}只读映射后直接轮询，不用binder或者广播。
+ *
+ * 文件格式(本机字节序)：
+ * 文件头HEADER_SIZE字节：magic(int)、格式版本(int)、槽数(int)、槽大小(int)、代数(long，每次服务创建文件时不同)。
+ * 之后每个槽SLOT_SIZE字节：版本号(long)、任务ID(long)、总大小(long)、已下载大小(long)、状态(int)、复用次数(int)。
+ * 版本号是seqlock：写之前改成奇数，写完改回偶数，读者前后两次读到相同的偶数才算一致。
+ * 槽释放时任务ID写成-1、复用次数加一，读者按任务ID确认槽还属于自己关心的任务。
+ * magic最后写，读者看到magic时文件已经初始化完。格式版本或者槽大小不认识时读者不能读。
+ */
+public class SharedProgressFile {
+	private static final String TAG = SharedProgressFile.class.getSimpleName();
+
+	public static final String FILE_NAME = "download_progress.map";
+
+	public static final int MAGIC = 0x43445046;	//"CDPF"
+	public static final int LAYOUT_VERSION = 1;
+
+	public static final int HEADER_SIZE = 64;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_LAYOUT_VERSION = 4;
+	private static final int HEADER_SLOT_COUNT = 8;
+	private static final int HEADER_SLOT_SIZE = 12;
+	private static final int HEADER_GENERATION = 16;
+
+	public static final int SLOT_SIZE = 48;
+	private static final int SLOT_VERSION = 0;
+	private static final int SLOT_TASK_ID = 8;
+	private static final int SLOT_TOTAL_BYTES = 16;
+	private static final int SLOT_CURRENT_BYTES = 24;
+	private static final int SLOT_STATUS = 32;
+	private static final int SLOT_REUSE_COUNT = 36;
+
+	private static final long FREE = -1;
+	private static final int MAX_READ_ATTEMPTS = 1000;	//服务进程在写的时候死了版本号会一直是奇数，读者不能一直等
+
+	private final RandomAccessFile mFile;
+	private final MappedByteBuffer mBuffer;
+	private final int mSlotCount;
+	private final long mGeneration;
+
+	// MappedByteBuffer has no ordered puts, a volatile access is used as the memory barrier around the version word
+	private volatile int mFence;
+
+	private SharedProgressFile(RandomAccessFile file, MappedByteBuffer buffer, int slotCount, long generation) {
+		mFile = file;
+		mBuffer = buffer;
+		mSlotCount = slotCount;
+		mGeneration = generation;
+	}
+
+	/**
+	 * 获取进度文件的路径，同一个应用的所有进程都一样
+	 * @param context
+	 * @return
+	 */
+	public static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	/**
+	 * 创建或者重新初始化进度文件，下载服务调用
+	 * @param file
+	 * @param slotCount 和ProgressTable的槽数一样
+	 * @return
+	 */
+	public static SharedProgressFile create(File file, int slotCount) throws IOException {
+		int size = HEADER_SIZE + slotCount * SLOT_SIZE;
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(size);
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.nativeOrder());
+
+			// readers that still map the old file see it as not initialized until the header is back
+			buffer.putInt(HEADER_MAGIC, 0);
+			for (int slot = 0; slot < slotCount; slot++) {
+				int base = HEADER_SIZE + slot * SLOT_SIZE;
+				buffer.putLong(base + SLOT_VERSION, 0);
+				buffer.putLong(base + SLOT_TASK_ID, FREE);
+				buffer.putLong(base + SLOT_TOTAL_BYTES, 0);
+				buffer.putLong(base + SLOT_CURRENT_BYTES, 0);
+				buffer.putInt(base + SLOT_STATUS, 0);
+				buffer.putInt(base + SLOT_REUSE_COUNT, 0);
+			}
+			long generation = System.currentTimeMillis();
+			buffer.putInt(HEADER_LAYOUT_VERSION, LAYOUT_VERSION);
+			buffer.putInt(HEADER_SLOT_COUNT, slotCount);
+			buffer.putInt(HEADER_SLOT_SIZE, SLOT_SIZE);
+			buffer.putLong(HEADER_GENERATION, generation);
+			SharedProgressFile progressFile = new SharedProgressFile(randomAccessFile, buffer, slotCount, generation);
+			progressFile.mFence = 0;
+			buffer.putInt(HEADER_MAGIC, MAGIC);
+			Log.d(TAG, "create: " + file + ", slotCount = " + slotCount + ", generation = " + generation);
+			return progressFile;
+		} catch (IOException ex) {
+			randomAccessFile.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * 只读映射下载服务创建的进度文件，客户端进程调用
+	 * @param file
+	 * @return 文件还没有初始化或者格式不认识时返回null
+	 */
+	public static SharedProgressFile openForRead(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			long size = randomAccessFile.length();
+			if (size < HEADER_SIZE) {
+				randomAccessFile.close();
+				return null;
+			}
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buffer.order(ByteOrder.nativeOrder());
+			if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_LAYOUT_VERSION) != LAYOUT_VERSION
+					|| buffer.getInt(HEADER_SLOT_SIZE) != SLOT_SIZE) {
+				Log.w(TAG, "openForRead: unknown layout, version = " + buffer.getInt(HEADER_LAYOUT_VERSION));
+				randomAccessFile.close();
+				return null;
+			}
+			int slotCount = buffer.getInt(HEADER_SLOT_COUNT);
+			if (HEADER_SIZE + (long) slotCount * SLOT_SIZE > size) {
+				randomAccessFile.close();
+				return null;
+			}
+			return new SharedProgressFile(randomAccessFile, buffer, slotCount, buffer.getLong(HEADER_GENERATION));
+		} catch (IOException ex) {
+			randomAccessFile.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * 获取槽数
+	 * @return
+	 */
+	public int getSlotCount() {
+		return mSlotCount;
+	}
+
+	/**
+	 * 判断文件是不是已经被重新创建了(服务重启)，是的话客户端要重新openForRead
+	 * @return
+	 */
+	public boolean isStale() {
+		return mBuffer.getInt(HEADER_MAGIC) != MAGIC || mBuffer.getLong(HEADER_GENERATION) != mGeneration;
+	}
+
+	/**
+	 * 写一个槽，调用方保证同一个槽同时只有一个写者
+	 * @param slot
+	 * @param taskId 释放槽时为-1
+	 * @param totalBytes
+	 * @param currentBytes
+	 * @param status
+	 */
+	void write(int slot, long taskId, long totalBytes, long currentBytes, int status) {
+		if (slot < 0 || slot >= mSlotCount) {
+			return;
+		}
+		int base = HEADER_SIZE + slot * SLOT_SIZE;
+		long version = mBuffer.getLong(base + SLOT_VERSION);
+		mBuffer.putLong(base + SLOT_VERSION, version + 1);
+		mFence = 0;
+		if (mBuffer.getLong(base + SLOT_TASK_ID) != taskId) {
+			mBuffer.putInt(base + SLOT_REUSE_COUNT, mBuffer.getInt(base + SLOT_REUSE_COUNT) + 1);
+			mBuffer.putLong(base + SLOT_TASK_ID, taskId);
+		}
+		mBuffer.putLong(base + SLOT_TOTAL_BYTES, totalBytes);
+		mBuffer.putLong(base + SLOT_CURRENT_BYTES, currentBytes);
+		mBuffer.putInt(base + SLOT_STATUS, status);
+		mFence = 0;
+		mBuffer.putLong(base + SLOT_VERSION, version + 2);
+	}
+
+	private int loadFence() {
+		return mFence;
+	}
+
+	/**
+	 * 一致地读一个槽
+	 * @return 槽是空的或者一直读不到一致的值时返回false
+	 */
+	private boolean read(int slot, long[] out, int offset) {
+		int base = HEADER_SIZE + slot * SLOT_SIZE;
+		for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+			long version = mBuffer.getLong(base + SLOT_VERSION);
+			loadFence();
+			if ((version & 1) != 0) {
+				// the service is in the middle of this slot
+				continue;
+			}
+			out[offset + ProgressTable.FIELD_TASK_ID] = mBuffer.getLong(base + SLOT_TASK_ID);
+			out[offset + ProgressTable.FIELD_TOTAL_BYTES] = mBuffer.getLong(base + SLOT_TOTAL_BYTES);
+			out[offset + ProgressTable.FIELD_CURRENT_BYTES] = mBuffer.getLong(base + SLOT_CURRENT_BYTES);
+			out[offset + ProgressTable.FIELD_STATUS] = mBuffer.getInt(base + SLOT_STATUS);
+			loadFence();
+			if (mBuffer.getLong(base + SLOT_VERSION) == version) {
+				return out[offset + ProgressTable.FIELD_TASK_ID] != FREE;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 读一个正在下载的任务的实时进度
+	 * @param taskId
+	 * @param out 长度至少ProgressTable.FIELD_COUNT，按ProgressTable.FIELD_*的下标填
+	 * @return 任务没有在下载时返回false
+	 */
+	public boolean read(long taskId, long[] out) {
+		for (int slot = 0; slot < mSlotCount; slot++) {
+			if (mBuffer.getLong(HEADER_SIZE + slot * SLOT_SIZE + SLOT_TASK_ID) == taskId
+					&& read(slot, out, 0) && out[ProgressTable.FIELD_TASK_ID] == taskId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 读所有正在下载的任务的实时进度
+	 * @param out 长度至少getSlotCount() * ProgressTable.FIELD_COUNT
+	 * @return 任务数，第i个任务从i * ProgressTable.FIELD_COUNT开始
+	 */
+	public int snapshot(long[] out) {
+		int count = 0;
+		for (int slot = 0; slot < mSlotCount; slot++) {
+			if (read(slot, out, count * ProgressTable.FIELD_COUNT)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 关闭文件，映射在缓冲区被回收前仍然有效
+	 */
+	public void close() {
+		try {
+			mFile.close();
+		} catch (IOException ex) {
+			// ignored
+		}
+	}
+}
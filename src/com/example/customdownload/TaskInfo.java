@@ -13,9 +13,38 @@ public class TaskInfo {
 	private long mTotalBytes;	//文件总大小
 	private long mCurrentBytes;	//文件已下载大小
 	private String mEtag;
+	private String mHashAlgorithm;	//校验算法
+	private String mExpectedHash;	//期望的摘要
+	private String mHash;	//下载完成后算出的摘要
+	private int mPriority = Downloads.PRIORITY_NORMAL;	//排队的优先级
+	private long mQueuedTime;	//进入队列的时间
+	private int mNumFailed;	//连续失败的次数
+	private long mRetryTime;	//等待重试时下次重试的时间
 	
 	public TaskInfo() {}
-	
+
+	/**
+	 * 复制一个任务信息
+	 * @param other
+	 */
+	public TaskInfo(TaskInfo other) {
+		mId = other.mId;
+		mFileName = other.mFileName;
+		mSavePath = other.mSavePath;
+		mTaskStatus = other.mTaskStatus;
+		mUri = other.mUri;
+		mTotalBytes = other.mTotalBytes;
+		mCurrentBytes = other.mCurrentBytes;
+		mEtag = other.mEtag;
+		mHashAlgorithm = other.mHashAlgorithm;
+		mExpectedHash = other.mExpectedHash;
+		mHash = other.mHash;
+		mPriority = other.mPriority;
+		mQueuedTime = other.mQueuedTime;
+		mNumFailed = other.mNumFailed;
+		mRetryTime = other.mRetryTime;
+	}
+
 	/**
 	 * 打印
 	 */
@@ -142,4 +171,109 @@ public class TaskInfo {
 	public String getEtag() {
 		return mEtag;
 	}
+	
+	/**
+	 * 设置校验算法
+	 * @param hashAlgorithm
+	 */
+	public void setHashAlgorithm(String hashAlgorithm) {
+		mHashAlgorithm = hashAlgorithm;
+	}
+	/**
+	 * 获取校验算法
+	 * @return
+	 */
+	public String getHashAlgorithm() {
+		return mHashAlgorithm;
+	}
+	
+	/**
+	 * 设置期望的摘要
+	 * @param expectedHash
+	 */
+	public void setExpectedHash(String expectedHash) {
+		mExpectedHash = expectedHash;
+	}
+	/**
+	 * 获取期望的摘要
+	 * @return
+	 */
+	public String getExpectedHash() {
+		return mExpectedHash;
+	}
+	
+	/**
+	 * 设置下载完成后算出的摘要
+	 * @param hash
+	 */
+	public void setHash(String hash) {
+		mHash = hash;
+	}
+	/**
+	 * 获取下载完成后算出的摘要
+	 * @return
+	 */
+	public String getHash() {
+		return mHash;
+	}
+	
+	/**
+	 * 设置排队的优先级
+	 * @param priority Downloads.PRIORITY_*
+	 */
+	public void setPriority(int priority) {
+		mPriority = priority;
+	}
+	/**
+	 * 获取排队的优先级
+	 * @return
+	 */
+	public int getPriority() {
+		return mPriority;
+	}
+	
+	/**
+	 * 设置进入队列的时间
+	 * @param queuedTime
+	 */
+	public void setQueuedTime(long queuedTime) {
+		mQueuedTime = queuedTime;
+	}
+	/**
+	 * 获取进入队列的时间
+	 * @return
+	 */
+	public long getQueuedTime() {
+		return mQueuedTime;
+	}
+	
+	/**
+	 * 设置连续失败的次数
+	 * @param numFailed
+	 */
+	public void setNumFailed(int numFailed) {
+		mNumFailed = numFailed;
+	}
+	/**
+	 * 获取连续失败的次数
+	 * @return
+	 */
+	public int getNumFailed() {
+		return mNumFailed;
+	}
+	
+	/**
+	 * 设置下次重试的时间
+	 * @param retryTime
+	 */
+	public void setRetryTime(long retryTime) {
+		mRetryTime = retryTime;
+	}
+	/**
+	 * 获取下次重试的时间
+	 * @return 不在等待重试时为0
+	 */
+	public long getRetryTime() {
+		return mRetryTime;
+	}
 }
@@ -0,0 +1,250 @@
+package com.example.customdownload;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentValues;
+
+/**
+ * DownloadDatabaseHelper前面的任务缓存，按任务ID索引，另外按状态建了二级索引。
+ * 初始化时从数据库加载一次，之后每次insert/update先写数据库再写缓存，读全部从内存返回。
+ * 缓存里的TaskInfo发布后不再修改，更新时复制一份改完再替换，所以读不用加锁；写由DownloadDatabaseHelper串行化。
+ * 返回给调用方的都是副本，调用方修改不会影响缓存。
+ */
+public class TaskInfoCache {
+	private final Map<Long, TaskInfo> mTasks = new ConcurrentHashMap<Long, TaskInfo>();	//任务ID -> 任务信息
+	private final Map<Integer, Set<Long>> mStatusIndex = new ConcurrentHashMap<Integer, Set<Long>>();	//状态 -> 任务ID
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+
+	private static final Comparator<TaskInfo> ID_ORDER = new Comparator<TaskInfo>() {
+		@Override
+		public int compare(TaskInfo lhs, TaskInfo rhs) {
+			// ids grow with the creation time
+			return lhs.getId() < rhs.getId() ? -1 : (lhs.getId() == rhs.getId() ? 0 : 1);
+		}
+	};
+
+	/**
+	 * 用数据库里的全部任务替换缓存
+	 * @param taskInfoList
+	 */
+	public void load(List<TaskInfo> taskInfoList) {
+		mTasks.clear();
+		mStatusIndex.clear();
+		if (null == taskInfoList) {
+			return;
+		}
+		for (TaskInfo taskInfo : taskInfoList) {
+			put(taskInfo);
+		}
+	}
+
+	/**
+	 * 获取任务信息的副本
+	 * @param id
+	 * @return 缓存里没有时返回null
+	 */
+	public TaskInfo get(long id) {
+		TaskInfo taskInfo = mTasks.get(id);
+		if (null == taskInfo) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+		mHits.incrementAndGet();
+		return new TaskInfo(taskInfo);
+	}
+
+	/**
+	 * 获取所有任务信息的副本，按创建顺序
+	 * @return
+	 */
+	public ArrayList<TaskInfo> getAll() {
+		ArrayList<TaskInfo> taskInfoList = new ArrayList<TaskInfo>(mTasks.size());
+		for (TaskInfo taskInfo : mTasks.values()) {
+			taskInfoList.add(new TaskInfo(taskInfo));
+		}
+		Collections.sort(taskInfoList, ID_ORDER);
+		return taskInfoList;
+	}
+
+	/**
+	 * 获取某个状态的所有任务信息的副本，按创建顺序
+	 * @param status
+	 * @return
+	 */
+	public ArrayList<TaskInfo> getByStatus(int status) {
+		ArrayList<TaskInfo> taskInfoList = new ArrayList<TaskInfo>();
+		Set<Long> ids = mStatusIndex.get(status);
+		if (null == ids) {
+			return taskInfoList;
+		}
+		for (Long id : ids) {
+			TaskInfo taskInfo = mTasks.get(id);
+			// the index may lag behind a concurrent update for a moment
+			if (null != taskInfo && taskInfo.getTaskStatus() == status) {
+				taskInfoList.add(new TaskInfo(taskInfo));
+			}
+		}
+		Collections.sort(taskInfoList, ID_ORDER);
+		return taskInfoList;
+	}
+
+	/**
+	 * 加入或者替换一个任务，要在数据库写成功后调用
+	 * @param taskInfo 缓存会保存它的副本
+	 */
+	public void put(TaskInfo taskInfo) {
+		replace(new TaskInfo(taskInfo));
+	}
+
+	/**
+	 * 把写进数据库的列同步到缓存，要在数据库写成功后调用
+	 * @param id
+	 * @param values
+	 * @return 缓存里没有这个任务时返回false
+	 */
+	public boolean apply(long id, ContentValues values) {
+		TaskInfo old = mTasks.get(id);
+		if (null == old) {
+			return false;
+		}
+		TaskInfo taskInfo = new TaskInfo(old);
+		applyValues(taskInfo, values);
+		replace(taskInfo);
+		return true;
+	}
+
+	/**
+	 * 同步进度，要在数据库写成功后调用
+	 * @param id
+	 * @param totalBytes
+	 * @param currentBytes
+	 */
+	public void applyProgress(long id, long totalBytes, long currentBytes) {
+		TaskInfo old = mTasks.get(id);
+		if (null == old) {
+			return;
+		}
+		TaskInfo taskInfo = new TaskInfo(old);
+		taskInfo.setTotalBytes(totalBytes);
+		taskInfo.setCurrentBytes(currentBytes);
+		mTasks.put(id, taskInfo);
+	}
+
+	/**
+	 * 删除一个任务
+	 * @param id
+	 */
+	public void remove(long id) {
+		TaskInfo old = mTasks.remove(id);
+		if (null != old) {
+			Set<Long> ids = mStatusIndex.get(old.getTaskStatus());
+			if (null != ids) {
+				ids.remove(id);
+			}
+		}
+	}
+
+	private void replace(TaskInfo taskInfo) {
+		TaskInfo old = mTasks.put(taskInfo.getId(), taskInfo);
+		if (null != old && old.getTaskStatus() == taskInfo.getTaskStatus()) {
+			return;
+		}
+		if (null != old) {
+			Set<Long> ids = mStatusIndex.get(old.getTaskStatus());
+			if (null != ids) {
+				ids.remove(taskInfo.getId());
+			}
+		}
+		Set<Long> ids = mStatusIndex.get(taskInfo.getTaskStatus());
+		if (null == ids) {
+			ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+			mStatusIndex.put(taskInfo.getTaskStatus(), ids);
+		}
+		ids.add(taskInfo.getId());
+	}
+
+	/**
+	 * 把ContentValues里的列写到TaskInfo，数字列为null时保留原值
+	 * @param taskInfo
+	 * @param values
+	 */
+	public static void applyValues(TaskInfo taskInfo, ContentValues values) {
+		if (null != values.getAsLong(Downloads._ID)) {
+			taskInfo.setId(values.getAsLong(Downloads._ID));
+		}
+		if (values.containsKey(Downloads.COLUMN_FILE_NAME)) {
+			taskInfo.setFileName(values.getAsString(Downloads.COLUMN_FILE_NAME));
+		}
+		if (null != values.getAsInteger(Downloads.COLUMN_STATUS)) {
+			taskInfo.setTaskStatus(values.getAsInteger(Downloads.COLUMN_STATUS));
+		}
+		if (values.containsKey(Downloads.COLUMN_URI)) {
+			taskInfo.setTaskUri(values.getAsString(Downloads.COLUMN_URI));
+		}
+		if (null != values.getAsLong(Downloads.COLUMN_TOTAL_BYTES)) {
+			taskInfo.setTotalBytes(values.getAsLong(Downloads.COLUMN_TOTAL_BYTES));
+		}
+		if (null != values.getAsLong(Downloads.COLUMN_CURRENT_BYTES)) {
+			taskInfo.setCurrentBytes(values.getAsLong(Downloads.COLUMN_CURRENT_BYTES));
+		}
+		if (values.containsKey(Downloads.COLUMN_FILE_PATH)) {
+			taskInfo.setSavePath(values.getAsString(Downloads.COLUMN_FILE_PATH));
+		}
+		if (values.containsKey(Downloads.COLUMN_ETAG)) {
+			taskInfo.setEtag(values.getAsString(Downloads.COLUMN_ETAG));
+		}
+		if (values.containsKey(Downloads.COLUMN_HASH_ALGORITHM)) {
+			taskInfo.setHashAlgorithm(values.getAsString(Downloads.COLUMN_HASH_ALGORITHM));
+		}
+		if (values.containsKey(Downloads.COLUMN_EXPECTED_HASH)) {
+			taskInfo.setExpectedHash(values.getAsString(Downloads.COLUMN_EXPECTED_HASH));
+		}
+		if (values.containsKey(Downloads.COLUMN_HASH)) {
+			taskInfo.setHash(values.getAsString(Downloads.COLUMN_HASH));
+		}
+		if (null != values.getAsInteger(Downloads.COLUMN_PRIORITY)) {
+			taskInfo.setPriority(values.getAsInteger(Downloads.COLUMN_PRIORITY));
+		}
+		if (null != values.getAsLong(Downloads.COLUMN_QUEUED_TIME)) {
+			taskInfo.setQueuedTime(values.getAsLong(Downloads.COLUMN_QUEUED_TIME));
+		}
+		if (null != values.getAsInteger(Downloads.COLUMN_FAILED_CONNECTIONS)) {
+			taskInfo.setNumFailed(values.getAsInteger(Downloads.COLUMN_FAILED_CONNECTIONS));
+		}
+		if (null != values.getAsLong(Downloads.COLUMN_RETRY_TIME)) {
+			taskInfo.setRetryTime(values.getAsLong(Downloads.COLUMN_RETRY_TIME));
+		}
+	}
+
+	/**
+	 * 获取缓存的任务数
+	 * @return
+	 */
+	public int size() {
+		return mTasks.size();
+	}
+
+	/**
+	 * 获取按ID读缓存命中的次数
+	 * @return
+	 */
+	public long getHitCount() {
+		return mHits.get();
+	}
+
+	/**
+	 * 获取按ID读缓存没命中的次数
+	 * @return
+	 */
+	public long getMissCount() {
+		return mMisses.get();
+	}
+}
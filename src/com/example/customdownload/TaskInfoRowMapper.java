@@ -0,0 +1,139 @@
+package com.example.customdownload;
+
+import android.database.Cursor;
+
+/**
+ * 把downloads表的一行转成TaskInfo。
+ * 列的下标在构造时按查询的投影解析一次，之后每行直接按下标取值，不再逐列比较列名。
+ * 投影里没有的列(比如旧版本数据库没有的哈希列)下标为-1，对应字段保持默认值。
+ */
+public class TaskInfoRowMapper {
+	/**
+	 * 接收查询出来的每一行
+	 */
+	public interface TaskInfoSink {
+		/**
+		 * @param taskInfo 新建的对象，可以直接保存
+		 * @return 返回false时停止读后面的行
+		 */
+		boolean onRow(TaskInfo taskInfo);
+	}
+
+	private final int mIdIndex;
+	private final int mFileNameIndex;
+	private final int mStatusIndex;
+	private final int mUriIndex;
+	private final int mTotalBytesIndex;
+	private final int mCurrentBytesIndex;
+	private final int mFilePathIndex;
+	private final int mEtagIndex;
+	private final int mHashAlgorithmIndex;
+	private final int mExpectedHashIndex;
+	private final int mHashIndex;
+	private final int mPriorityIndex;
+	private final int mQueuedTimeIndex;
+	private final int mNumFailedIndex;
+	private final int mRetryTimeIndex;
+
+	/**
+	 * 按游标的投影解析列的下标
+	 * @param cursor
+	 */
+	public TaskInfoRowMapper(Cursor cursor) {
+		mIdIndex = cursor.getColumnIndex(Downloads._ID);
+		mFileNameIndex = cursor.getColumnIndex(Downloads.COLUMN_FILE_NAME);
+		mStatusIndex = cursor.getColumnIndex(Downloads.COLUMN_STATUS);
+		mUriIndex = cursor.getColumnIndex(Downloads.COLUMN_URI);
+		mTotalBytesIndex = cursor.getColumnIndex(Downloads.COLUMN_TOTAL_BYTES);
+		mCurrentBytesIndex = cursor.getColumnIndex(Downloads.COLUMN_CURRENT_BYTES);
+		mFilePathIndex = cursor.getColumnIndex(Downloads.COLUMN_FILE_PATH);
+		mEtagIndex = cursor.getColumnIndex(Downloads.COLUMN_ETAG);
+		mHashAlgorithmIndex = cursor.getColumnIndex(Downloads.COLUMN_HASH_ALGORITHM);
+		mExpectedHashIndex = cursor.getColumnIndex(Downloads.COLUMN_EXPECTED_HASH);
+		mHashIndex = cursor.getColumnIndex(Downloads.COLUMN_HASH);
+		mPriorityIndex = cursor.getColumnIndex(Downloads.COLUMN_PRIORITY);
+		mQueuedTimeIndex = cursor.getColumnIndex(Downloads.COLUMN_QUEUED_TIME);
+		mNumFailedIndex = cursor.getColumnIndex(Downloads.COLUMN_FAILED_CONNECTIONS);
+		mRetryTimeIndex = cursor.getColumnIndex(Downloads.COLUMN_RETRY_TIME);
+	}
+
+	/**
+	 * 把游标当前行转成TaskInfo
+	 * @param cursor 和构造时是同一个投影
+	 * @return
+	 */
+	public TaskInfo map(Cursor cursor) {
+		TaskInfo taskInfo = new TaskInfo();
+		if (mIdIndex >= 0) {
+			taskInfo.setId(cursor.getLong(mIdIndex));
+		}
+		if (mFileNameIndex >= 0) {
+			taskInfo.setFileName(cursor.getString(mFileNameIndex));
+		}
+		if (mStatusIndex >= 0) {
+			taskInfo.setTaskStatus(cursor.getInt(mStatusIndex));
+		}
+		if (mUriIndex >= 0) {
+			taskInfo.setTaskUri(cursor.getString(mUriIndex));
+		}
+		if (mTotalBytesIndex >= 0) {
+			taskInfo.setTotalBytes(cursor.getLong(mTotalBytesIndex));
+		}
+		if (mCurrentBytesIndex >= 0) {
+			taskInfo.setCurrentBytes(cursor.getLong(mCurrentBytesIndex));
+		}
+		if (mFilePathIndex >= 0) {
+			taskInfo.setSavePath(cursor.getString(mFilePathIndex));
+		}
+		if (mEtagIndex >= 0) {
+			taskInfo.setEtag(cursor.getString(mEtagIndex));
+		}
+		if (mHashAlgorithmIndex >= 0) {
+			taskInfo.setHashAlgorithm(cursor.getString(mHashAlgorithmIndex));
+		}
+		if (mExpectedHashIndex >= 0) {
+			taskInfo.setExpectedHash(cursor.getString(mExpectedHashIndex));
+		}
+		if (mHashIndex >= 0) {
+			taskInfo.setHash(cursor.getString(mHashIndex));
+		}
+		if (mPriorityIndex >= 0) {
+			taskInfo.setPriority(cursor.getInt(mPriorityIndex));
+		}
+		if (mQueuedTimeIndex >= 0) {
+			taskInfo.setQueuedTime(cursor.getLong(mQueuedTimeIndex));
+		}
+		if (mNumFailedIndex >= 0) {
+			taskInfo.setNumFailed(cursor.getInt(mNumFailedIndex));
+		}
+		if (mRetryTimeIndex >= 0) {
+			taskInfo.setRetryTime(cursor.getLong(mRetryTimeIndex));
+		}
+		return taskInfo;
+	}
+
+	/**
+	 * 把游标剩下的行逐行交给sink，不管成功还是异常都关闭游标
+	 * @param cursor 可以为null
+	 * @param sink
+	 * @return 交给sink的行数
+	 */
+	public static int drain(Cursor cursor, TaskInfoSink sink) {
+		if (null == cursor) {
+			return 0;
+		}
+		int count = 0;
+		try {
+			TaskInfoRowMapper mapper = new TaskInfoRowMapper(cursor);
+			while (cursor.moveToNext()) {
+				count++;
+				if (!sink.onRow(mapper.map(cursor))) {
+					break;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return count;
+	}
+}
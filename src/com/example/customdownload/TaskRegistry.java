@@ -0,0 +1,291 @@
+package com.example.customdownload;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 服务里所有任务的登记表，binder线程、主线程、下载线程和定时线程都会访问，不加锁。
+ * 每个任务的状态是一个用CAS修改的状态机，状态就是Downloads.STATUS_*：
+ * 空闲(没开始过、暂停、停止、成功、失败、取消、等网络)、STATUS_PENDING、STATUS_WAITING_TO_RETRY、STATUS_RUNNING、
+ * STATUS_PAUSE_PENDING、STATUS_CANCEL_PENDING、STATUS_DELETE_PENDING，不合法的转换被拒绝。
+ * 控制状态(Downloads.CONTROL_*)由状态决定，转换成功并且报告了新状态后用{@link Task#applyControl}写到下载线程读的volatile字段里，
+ * 这样下载线程报告的结束状态总是在新状态后面。
+ * 同时统计从要求暂停、取消、删除到下载线程真正结束的时间。
+ */
+public class TaskRegistry {
+	private static final String TAG = TaskRegistry.class.getSimpleName();
+
+	/** {@link Task#takeRestart}的返回值，没有要求重新开始 */
+	public static final int NO_RESTART = -1;
+
+	/**
+	 * 一个任务，和它最近一次下载的线程信息
+	 */
+	public static class Task {
+		public final long mTaskId;
+		private final AtomicInteger mState = new AtomicInteger(Downloads.STATUS_STOP);
+
+		// set by the thread that moves the task to STATUS_RUNNING, before anyone can ask it to pause
+		public volatile DownloadRunnable mDownloadRunnable;	//线程方式下载时使用
+		public volatile NioDownloadTask mNioTask;	//NIO引擎下载时使用
+		public volatile DownloadInfo mDownloadInfo;
+		public volatile Future<?> mFuture;
+		private volatile long mStopRequestTime = 0;	//第一次要求停下来的时间，elapsedRealtime，0表示没有要求
+		private final AtomicInteger mRestartPriority = new AtomicInteger(NO_RESTART);	//暂停还没生效时又要求开始，结束后按这个优先级重新排队
+
+		Task(long taskId) {
+			mTaskId = taskId;
+		}
+
+		/**
+		 * 获取当前状态
+		 * @return Downloads.STATUS_*
+		 */
+		public int getState() {
+			return mState.get();
+		}
+
+		/**
+		 * 从指定状态转换到新状态
+		 * @param expect
+		 * @param update
+		 * @return 当前不是expect或者转换不合法时返回false
+		 */
+		public boolean compareAndSet(int expect, int update) {
+			return isLegalTransition(expect, update) && mState.compareAndSet(expect, update);
+		}
+
+		/**
+		 * 从当前状态转换到新状态
+		 * @param update
+		 * @return 转换前的状态，转换不合法时返回-1
+		 */
+		public int transition(int update) {
+			while (true) {
+				int state = mState.get();
+				if (!isLegalTransition(state, update)) {
+					Log.w(TAG, "transition: taskId = " + mTaskId + ", " + state + " -> " + update + " rejected");
+					return -1;
+				}
+				if (mState.compareAndSet(state, update)) {
+					return state;
+				}
+			}
+		}
+
+		/**
+		 * 暂停还没生效时要求重新开始。暂停已经中断了正在进行的请求，不能接着用原来的下载，
+		 * 要等它结束后再排队
+		 * @param priority Downloads.PRIORITY_*
+		 */
+		public void requestRestart(int priority) {
+			mRestartPriority.set(priority);
+		}
+
+		/**
+		 * 取走重新开始的要求，只有一个调用方能取到
+		 * @return 优先级，没有要求时返回NO_RESTART
+		 */
+		public int takeRestart() {
+			return mRestartPriority.getAndSet(NO_RESTART);
+		}
+
+		/**
+		 * 把当前状态对应的控制状态交给正在下载的线程，还没开始的下载开始后会看到
+		 */
+		public void applyControl() {
+			int control;
+			switch (mState.get()) {
+			case Downloads.STATUS_RUNNING:
+				control = Downloads.CONTROL_RUN;
+				break;
+			case Downloads.STATUS_PAUSE_PENDING:
+				control = Downloads.CONTROL_PAUSED;
+				break;
+			case Downloads.STATUS_CANCEL_PENDING:
+			case Downloads.STATUS_DELETE_PENDING:
+				control = Downloads.CONTROL_CANCEL;
+				break;
+			default:
+				return;
+			}
+			if (control == Downloads.CONTROL_RUN) {
+				mStopRequestTime = 0;
+			} else if (0 == mStopRequestTime) {
+				mStopRequestTime = SystemClock.elapsedRealtime();
+			}
+			NioDownloadTask nioTask = mNioTask;
+			DownloadRunnable downloadRunnable = mDownloadRunnable;
+			DownloadInfo downloadInfo = mDownloadInfo;
+			if (null != nioTask) {
+				// wakes the event loop so that a stalled connection stops right away
+				nioTask.setControl(control);
+			} else if (null != downloadRunnable) {
+				downloadRunnable.setControl(control);
+			} else if (null != downloadInfo) {
+				downloadInfo.mControl = control;
+			}
+		}
+	}
+
+	private final ConcurrentMap<Long, Task> mTasks = new ConcurrentHashMap<Long, Task>();
+	private final AtomicLong mStopCount = new AtomicLong();
+	private final AtomicLong mStopLatencyTotal = new AtomicLong();
+	private final AtomicLong mStopLatencyMax = new AtomicLong();
+
+	/**
+	 * 判断状态是不是空闲：没有在排队、等待重试或者下载
+	 * @param state
+	 * @return
+	 */
+	public static boolean isIdle(int state) {
+		switch (state) {
+		case Downloads.STATUS_PENDING:
+		case Downloads.STATUS_WAITING_TO_RETRY:
+		case Downloads.STATUS_RUNNING:
+		case Downloads.STATUS_PAUSE_PENDING:
+		case Downloads.STATUS_CANCEL_PENDING:
+		case Downloads.STATUS_DELETE_PENDING:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * 判断状态转换是否合法
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public static boolean isLegalTransition(int from, int to) {
+		if (to == Downloads.STATUS_DELETE_PENDING) {
+			// anything can be deleted, once
+			return from != Downloads.STATUS_DELETE_PENDING;
+		}
+		switch (from) {
+		case Downloads.STATUS_PENDING:
+			// promoted, or paused/canceled while still in the queue
+			return to == Downloads.STATUS_RUNNING || isIdle(to);
+		case Downloads.STATUS_WAITING_TO_RETRY:
+			return to == Downloads.STATUS_PENDING || isIdle(to);
+		case Downloads.STATUS_RUNNING:
+			return to == Downloads.STATUS_PAUSE_PENDING || to == Downloads.STATUS_CANCEL_PENDING
+					|| to == Downloads.STATUS_WAITING_TO_RETRY || isIdle(to);
+		case Downloads.STATUS_PAUSE_PENDING:
+			// the requests are already aborted, a start waits for the end of the run; a pause wins over a retry
+			return to == Downloads.STATUS_CANCEL_PENDING || isIdle(to);
+		case Downloads.STATUS_CANCEL_PENDING:
+			return isIdle(to);
+		case Downloads.STATUS_DELETE_PENDING:
+			return false;
+		default:
+			// idle
+			return to == Downloads.STATUS_PENDING || to == Downloads.STATUS_WAITING_TO_RETRY;
+		}
+	}
+
+	/**
+	 * 获取任务，没有登记时登记一个空闲的
+	 * @param taskId
+	 * @return
+	 */
+	public Task obtain(long taskId) {
+		Task task = mTasks.get(taskId);
+		if (null == task) {
+			Task newTask = new Task(taskId);
+			task = mTasks.putIfAbsent(taskId, newTask);
+			if (null == task) {
+				task = newTask;
+			}
+		}
+		return task;
+	}
+
+	/**
+	 * 获取任务
+	 * @param taskId
+	 * @return 没有登记时返回null
+	 */
+	public Task get(long taskId) {
+		return mTasks.get(taskId);
+	}
+
+	/**
+	 * 删除任务的登记，只删除task本身，不会删掉之后重新登记的
+	 * @param task
+	 * @return
+	 */
+	public boolean remove(Task task) {
+		return mTasks.remove(task.mTaskId, task);
+	}
+
+	/**
+	 * 任务的下载线程真正结束时调用(线程方式在run()的finally里，NIO在finish()里)，之前要求过停下来的记下用了多长时间
+	 * @param task
+	 * @return 从要求停下来到结束的时间，ms，没有要求过时返回-1
+	 */
+	public long onRunFinished(Task task) {
+		long requestTime = task.mStopRequestTime;
+		if (0 == requestTime) {
+			return -1;
+		}
+		task.mStopRequestTime = 0;
+		long latency = SystemClock.elapsedRealtime() - requestTime;
+		mStopCount.incrementAndGet();
+		mStopLatencyTotal.addAndGet(latency);
+		long max;
+		while ((max = mStopLatencyMax.get()) < latency && !mStopLatencyMax.compareAndSet(max, latency)) {
+			// raced with another task finishing, look again
+		}
+		Log.d(TAG, "onRunFinished: taskId = " + task.mTaskId + ", stopLatency = " + latency);
+		return latency;
+	}
+
+	/**
+	 * 任务在下载线程开始前就被取消了，不统计这次停下来的时间
+	 * @param task
+	 */
+	public void discardStopRequest(Task task) {
+		task.mStopRequestTime = 0;
+	}
+
+	/**
+	 * 获取统计到的暂停、取消、删除的次数
+	 * @return
+	 */
+	public long getStopCount() {
+		return mStopCount.get();
+	}
+
+	/**
+	 * 获取从要求停下来到下载线程结束的平均时间
+	 * @return ms
+	 */
+	public long getAverageStopLatency() {
+		long count = mStopCount.get();
+		return 0 == count ? 0 : mStopLatencyTotal.get() / count;
+	}
+
+	/**
+	 * 获取从要求停下来到下载线程结束的最长时间
+	 * @return ms
+	 */
+	public long getMaxStopLatency() {
+		return mStopLatencyMax.get();
+	}
+
+	/**
+	 * 获取登记的任务数
+	 * @return
+	 */
+	public int size() {
+		return mTasks.size();
+	}
+}
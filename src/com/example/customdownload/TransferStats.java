@@ -0,0 +1,36 @@
+package com.example.customdownload;
+
+/**
+ * 一个下载任务的传输统计的快照，取的时候复制出来，之后不会再变。
+ * 调用方只能看，不能通过它改到正在进行的下载。
+ */
+public final class TransferStats {
+	public final long mTaskId;
+	public final int mBufferSize;	//当前读网络的大小
+	public final int mMaxBufferSize;	//读网络大小的上限
+	public final long mReadCount;	//读网络的次数
+	public final long mWriteCount;	//写盘的次数
+	public final long mReaderWaits;	//读网络的线程因为写盘跟不上而等待的次数
+	public final long mWriterWaits;	//写盘线程因为没有数据而等待的次数
+	public final int mTransferPath;	//最近一次传输数据的方式，见DownloadInfo.TRANSFER_*
+	public final boolean mActive;	//取快照时是否有线程正在下载
+
+	TransferStats(DownloadInfo downloadInfo) {
+		mTaskId = downloadInfo.mId;
+		mBufferSize = downloadInfo.mBufferSize;
+		mMaxBufferSize = downloadInfo.mMaxBufferSize;
+		mReadCount = downloadInfo.mReadCount.get();
+		mWriteCount = downloadInfo.mWriteCount.get();
+		mReaderWaits = downloadInfo.mReaderWaits;
+		mWriterWaits = downloadInfo.mWriterWaits;
+		mTransferPath = downloadInfo.mTransferPath;
+		mActive = downloadInfo.mHasActiveThread;
+	}
+
+	@Override
+	public String toString() {
+		return "TransferStats: taskId = " + mTaskId + ", bufferSize = " + mBufferSize + "/" + mMaxBufferSize
+				+ ", reads = " + mReadCount + ", writes = " + mWriteCount + ", readerWaits = " + mReaderWaits
+				+ ", writerWaits = " + mWriterWaits + ", transferPath = " + mTransferPath;
+	}
+}
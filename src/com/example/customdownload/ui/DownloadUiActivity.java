@@ -2,11 +2,15 @@ package com.example.customdownload.ui;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import com.example.customdownload.CustomDownloadManager;
+import com.example.customdownload.DownloadChange;
 import com.example.customdownload.DownloadDatabaseHelper;
+import com.example.customdownload.DownloadEventBus;
 import com.example.customdownload.DownloadObserver;
 import com.example.customdownload.Downloads;
+import com.example.customdownload.ProgressGranularity;
 import com.example.customdownload.TaskInfo;
 import com.example.customdownload.util.CommonTool;
 import com.example.customdownloadmanager.R;
@@ -34,11 +38,16 @@ public class DownloadUiActivity extends Activity {
 	private static final String mFileName = "Thunder_dl_7.9.36.4940.exe";
 	
 	private Button mNewBtn;
+	private DownloadUiListViewAdapter mListViewAdapter;
 	
 	//ListView适配器
 	public class DownloadUiListViewAdapter extends BaseAdapter {
 		
 		private ArrayList<TaskInfo> mTaskInfoList;
+		private HashMap<Long, Integer> mPositions = new HashMap<Long, Integer>();	//任务ID -> 在列表里的位置
+		private HashMap<Long, long[]> mSequences = new HashMap<Long, long[]>();	//任务ID -> 每种字段已经应用的最新变化的序列号
+		private ListView mListView;
+		private DownloadObserver mDownloadObserver;
 		
 		/**
 		 * 存储ListViewItem
@@ -51,28 +60,75 @@ public class DownloadUiActivity extends Activity {
 			TextView statusView;
 		}
 		
-		public DownloadUiListViewAdapter() {
+		public DownloadUiListViewAdapter(ListView listView) {
+			mListView = listView;
 			mTaskInfoList = DownloadDatabaseHelper.getInstance().getTaskInfoList();
 			if (null == mTaskInfoList) {
 				mTaskInfoList = new ArrayList<TaskInfo>();
 			}
+			for (int i = 0; i < mTaskInfoList.size(); i++) {
+				mPositions.put(mTaskInfoList.get(i).getId(), i);
+			}
 			
-			CustomDownloadManager.getInstance().addDownloadObserver(new DownloadObserver() {
-				public void onProgressChanged(long currentBytes, long totalBytes) {
-					mTaskInfoList = DownloadDatabaseHelper.getInstance().getTaskInfoList();
-					if (null == mTaskInfoList) {
-						mTaskInfoList = new ArrayList<TaskInfo>();
-					}
-					notifyDataSetChanged();
+			// a visible progress bar wants smooth updates
+			mDownloadObserver = new DownloadObserver() {
+				public void onTaskChanged(DownloadChange change) {
+					applyChange(change);
 				}
-				public void onStatusChanged(int taskStatus) {
-					mTaskInfoList = DownloadDatabaseHelper.getInstance().getTaskInfoList();
-					if (null == mTaskInfoList) {
-						mTaskInfoList = new ArrayList<TaskInfo>();
-					}
+			};
+			CustomDownloadManager.getInstance().addDownloadObserver(mDownloadObserver, DownloadEventBus.MAIN_THREAD, ProgressGranularity.time(100));
+		}
+		
+		/**
+		 * 取消订阅，Activity销毁时调用，否则订阅者一直拿着旧的列表
+		 */
+		public void release() {
+			CustomDownloadManager.getInstance().removeDownloadObserver(mDownloadObserver);
+		}
+		
+		/**
+		 * 把一个任务的变化应用到列表，只刷新这一行
+		 * @param change
+		 */
+		private void applyChange(DownloadChange change) {
+			Integer position = mPositions.get(change.mTaskId);
+			if (null == position) {
+				// a task created after the list was loaded
+				TaskInfo taskInfo = DownloadDatabaseHelper.getInstance().getTaskInfoById(change.mTaskId);
+				if (null != taskInfo) {
+					mPositions.put(taskInfo.getId(), mTaskInfoList.size());
+					mTaskInfoList.add(taskInfo);
 					notifyDataSetChanged();
 				}
-			});
+				return;
+			}
+			
+			// only the same field of a task is ordered, status and progress come from different threads
+			long[] sequences = mSequences.get(change.mTaskId);
+			if (null == sequences) {
+				sequences = new long[DownloadChange.FIELD_COUNT];
+				mSequences.put(change.mTaskId, sequences);
+			}
+			int fields = 0;
+			for (int i = 0; i < DownloadChange.FIELD_COUNT; i++) {
+				if (change.has(1 << i) && change.mSequence > sequences[i]) {
+					sequences[i] = change.mSequence;
+					fields |= 1 << i;
+				}
+			}
+			if (0 == fields) {
+				Log.d(TAG, "applyChange: stale " + change);
+				return;
+			}
+			
+			change.applyTo(mTaskInfoList.get(position), fields);
+			int firstPosition = mListView.getFirstVisiblePosition();
+			if (position >= firstPosition && position <= mListView.getLastVisiblePosition()) {
+				View itemView = mListView.getChildAt(position - firstPosition);
+				if (null != itemView) {
+					getView(position, itemView, mListView);
+				}
+			}
 		}
 
 		@Override
@@ -122,6 +178,9 @@ public class DownloadUiActivity extends Activity {
 		private String convertStatusToText(int taskStatus) {
 			String statusText = String.valueOf(taskStatus);
 			switch (taskStatus) {
+			case Downloads.STATUS_PENDING:
+				statusText = "STATUS_QUEUED";
+				break;
 			case Downloads.STATUS_PAUSE_PENDING:
 				statusText = "STATUS_PENDING";
 				break;
@@ -210,8 +269,8 @@ public class DownloadUiActivity extends Activity {
 		
 		//初始化列表
 		ListView listView = (ListView)findViewById(R.id.downloadui_listview);
-		DownloadUiListViewAdapter downloadUiListViewAdapter = new DownloadUiListViewAdapter();
-		listView.setAdapter(downloadUiListViewAdapter);
+		mListViewAdapter = new DownloadUiListViewAdapter(listView);
+		listView.setAdapter(mListViewAdapter);
 		listView.setOnItemClickListener(new OnItemClickListener() {
 			@Override
 			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -225,4 +284,11 @@ public class DownloadUiActivity extends Activity {
 			}			
 		});
 	}
+	
+	@Override
+	protected void onDestroy() {
+		Log.d(TAG, "onDestroy: Enter");
+		mListViewAdapter.release();
+		super.onDestroy();
+	}
 }
@@ -0,0 +1,174 @@
+package com.example.customdownload;
+
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * HttpResponseParser的测试，数据按NioDownloadTask读网络的方式分批喂进去
+ */
+public class HttpResponseParserTest extends TestCase {
+	private HttpResponseParser mParser;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mParser = new HttpResponseParser();
+	}
+
+	public void testHeadersInOneRead() throws Exception {
+		ByteBuffer buffer = wrap("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nETag: \"abc\"\r\n\r\nhello");
+		assertTrue(mParser.readHeaders(buffer));
+		assertEquals(200, mParser.getStatusCode());
+		assertEquals("5", mParser.getHeader("content-length"));
+		assertEquals("\"abc\"", mParser.getHeader("etag"));
+		// the body is left in the buffer for the caller
+		assertEquals("hello", remaining(buffer));
+	}
+
+	public void testHeadersByteByByte() throws Exception {
+		byte[] response = "HTTP/1.1 206 Partial Content\r\nContent-Range: bytes 0-9/10\r\n\r\n".getBytes("ISO-8859-1");
+		for (int i = 0; i < response.length - 1; i++) {
+			assertFalse(mParser.readHeaders(ByteBuffer.wrap(response, i, 1)));
+		}
+		assertTrue(mParser.readHeaders(ByteBuffer.wrap(response, response.length - 1, 1)));
+		assertEquals(206, mParser.getStatusCode());
+		assertEquals("bytes 0-9/10", mParser.getHeader("content-range"));
+	}
+
+	public void testHeaderNamesAreLowerCaseAndFirstValueWins() throws Exception {
+		ByteBuffer buffer = wrap("HTTP/1.1 200 OK\r\nX-Value: first\r\nx-value: second\r\nno colon\r\n\r\n");
+		assertTrue(mParser.readHeaders(buffer));
+		assertEquals("first", mParser.getHeader("x-value"));
+		assertNull(mParser.getHeader("no colon"));
+	}
+
+	public void testInterimResponseIsSkipped() throws Exception {
+		ByteBuffer buffer = wrap("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+		assertTrue(mParser.readHeaders(buffer));
+		assertEquals(200, mParser.getStatusCode());
+		assertEquals("0", mParser.getHeader("content-length"));
+		assertFalse(buffer.hasRemaining());
+	}
+
+	public void testBadStatusLine() throws Exception {
+		try {
+			mParser.readHeaders(wrap("ICY 200 OK\r\n\r\n"));
+			fail();
+		} catch (ProtocolException ex) {
+			// expected
+		}
+	}
+
+	public void testHeadersTooLong() throws Exception {
+		StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n");
+		while (response.length() <= HttpResponseParser.MAX_HEADER_SIZE) {
+			response.append("X-Padding: 0123456789abcdef\r\n");
+		}
+		try {
+			mParser.readHeaders(wrap(response.toString()));
+			fail();
+		} catch (ProtocolException ex) {
+			// expected
+		}
+	}
+
+	public void testChunkedBodyInSameReadAsHeaders() throws Exception {
+		// the whole response arrives in one read, the body must end without running past the buffer
+		ByteBuffer buffer = wrap("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6;name=value\r\n world\r\n0\r\n\r\n");
+		assertTrue(mParser.readHeaders(buffer));
+		assertEquals("chunked", mParser.getHeader("transfer-encoding"));
+		StringBuilder body = new StringBuilder();
+		assertTrue(readBody(buffer, body));
+		assertEquals("hello world", body.toString());
+		assertFalse(buffer.hasRemaining());
+		// once the body is complete nothing more is consumed
+		ByteBuffer extra = wrap("junk");
+		assertEquals(HttpResponseParser.BODY_COMPLETE, mParser.readChunked(extra));
+		assertEquals(4, extra.remaining());
+	}
+
+	public void testChunkedBodyByteByByte() throws Exception {
+		byte[] chunked = "a\r\n0123456789\r\n3\r\nabc\r\n0\r\nX-Trailer: 1\r\n\r\n".getBytes("ISO-8859-1");
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < chunked.length - 1; i++) {
+			assertFalse(readBody(ByteBuffer.wrap(chunked, i, 1), body));
+		}
+		assertTrue(readBody(ByteBuffer.wrap(chunked, chunked.length - 1, 1), body));
+		assertEquals("0123456789abc", body.toString());
+	}
+
+	public void testChunkDataSplitAcrossReads() throws Exception {
+		StringBuilder body = new StringBuilder();
+		assertFalse(readBody(wrap("8\r\nabcd"), body));
+		assertFalse(readBody(wrap("efgh\r"), body));
+		assertTrue(readBody(wrap("\n0\r\n\r\n"), body));
+		assertEquals("abcdefgh", body.toString());
+	}
+
+	public void testBadChunkSize() throws Exception {
+		try {
+			mParser.readChunked(wrap("xyz\r\n"));
+			fail();
+		} catch (ProtocolException ex) {
+			// expected
+		}
+	}
+
+	public void testChunkLineTooLong() throws Exception {
+		StringBuilder line = new StringBuilder("1;");
+		while (line.length() <= HttpResponseParser.MAX_LINE_SIZE) {
+			line.append('x');
+		}
+		try {
+			mParser.readChunked(wrap(line.toString()));
+			fail();
+		} catch (ProtocolException ex) {
+			// expected
+		}
+	}
+
+	public void testResetForRedirect() throws Exception {
+		assertTrue(mParser.readHeaders(wrap("HTTP/1.1 302 Found\r\nLocation: /next\r\n\r\n")));
+		assertEquals("/next", mParser.getHeader("location"));
+		mParser.reset();
+		assertTrue(mParser.readHeaders(wrap("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n")));
+		assertEquals(200, mParser.getStatusCode());
+		assertNull(mParser.getHeader("location"));
+		StringBuilder body = new StringBuilder();
+		assertTrue(readBody(wrap("2\r\nok\r\n0\r\n\r\n"), body));
+		assertEquals("ok", body.toString());
+	}
+
+	/**
+	 * 和NioDownloadTask.readBody一样处理一次读到的数据，取走的chunk数据追加到body
+	 * @return 响应体结束时返回true
+	 */
+	private boolean readBody(ByteBuffer buffer, StringBuilder body) throws ProtocolException {
+		while (buffer.hasRemaining()) {
+			int length = mParser.readChunked(buffer);
+			if (length == HttpResponseParser.BODY_COMPLETE) {
+				return true;
+			}
+			if (length == 0) {
+				break;
+			}
+			for (int i = 0; i < length; i++) {
+				body.append((char) (buffer.get() & 0xff));
+			}
+		}
+		return false;
+	}
+
+	private static ByteBuffer wrap(String data) throws UnsupportedEncodingException {
+		return ByteBuffer.wrap(data.getBytes("ISO-8859-1"));
+	}
+
+	private static String remaining(ByteBuffer buffer) throws UnsupportedEncodingException {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes, "ISO-8859-1");
+	}
+}
@@ -0,0 +1,154 @@
+package com.example.customdownload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * RetryScheduler时间轮的测试，不起定时线程，手动传入时间走格子
+ */
+public class RetrySchedulerTest extends TestCase {
+	private static final long TICK = RetryScheduler.TICK_TIME;
+	private static final long START_TIME = 5000;
+
+	private final List<Long> mRetried = new ArrayList<Long>();
+	private RetryScheduler mScheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mScheduler = new RetryScheduler(new RetryScheduler.Listener() {
+			@Override
+			public void onRetry(long taskId) {
+				mRetried.add(taskId);
+			}
+		}, START_TIME);
+	}
+
+	public void testFiresOnTime() {
+		mScheduler.schedule(1, 3 * TICK, at(0));
+		mScheduler.tick(at(1));
+		mScheduler.tick(at(2));
+		assertTrue(mRetried.isEmpty());
+		assertTrue(mScheduler.isScheduled(1));
+		mScheduler.tick(at(3));
+		assertRetried(1);
+		assertFalse(mScheduler.isScheduled(1));
+		assertEquals(0, mScheduler.getPendingCount());
+	}
+
+	public void testDelayRoundsUpToWholeTick() {
+		mScheduler.schedule(1, 1, at(0));
+		mScheduler.schedule(2, TICK + 1, at(0));
+		mScheduler.tick(at(1));
+		assertRetried(1);
+		mScheduler.tick(at(2));
+		assertRetried(1, 2);
+	}
+
+	public void testCatchesUpAfterBeingHeldUp() {
+		mScheduler.schedule(1, 3 * TICK, at(0));
+		mScheduler.schedule(2, 5 * TICK, at(0));
+		mScheduler.schedule(3, 10 * TICK, at(0));
+
+		// the thread only gets to run six ticks late, every slot passed is checked
+		mScheduler.tick(at(6));
+		assertRetried(1, 2);
+		assertTrue(mScheduler.isScheduled(3));
+
+		mScheduler.tick(at(9));
+		assertRetried(1, 2);
+		mScheduler.tick(at(10));
+		assertRetried(1, 2, 3);
+	}
+
+	public void testEntryMoreThanOneLapAway() {
+		long ticks = RetryScheduler.WHEEL_SIZE + 2;
+		mScheduler.schedule(1, ticks * TICK, at(0));
+
+		// its slot comes up at tick 2, a lap early, and the entry must stay there
+		for (long i = 1; i < ticks; i++) {
+			mScheduler.tick(at(i));
+		}
+		assertTrue(mRetried.isEmpty());
+		assertTrue(mScheduler.isScheduled(1));
+		mScheduler.tick(at(ticks));
+		assertRetried(1);
+	}
+
+	public void testCatchUpLongerThanOneLap() {
+		mScheduler.schedule(1, 3 * TICK, at(0));
+		mScheduler.schedule(2, (RetryScheduler.WHEEL_SIZE + 10) * TICK, at(0));
+		mScheduler.schedule(3, 3 * RetryScheduler.WHEEL_SIZE * TICK, at(0));
+
+		// held up for two laps, each slot is checked once against the new time
+		mScheduler.tick(at(2 * RetryScheduler.WHEEL_SIZE));
+		assertRetried(1, 2);
+		assertTrue(mScheduler.isScheduled(3));
+		mScheduler.tick(at(3 * RetryScheduler.WHEEL_SIZE));
+		assertRetried(1, 2, 3);
+	}
+
+	public void testRescheduleReplacesPendingEntry() {
+		mScheduler.schedule(1, 3 * TICK, at(0));
+		mScheduler.tick(at(1));
+		mScheduler.schedule(1, 6 * TICK, at(1));
+		assertEquals(1, mScheduler.getPendingCount());
+
+		mScheduler.tick(at(2));
+		mScheduler.tick(at(3));
+		mScheduler.tick(at(4));
+		assertTrue(mRetried.isEmpty());
+		mScheduler.tick(at(6));
+		assertTrue(mRetried.isEmpty());
+		mScheduler.tick(at(7));
+		assertRetried(1);
+
+		// moved earlier as well
+		mScheduler.schedule(2, 20 * TICK, at(7));
+		mScheduler.schedule(2, 1 * TICK, at(7));
+		mScheduler.tick(at(8));
+		assertRetried(1, 2);
+		assertEquals(0, mScheduler.getPendingCount());
+	}
+
+	public void testCancel() {
+		mScheduler.schedule(1, 2 * TICK, at(0));
+		mScheduler.schedule(2, 2 * TICK, at(0));
+		assertTrue(mScheduler.cancel(1));
+		assertFalse(mScheduler.cancel(1));
+		mScheduler.tick(at(1));
+		mScheduler.tick(at(2));
+		assertRetried(2);
+	}
+
+	public void testRestartAfterIdle() {
+		mScheduler.schedule(1, TICK, at(0));
+		mScheduler.tick(at(1));
+		assertRetried(1);
+
+		// the wheel stopped with nothing left, a tick now does nothing
+		mScheduler.tick(at(2));
+		assertRetried(1);
+
+		// a long time later, the delay counts from now rather than from where the wheel stopped
+		mScheduler.schedule(2, 2 * TICK, at(100));
+		mScheduler.tick(at(101));
+		assertRetried(1);
+		assertTrue(mScheduler.isScheduled(2));
+		mScheduler.tick(at(102));
+		assertRetried(1, 2);
+	}
+
+	private static long at(long tick) {
+		return START_TIME + tick * TICK;
+	}
+
+	private void assertRetried(long... taskIds) {
+		assertEquals(taskIds.length, mRetried.size());
+		for (int i = 0; i < taskIds.length; i++) {
+			assertEquals(taskIds[i], mRetried.get(i).longValue());
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.example.customdownload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * SegmentScheduler分配和切分分段的测试
+ */
+public class SegmentSchedulerTest extends TestCase {
+	private static final long TOTAL_BYTES = 16 * Constants.MIN_SPLIT_SIZE;
+
+	public void testSplitCoversWholeFile() {
+		List<DownloadSegment> segments = DownloadSegment.split(TOTAL_BYTES + 3, 4);
+		assertEquals(4, segments.size());
+		long nextByte = 0;
+		for (DownloadSegment segment : segments) {
+			assertEquals(nextByte, segment.mStartByte);
+			nextByte = segment.mEndByte + 1;
+		}
+		assertEquals(TOTAL_BYTES + 3, nextByte);
+	}
+
+	public void testUnassignedSegmentsFirst() {
+		List<DownloadSegment> segments = DownloadSegment.split(TOTAL_BYTES, 4);
+		segments.get(1).mCurrentBytes = segments.get(1).getLength();
+		SegmentScheduler scheduler = new SegmentScheduler(segments);
+
+		assertSame(segments.get(0), scheduler.nextSegment());
+		assertSame(segments.get(2), scheduler.nextSegment());
+		assertSame(segments.get(3), scheduler.nextSegment());
+		assertEquals(0, scheduler.getStealCount());
+	}
+
+	public void testReleasedSegmentIsHandedOutAgain() {
+		List<DownloadSegment> segments = DownloadSegment.split(TOTAL_BYTES, 2);
+		SegmentScheduler scheduler = new SegmentScheduler(segments);
+		DownloadSegment first = scheduler.nextSegment();
+		assertSame(segments.get(1), scheduler.nextSegment());
+
+		// the thread failed, another one picks the range up where it stopped
+		first.addBytes(100);
+		scheduler.release(first);
+		assertSame(first, scheduler.nextSegment());
+		assertEquals(100, first.mCurrentBytes);
+	}
+
+	public void testSplitsLargestActiveSegment() {
+		List<DownloadSegment> segments = DownloadSegment.split(TOTAL_BYTES, 2);
+		SegmentScheduler scheduler = new SegmentScheduler(segments);
+		DownloadSegment first = scheduler.nextSegment();
+		DownloadSegment second = scheduler.nextSegment();
+		first.addBytes(first.getLength() / 2);
+		long secondEnd = second.mEndByte;
+
+		DownloadSegment stolen = scheduler.nextSegment();
+		assertNotNull(stolen);
+		assertEquals(1, scheduler.getStealCount());
+		assertEquals(2, stolen.mIndex);
+		// the second half of the second segment, which had the most left
+		assertEquals(secondEnd, stolen.mEndByte);
+		assertEquals(second.mEndByte + 1, stolen.mStartByte);
+		assertEquals(second.getRemainingBytes(), stolen.getRemainingBytes());
+		assertEquals(3, scheduler.getSegments().size());
+	}
+
+	public void testSplitPreservesCompletedBytes() {
+		List<DownloadSegment> segments = DownloadSegment.split(TOTAL_BYTES, 1);
+		SegmentScheduler scheduler = new SegmentScheduler(segments);
+		DownloadSegment segment = scheduler.nextSegment();
+		segment.addBytes(Constants.MIN_SPLIT_SIZE);
+
+		DownloadSegment stolen = scheduler.nextSegment();
+		assertNotNull(stolen);
+		// the split point is in the middle of what is left, not of the whole range
+		assertEquals(segment.getRemainingBytes(), stolen.getRemainingBytes());
+		assertEquals(segment.getCurrentOffset() + segment.getRemainingBytes(), stolen.mStartByte);
+		assertEquals(Constants.MIN_SPLIT_SIZE, scheduler.getBytesSoFar());
+	}
+
+	public void testNoSplitBelowMinimum() {
+		List<DownloadSegment> segments = new ArrayList<DownloadSegment>();
+		segments.add(new DownloadSegment(0, 0, 2 * Constants.MIN_SPLIT_SIZE - 2, 0));
+		SegmentScheduler scheduler = new SegmentScheduler(segments);
+		assertNotNull(scheduler.nextSegment());
+		assertNull(scheduler.nextSegment());
+		assertEquals(0, scheduler.getStealCount());
+	}
+
+	public void testNothingLeft() {
+		List<DownloadSegment> segments = DownloadSegment.split(TOTAL_BYTES, 2);
+		SegmentScheduler scheduler = new SegmentScheduler(segments);
+		for (DownloadSegment segment : segments) {
+			assertSame(segment, scheduler.nextSegment());
+			segment.addBytes(segment.getLength() + 10);
+			assertTrue(segment.isComplete());
+			scheduler.release(segment);
+		}
+		assertNull(scheduler.nextSegment());
+		assertEquals(TOTAL_BYTES, scheduler.getBytesSoFar());
+	}
+}
@@ -0,0 +1,127 @@
+package com.example.customdownload;
+
+import junit.framework.TestCase;
+
+/**
+ * TaskRegistry状态机的测试
+ */
+public class TaskRegistryTest extends TestCase {
+	private static final int[] IDLE_STATES = {
+		Downloads.STATUS_STOP,
+		Downloads.STATUS_PAUSED,
+		Downloads.STATUS_SUCCESS,
+		Downloads.STATUS_CANCELED,
+		Downloads.STATUS_HTTP_DATA_ERROR,
+	};
+
+	private TaskRegistry mTaskRegistry;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mTaskRegistry = new TaskRegistry();
+	}
+
+	public void testIdleStates() {
+		for (int state : IDLE_STATES) {
+			assertTrue(String.valueOf(state), TaskRegistry.isIdle(state));
+		}
+		assertFalse(TaskRegistry.isIdle(Downloads.STATUS_PENDING));
+		assertFalse(TaskRegistry.isIdle(Downloads.STATUS_WAITING_TO_RETRY));
+		assertFalse(TaskRegistry.isIdle(Downloads.STATUS_RUNNING));
+		assertFalse(TaskRegistry.isIdle(Downloads.STATUS_PAUSE_PENDING));
+		assertFalse(TaskRegistry.isIdle(Downloads.STATUS_CANCEL_PENDING));
+		assertFalse(TaskRegistry.isIdle(Downloads.STATUS_DELETE_PENDING));
+	}
+
+	public void testIdleOnlyStartsOrRetries() {
+		for (int state : IDLE_STATES) {
+			assertTrue(TaskRegistry.isLegalTransition(state, Downloads.STATUS_PENDING));
+			assertTrue(TaskRegistry.isLegalTransition(state, Downloads.STATUS_WAITING_TO_RETRY));
+			assertFalse(TaskRegistry.isLegalTransition(state, Downloads.STATUS_RUNNING));
+			assertFalse(TaskRegistry.isLegalTransition(state, Downloads.STATUS_PAUSE_PENDING));
+			assertFalse(TaskRegistry.isLegalTransition(state, Downloads.STATUS_CANCEL_PENDING));
+			assertFalse(TaskRegistry.isLegalTransition(state, Downloads.STATUS_PAUSED));
+		}
+	}
+
+	public void testPendingTransitions() {
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_PENDING, Downloads.STATUS_RUNNING));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_PENDING, Downloads.STATUS_PAUSED));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_PENDING, Downloads.STATUS_CANCELED));
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_PENDING, Downloads.STATUS_PAUSE_PENDING));
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_WAITING_TO_RETRY, Downloads.STATUS_RUNNING));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_WAITING_TO_RETRY, Downloads.STATUS_PENDING));
+	}
+
+	public void testRunningTransitions() {
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_RUNNING, Downloads.STATUS_PAUSE_PENDING));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_RUNNING, Downloads.STATUS_CANCEL_PENDING));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_RUNNING, Downloads.STATUS_WAITING_TO_RETRY));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_RUNNING, Downloads.STATUS_SUCCESS));
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_RUNNING, Downloads.STATUS_PENDING));
+
+		// the pause aborted the requests, the run can't be taken back
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_PAUSE_PENDING, Downloads.STATUS_RUNNING));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_PAUSE_PENDING, Downloads.STATUS_CANCEL_PENDING));
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_PAUSE_PENDING, Downloads.STATUS_WAITING_TO_RETRY));
+
+		// a cancel can't be taken back
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_CANCEL_PENDING, Downloads.STATUS_RUNNING));
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_CANCEL_PENDING, Downloads.STATUS_PAUSE_PENDING));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_CANCEL_PENDING, Downloads.STATUS_CANCELED));
+	}
+
+	public void testDeleteOnlyOnce() {
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_RUNNING, Downloads.STATUS_DELETE_PENDING));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_CANCEL_PENDING, Downloads.STATUS_DELETE_PENDING));
+		assertTrue(TaskRegistry.isLegalTransition(Downloads.STATUS_STOP, Downloads.STATUS_DELETE_PENDING));
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_DELETE_PENDING, Downloads.STATUS_DELETE_PENDING));
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_DELETE_PENDING, Downloads.STATUS_STOP));
+		assertFalse(TaskRegistry.isLegalTransition(Downloads.STATUS_DELETE_PENDING, Downloads.STATUS_PENDING));
+	}
+
+	public void testCompareAndSet() {
+		TaskRegistry.Task task = mTaskRegistry.obtain(1);
+		assertEquals(Downloads.STATUS_STOP, task.getState());
+
+		// not in the expected state
+		assertFalse(task.compareAndSet(Downloads.STATUS_PENDING, Downloads.STATUS_RUNNING));
+		// illegal even though the task is in the expected state
+		assertFalse(task.compareAndSet(Downloads.STATUS_STOP, Downloads.STATUS_RUNNING));
+		assertEquals(Downloads.STATUS_STOP, task.getState());
+
+		assertTrue(task.compareAndSet(Downloads.STATUS_STOP, Downloads.STATUS_PENDING));
+		assertTrue(task.compareAndSet(Downloads.STATUS_PENDING, Downloads.STATUS_RUNNING));
+		assertFalse(task.compareAndSet(Downloads.STATUS_PENDING, Downloads.STATUS_RUNNING));
+		assertTrue(task.compareAndSet(Downloads.STATUS_RUNNING, Downloads.STATUS_PAUSE_PENDING));
+		assertTrue(task.compareAndSet(Downloads.STATUS_PAUSE_PENDING, Downloads.STATUS_PAUSED));
+		assertEquals(Downloads.STATUS_PAUSED, task.getState());
+	}
+
+	public void testRestartIsTakenOnce() {
+		TaskRegistry.Task task = mTaskRegistry.obtain(1);
+		assertEquals(TaskRegistry.NO_RESTART, task.takeRestart());
+		task.requestRestart(Downloads.PRIORITY_HIGH);
+		task.requestRestart(Downloads.PRIORITY_LOW);
+		assertEquals(Downloads.PRIORITY_LOW, task.takeRestart());
+		assertEquals(TaskRegistry.NO_RESTART, task.takeRestart());
+	}
+
+	public void testObtainAndRemove() {
+		TaskRegistry.Task task = mTaskRegistry.obtain(1);
+		assertSame(task, mTaskRegistry.obtain(1));
+		assertSame(task, mTaskRegistry.get(1));
+		assertNull(mTaskRegistry.get(2));
+		assertEquals(1, mTaskRegistry.size());
+
+		assertTrue(mTaskRegistry.remove(task));
+		assertNull(mTaskRegistry.get(1));
+
+		// removing a stale task leaves the one registered after it alone
+		TaskRegistry.Task newTask = mTaskRegistry.obtain(1);
+		assertNotSame(task, newTask);
+		assertFalse(mTaskRegistry.remove(task));
+		assertSame(newTask, mTaskRegistry.get(1));
+	}
+}